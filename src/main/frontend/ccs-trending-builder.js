@@ -519,6 +519,7 @@ class ChannelTree extends LitElement {
             }
         });
         this.tree = jQuery("#channel_tree").jstree(true);
+        this._waitForTree(false);
     }
 
     _search() {
@@ -529,6 +530,7 @@ class ChannelTree extends LitElement {
             this._lastFull = full;
             this.tree.settings.core.data.url = `${this.restURL}/channels?filter=${filter}&full=${full}`;
             this.tree.refresh();
+            this._waitForTree(false);
         }
     }
 
@@ -537,6 +539,28 @@ class ChannelTree extends LitElement {
         this.tree.settings.core.data.url = `${this.restURL}/channels?filter=${this._lastFilter}&full=${full}&refresh=true`;
         this.tree.refresh();
         this.tree.settings.core.data.url = `${this.restURL}/channels?filter=${this._lastFilter}&full=${full}`;
+        this._waitForTree(true);
+    }
+
+    // The server reads channel trees in the background, and replies with 202 (Accepted) while the
+    // tree asked for is still being read. Ask again, less and less often, until it has been read,
+    // then show it. A refresh always shows the tree again, since the one shown may predate it.
+    _waitForTree(refresh, attempt = 0) {
+        clearTimeout(this._waitTimer);
+        const url = this.tree.settings.core.data.url;
+        fetch(url, {cache: 'no-store'}).then((response) => {
+            if (url !== this.tree.settings.core.data.url) {
+                // Superseded by another search
+            } else if (response.status === 202 && attempt < 60) {
+                this._waitTimer = setTimeout(() => this._waitForTree(true, attempt + 1), Math.min(1000 * (attempt + 1), 5000));
+            } else if (refresh) {
+                this.tree.refresh();
+            }
+        }, () => {
+            if (refresh) {
+                this.tree.refresh();
+            }
+        });
     }
 }
 
@@ -14,14 +14,30 @@ class RangeSynchronizer {
         this._useUTC = false;
         this._nBins = 100;
         this._source = 'Some Default';
+        this._align = false;
     }
 
     add(plot) {
         this.plots.push(plot);
+        if (plot.autoUpdate && !this._timer) {
+            this._timer = setInterval(() => this._autoUpdate(), 60000);
+        }
     }
 
     remove(plot) {
-        this.plots.remove(plot);
+        const index = this.plots.indexOf(plot);
+        if (index > -1) {
+            this.plots.splice(index, 1);
+        }
+    }
+
+    // A single timer per group, so that all of the plots in the group refresh together
+    // and their requests go to the server as a single batch.
+    _autoUpdate() {
+        this.plots.forEach((plot) => {
+            if (plot.autoUpdate && !plot.range.startsWith('{') && !plot._subscription)
+                plot._reloadData();
+        });
     }
 
     set range(value) {
@@ -68,6 +84,268 @@ class RangeSynchronizer {
     get nBins() {
         return this._nBins;
     }
+
+    set align(value) {
+        this._align = value;
+        this.plots.forEach((plot) => plot.align = value);
+    }
+
+    get align() {
+        return this._align;
+    }
+}
+
+// Collects the data requests made by all plots using the same restURL in the same tick,
+// and sends them to the server as a single batch request.
+class RequestBatcher {
+    constructor(restURL) {
+        this.restURL = restURL;
+        this._pending = [];
+        this._batchSupported = true;
+    }
+
+    request(params, args) {
+        return new Promise((resolve, reject) => {
+            this._pending.push({params: params, args: args, resolve: resolve, reject: reject});
+            if (this._pending.length === 1) {
+                setTimeout(() => this._flush(), 0);
+            }
+        });
+    }
+
+    _flush() {
+        const pending = this._pending;
+        this._pending = [];
+        if (!this._batchSupported || pending.length === 1) {
+            pending.forEach((p) => this._send(p));
+            return;
+        }
+        let request = new XMLHttpRequest();
+        request.open('POST', this.restURL + '/batch', true);
+        request.setRequestHeader('Content-Type', 'application/json');
+        request.onload = () => {
+            if (request.status >= 200 && request.status < 400) {
+                let results = JSON.parse(request.responseText);
+                pending.forEach((p, i) => {
+                    if (results[i].error) {
+                        p.reject(`error ( ${this.restURL} ${p.args} returned ${results[i].error}`);
+                    } else {
+                        p.resolve(results[i]);
+                    }
+                });
+            } else if (request.status === 404 || request.status === 405) {
+                // Server does not support batch requests, fall back to one request per plot
+                this._batchSupported = false;
+                pending.forEach((p) => this._send(p));
+            } else {
+                pending.forEach((p) => p.reject(`error ( ${this.restURL}/batch returned ${request.status}`));
+            }
+        };
+        request.onerror = () => {
+            pending.forEach((p) => p.reject(`error ( ${this.restURL}/batch returned ${request.status}`));
+        };
+        request.send(JSON.stringify(pending.map((p) => p.params)));
+    }
+
+    _send(p) {
+        let request = new XMLHttpRequest();
+        request.open('GET', this.restURL + '?' + p.args, true);
+        // Ask for the binary form, servers which do not support it will send JSON.
+        request.setRequestHeader('Accept', BINARY_TRENDING_TYPE + ', application/json;q=0.9');
+        request.responseType = 'arraybuffer';
+        request.onload = () => {
+            if (request.status >= 200 && request.status < 400) {
+                let contentType = request.getResponseHeader('Content-Type') || '';
+                if (contentType.startsWith(BINARY_TRENDING_TYPE)) {
+                    p.resolve(_binaryTrendingToRows(decodeBinaryTrending(request.response)));
+                } else {
+                    p.resolve(JSON.parse(new TextDecoder('utf-8').decode(request.response)));
+                }
+            } else {
+                p.reject(`error ( ${this.restURL} ${p.args} returned ${request.status}`);
+            }
+        };
+        request.onerror = () => {
+            p.reject(`error ( ${this.restURL} ${p.args} returned ${request.status}`);
+        };
+        request.send();
+    }
+}
+
+const BINARY_TRENDING_TYPE = 'application/x-ccs-trending';
+
+// Decodes the binary trending format written by BinaryTrendingResult.java. The times
+// and the columns of each series are returned as typed arrays, with absent bins
+// marked in the per series bitmap (and set to NaN in the columns).
+function decodeBinaryTrending(buffer) {
+    const view = new DataView(buffer);
+    const magic = String.fromCharCode(view.getUint8(0), view.getUint8(1), view.getUint8(2), view.getUint8(3));
+    if (magic !== 'CCST' || view.getUint8(4) !== 1) {
+        throw new Error('Unsupported binary trending data');
+    }
+    const single = (view.getUint8(5) & 1) !== 0;
+    const nComponents = [1, 3, 2][view.getUint8(6)];
+    let offset = 7;
+    // Varints can exceed 32 bits, so avoid bitwise operators when combining them
+    const readVarint = () => {
+        let result = 0;
+        let scale = 1;
+        let b;
+        do {
+            b = view.getUint8(offset++);
+            result += (b & 0x7f) * scale;
+            scale *= 128;
+        } while (b & 0x80);
+        return result;
+    };
+    const nSeries = readVarint();
+    const metaLength = readVarint();
+    const meta = JSON.parse(new TextDecoder('utf-8').decode(new Uint8Array(buffer, offset, metaLength)));
+    offset += metaLength;
+    const nRows = readVarint();
+    const times = new Float64Array(nRows);
+    let time = 0;
+    for (let i = 0; i < nRows; i++) {
+        const zigzag = readVarint();
+        time += zigzag % 2 === 0 ? zigzag / 2 : -(zigzag + 1) / 2;
+        times[i] = time;
+    }
+    const series = [];
+    for (let s = 0; s < nSeries; s++) {
+        const present = new Uint8Array(buffer, offset, (nRows + 7) >> 3);
+        offset += present.length;
+        const columns = [];
+        for (let c = 0; c < nComponents; c++) {
+            const column = single ? new Float32Array(nRows) : new Float64Array(nRows);
+            for (let i = 0; i < nRows; i++) {
+                if (present[i >> 3] & (1 << (i & 7))) {
+                    column[i] = single ? view.getFloat32(offset, true) : view.getFloat64(offset, true);
+                    offset += single ? 4 : 8;
+                } else {
+                    column[i] = NaN;
+                }
+            }
+            columns.push(column);
+        }
+        series.push({present: present, columns: columns});
+    }
+    return {meta: meta, times: times, series: series};
+}
+
+// Converts decoded binary trending data to the rows returned by the JSON interface
+function _binaryTrendingToRows(decoded) {
+    const data = new Array(decoded.times.length);
+    for (let i = 0; i < data.length; i++) {
+        const row = [decoded.times[i]];
+        decoded.series.forEach((s) => {
+            if (!(s.present[i >> 3] & (1 << (i & 7)))) {
+                row.push(null);
+            } else if (s.columns.length === 1) {
+                row.push(s.columns[0][i]);
+            } else {
+                row.push(s.columns.map((column) => column[i]));
+            }
+        });
+        data[i] = row;
+    }
+    return {meta: decoded.meta, data: data};
+}
+
+const _requestBatchers = {};
+
+function _requestBatcherForURL(restURL) {
+    let result = _requestBatchers[restURL];
+    if (!result) {
+        result = new RequestBatcher(restURL);
+        _requestBatchers[restURL] = result;
+    }
+    return result;
+}
+
+// The restURLs whose server does not support live update subscriptions
+const _subscriptionsUnavailable = {};
+
+// A single live update subscription for all of the plots which use the same restURL and query
+// parameters (typically all of the plots in a group), since browsers only allow a few connections
+// to each server. The data of each event is a list with the result for each plot.
+class LiveSubscription {
+    constructor(restURL, params) {
+        this.restURL = restURL;
+        this.params = params;
+        this.plots = [];
+        this._eventSource = null;
+        this._openPending = false;
+    }
+
+    add(plot) {
+        this.plots.push(plot);
+        this._reopen();
+    }
+
+    remove(plot) {
+        const index = this.plots.indexOf(plot);
+        if (index > -1) {
+            this.plots.splice(index, 1);
+            this._reopen();
+        }
+    }
+
+    // Plots joining or leaving in the same tick cause a single new connection, whose first
+    // event holds the whole window for all of the plots, read by the server in one go.
+    _reopen() {
+        if (!this._openPending) {
+            this._openPending = true;
+            setTimeout(() => this._open(), 0);
+        }
+    }
+
+    _open() {
+        this._openPending = false;
+        if (this._eventSource) {
+            this._eventSource.close();
+            this._eventSource = null;
+        }
+        if (this.plots.length === 0) {
+            const id = this.restURL + ' ' + JSON.stringify(this.params);
+            if (_liveSubscriptions[id] === this) {
+                delete _liveSubscriptions[id];
+            }
+            return;
+        }
+        const plots = this.plots.slice();
+        const params = Object.assign({plot: plots.map((plot) => plot.keys.join(','))}, this.params);
+        const eventSource = new EventSource(this.restURL + '/subscribe?' + plots[0]._parseUrlParams(params, true));
+        this._eventSource = eventSource;
+        eventSource.onmessage = (event) => {
+            const results = JSON.parse(event.data);
+            plots.forEach((plot, i) => {
+                if (plot._subscription === this) {
+                    plot._receiveData(results[i]);
+                }
+            });
+        };
+        eventSource.onerror = () => {
+            // The browser reconnects by itself after network errors, but gives up if the server
+            // rejects the subscription, in which case the plots go back to polling.
+            if (eventSource.readyState === EventSource.CLOSED && this._eventSource === eventSource) {
+                _subscriptionsUnavailable[this.restURL] = true;
+                this._eventSource = null;
+                this.plots.slice().forEach((plot) => plot._updateData());
+            }
+        };
+    }
+}
+
+const _liveSubscriptions = {};
+
+function _liveSubscriptionFor(restURL, params) {
+    const id = restURL + ' ' + JSON.stringify(params);
+    let result = _liveSubscriptions[id];
+    if (!result) {
+        result = new LiveSubscription(restURL, params);
+        _liveSubscriptions[id] = result;
+    }
+    return result;
 }
 
 const _defaultRangeSynchronizer = new RangeSynchronizer();
@@ -215,6 +493,22 @@ class TrendingPlot extends LitElement {
                 type: Number,
                 notify: true,
                 reflect: true
+            },
+
+            // If set the server snaps the time window to a canonical grid, which makes
+            // identical plots produce identical (and hence cacheable) queries.
+            align: {
+                type: Boolean,
+                notify: true,
+                reflect: true
+            },
+
+            // STAT (the default) plots the dataserver's statistics for each bin, RAW plots the raw
+            // points, reduced by the server to at most nBins points per channel.
+            flavor: {
+                type: String,
+                notify: true,
+                reflect: true
             }
         };
     }
@@ -230,8 +524,11 @@ class TrendingPlot extends LitElement {
         this.labels = ['time'];
         this.restURL = 'rest';
         this.nBins = 100;
+        this.align = _defaultRangeSynchronizer.align;
+        this.flavor = 'STAT';
         this.keys = [];
         this.autoUpdate = true;
+        this._requestCount = 0;
         this.series = {};
         this._message = "";
     }
@@ -244,6 +541,7 @@ class TrendingPlot extends LitElement {
         if (!("useUTC" in changedProperties)) this.useUTC = this.synchronizer.useUTC;
         if (!("range" in changedProperties)) this.range = this.synchronizer.range;
         if (!("nBins" in changedProperties)) this.nBins = this.synchronizer.nBins;
+        if (!("align" in changedProperties)) this.align = this.synchronizer.align;
 
         this.shadowRoot.querySelector(".legend").toggleVisibility = (series) => {
             this._toggleVisibility(series);
@@ -281,20 +579,14 @@ class TrendingPlot extends LitElement {
             this.graph.resize();
         });
         this._ro.observe(this);
-
-        if (this.autoUpdate) {
-            this.timer = setInterval(() => {
-                if (!this.range.startsWith('{'))
-                    this._reloadData();
-            }, 60000);
-        }
     }
 
     disconnectedCallback() {
         super.disconnectedCallback();
-        if (this.auoUpdate) {
-            clearTimeout(this.timer);
+        if (this.synchronizer) {
+            this.synchronizer.remove(this);
         }
+        this._unsubscribe();
         this._ro.disconnect();
     }
 
@@ -334,6 +626,10 @@ class TrendingPlot extends LitElement {
                 reloadNeeded = true;
             } else if (name === 'nBins') {
                 reloadNeeded = true;
+            } else if (name === 'align') {
+                reloadNeeded = true;
+            } else if (name === 'flavor') {
+                reloadNeeded = true;
             } else if (name === 'useUTC') {
                 this.graph.updateOptions({labelsUTC: this.useUTC});
             } else if (name === 'logscale') {
@@ -348,9 +644,10 @@ class TrendingPlot extends LitElement {
         }
     }
 
-    // Called when autoupdate wants to update the data.
+    // Called when autoupdate wants to update the data. Only the bins newer than
+    // those we already have are requested, and appended to the existing data.
     _reloadData() {
-        this._updateData();
+        this._updateData(true);
     }
 
     _toTimeRange(range) {
@@ -367,7 +664,10 @@ class TrendingPlot extends LitElement {
         this.graph.setVisibility(series, !this.graph.visibility()[series]);
     }
 
-    _updateData() {
+    _updateData(incremental = false) {
+        if (!incremental) {
+            this._unsubscribe();
+        }
         if (this.keys.length === 0)
             return;
         if (document.visibilityState !== 'visible') {
@@ -377,56 +677,100 @@ class TrendingPlot extends LitElement {
         this._message = "Loading data...";
         let timeRange = this._toTimeRange(this.range);
         this.graph.updateOptions({dateWindow: [timeRange.start, timeRange.end]});
-        let args = this._parseUrlParams({"key": this.keys, "t1": timeRange.start, "t2": timeRange.end, "n": this.nBins, 'errorBars': this.errorbars, 'source': this.source}, true);
+        let params = {"key": this.keys, "t1": timeRange.start, "t2": timeRange.end, "n": this.nBins, 'errorBars': this.errorbars, 'source': this.source};
+        if (this.align) {
+            params.align = true;
+        }
+        if (this.flavor === 'RAW') {
+            // Without downsampling a RAW query returns every point in the window
+            params.flavor = 'RAW';
+            params.downsample = 'LTTB';
+        }
+        if (!incremental && this._canSubscribe()) {
+            // Any request still outstanding is superseded by the subscription
+            ++this._requestCount;
+            this._subscribe(params);
+            return;
+        }
+        if (incremental && this._data && this._data.length > 0) {
+            params.since = this._data[this._data.length - 1][0].getTime();
+        } else {
+            this._data = null;
+        }
+        let args = this._parseUrlParams(params, true);
         if (typeof (this.graph) !== "undefined") {
-            if (this._request) {
-                this._request.abort();
-            }
-            let request = new XMLHttpRequest();
-            this._request = request;
-            request.open('GET', this.restURL + '?' + args, true);
-            request.onload = () => {
-                if (request.status >= 200 && request.status < 400) {
-                    // Success!
-                    let newData = JSON.parse(request.responseText);
-                    for (var i = 0; i < newData.data.length; i++) {
-                        newData.data[i][0] = new Date(newData.data[i][0]);
-                    }
-                    let errorBarsType = newData.meta.errorBars;
-                    let customBars = errorBarsType === 'MINMAX';
-                    let errorBars = errorBarsType === 'RMS';
-                    let options = {file: newData.data, customBars: customBars, errorBars: errorBars, labels: this.labels};
-                    // Messy code to deal with units. Units are received with the data, and need to be associated
-                    // with the corresponding axis, only if the user has not explicitly specified axes titles.
-                    let axisUnits = {"y1": new Set(), "y2": new Set()};
-                    newData.meta.perData.forEach((meta, i) => {
-                        axisUnits[this.series[this.labels[i+1]].axis].add(meta.units);
-                    });
-                    if (axisUnits["y1"].size === 1 && !this.ylabel) {
-                        options["ylabel"] = axisUnits["y1"].values().next().value;
-                    } else {
-                        options["ylabel"] = this.ylabel;
-                    }
-                    if (axisUnits["y2"].size === 1 && !this.y2label) {
-                        options["y2label"] = axisUnits["y2"].values().next().value;
-                    } else {
-                        options["y2label"] = this.y2label;
-                    }
-                    this.graph.updateOptions(options);
-                    this._message = "";
-                } else {
-                    this._message = `error ( ${this.restURL} ${args} returned ${request.status}`;
+            // Only the response to the most recent request is used
+            let requestId = ++this._requestCount;
+            _requestBatcherForURL(this.restURL).request(params, args).then((newData) => {
+                if (requestId === this._requestCount) {
+                    this._receiveData(newData);
                 }
-                this._request = null;
-            };
-            request.onerror = () => {
-                this._message = `error ( ${this.restURL} ${args} returned ${request.status}`;
-                this._request = null;
-            };
-            request.send();
+            }, (message) => {
+                if (requestId === this._requestCount) {
+                    this._message = message;
+                }
+            });
+        }
+    }
+
+    // Live STAT plots (auto updating, with a relative range) subscribe to updates pushed by the server
+    // when it supports them, so that the server reads each channel once for all of its viewers.
+    _canSubscribe() {
+        return this.autoUpdate && this.flavor !== 'RAW' && !this.range.startsWith('{') && typeof (EventSource) !== "undefined" && !_subscriptionsUnavailable[this.restURL];
+    }
+
+    // The server only uses the length of the window, so plots with the same range share a
+    // subscription whatever the time at which they asked for it.
+    _subscribe(params) {
+        const shared = {t1: 0, t2: params.t2 - params.t1, n: params.n, errorBars: params.errorBars, source: params.source};
+        this._subscription = _liveSubscriptionFor(this.restURL, shared);
+        this._subscription.add(this);
+    }
+
+    _unsubscribe() {
+        if (this._subscription) {
+            this._subscription.remove(this);
+            this._subscription = null;
         }
     }
 
+    _receiveData(newData) {
+        for (var i = 0; i < newData.data.length; i++) {
+            newData.data[i][0] = new Date(newData.data[i][0]);
+        }
+        if (typeof (newData.meta.since) !== "undefined" && this._data) {
+            // Incremental update, replace everything from meta.since onwards, and
+            // drop anything which has scrolled out of the time range.
+            let since = newData.meta.since;
+            let start = newData.meta.min;
+            this._data = this._data.filter((row) => row[0].getTime() >= start && row[0].getTime() < since).concat(newData.data);
+        } else {
+            this._data = newData.data;
+        }
+        let errorBarsType = newData.meta.errorBars;
+        let customBars = errorBarsType === 'MINMAX';
+        let errorBars = errorBarsType === 'RMS';
+        let options = {file: this._data, customBars: customBars, errorBars: errorBars, labels: this.labels};
+        // Messy code to deal with units. Units are received with the data, and need to be associated
+        // with the corresponding axis, only if the user has not explicitly specified axes titles.
+        let axisUnits = {"y1": new Set(), "y2": new Set()};
+        newData.meta.perData.forEach((meta, i) => {
+            axisUnits[this.series[this.labels[i+1]].axis].add(meta.units);
+        });
+        if (axisUnits["y1"].size === 1 && !this.ylabel) {
+            options["ylabel"] = axisUnits["y1"].values().next().value;
+        } else {
+            options["ylabel"] = this.ylabel;
+        }
+        if (axisUnits["y2"].size === 1 && !this.y2label) {
+            options["y2label"] = axisUnits["y2"].values().next().value;
+        } else {
+            options["y2label"] = this.y2label;
+        }
+        this.graph.updateOptions(options);
+        this._message = "";
+    }
+
     _parseUrlParams(params, isArray = false, keys = []) {
         const p = Object.keys(params).map(key => {
             let val = params[key];
@@ -611,6 +955,12 @@ class TrendingController extends LitElement {
                 reflect: true
             },
 
+            align: {
+                type: Boolean,
+                notify: true,
+                reflect: true
+            },
+
             group: {
                 type: String
             }
@@ -717,6 +1067,7 @@ class TrendingController extends LitElement {
         this.errorbars = _defaultRangeSynchronizer.errorbars;
         this.source = '';
         this.nBins = _defaultRangeSynchronizer.nBins;
+        this.align = _defaultRangeSynchronizer.align;
         this.restURL = 'rest';
         this.sourceSelection = '';
         this.needsToBuildSourceSelector = true;
@@ -729,6 +1080,7 @@ class TrendingController extends LitElement {
         _rangeSynchronizerForGroup(this.group).errorbars = this.errorbars;
         _rangeSynchronizerForGroup(this.group).source = this.source;
         _rangeSynchronizerForGroup(this.group).nBins = this.nBins;
+        _rangeSynchronizerForGroup(this.group).align = this.align;
     }
 
     set range(value) {
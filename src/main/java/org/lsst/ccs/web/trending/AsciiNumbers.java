@@ -0,0 +1,259 @@
+package org.lsst.ccs.web.trending;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes numbers directly from ASCII bytes, without first creating a
+ * <code>String</code>. The results are identical to those of
+ * {@link Long#parseLong(String)} and {@link Double#parseDouble(String)}.
+ * <p>
+ * Doubles are decoded with the Clinger fast path where it is exact, and
+ * otherwise with the Eisel-Lemire algorithm. The rare inputs which neither can
+ * decode exactly (more than 19 significant digits, values halfway between two
+ * doubles, <code>Infinity</code>, hex floats etc) fall back to
+ * {@link Double#parseDouble(String)}.
+ */
+final class AsciiNumbers {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int SMALLEST_POWER = -325;
+    private static final int LARGEST_POWER = 308;
+    /**
+     * The most and least significant 64 bits of the 128 bit approximation of
+     * 5^q, for q from SMALLEST_POWER to LARGEST_POWER, normalized so that the
+     * top bit is set.
+     */
+    private static final long[] MANTISSA_HIGH = new long[LARGEST_POWER - SMALLEST_POWER + 1];
+    private static final long[] MANTISSA_LOW = new long[LARGEST_POWER - SMALLEST_POWER + 1];
+
+    static {
+        BigInteger five = BigInteger.valueOf(5);
+        for (int q = SMALLEST_POWER; q <= LARGEST_POWER; q++) {
+            BigInteger c;
+            if (q < 0) {
+                BigInteger power5 = five.pow(-q);
+                int z = power5.subtract(BigInteger.ONE).bitLength();
+                int b = q >= -27 ? z + 127 : 2 * z + 128;
+                c = BigInteger.ONE.shiftLeft(b).divide(power5).add(BigInteger.ONE);
+            } else {
+                c = five.pow(q);
+            }
+            int bits = c.bitLength();
+            c = bits > 128 ? c.shiftRight(bits - 128) : c.shiftLeft(128 - bits);
+            MANTISSA_HIGH[q - SMALLEST_POWER] = c.shiftRight(64).longValue();
+            MANTISSA_LOW[q - SMALLEST_POWER] = c.longValue();
+        }
+    }
+
+    private AsciiNumbers() {
+    }
+
+    /**
+     * Decode a decimal long.
+     *
+     * @throws NumberFormatException If the bytes are not a valid long
+     */
+    static long parseLong(byte[] bytes, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            throw numberFormatException(bytes, offset, length);
+        }
+        // Accumulate negatively, as Long.parseLong does, so that Long.MIN_VALUE can be represented
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyMin = limit / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || result < multiplyMin) {
+                throw numberFormatException(bytes, offset, length);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw numberFormatException(bytes, offset, length);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Decode a double.
+     *
+     * @throws NumberFormatException If the bytes are not a valid double
+     */
+    static double parseDouble(byte[] bytes, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end && bytes[i] <= ' ') {
+            i++;
+        }
+        while (end > i && bytes[end - 1] <= ' ') {
+            end--;
+        }
+        final int start = i;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long significand = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            anyDigits = true;
+            if (significand != 0 || digit != 0) {
+                if (++digits > 19) {
+                    return fallback(bytes, start, end);
+                }
+                significand = significand * 10 + digit;
+            }
+        }
+        if (i < end && bytes[i] == '.') {
+            for (i++; i < end; i++) {
+                int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                anyDigits = true;
+                if (significand != 0 || digit != 0) {
+                    if (++digits > 19) {
+                        return fallback(bytes, start, end);
+                    }
+                    significand = significand * 10 + digit;
+                }
+                exponent--;
+            }
+        }
+        if (!anyDigits) {
+            return fallback(bytes, start, end);
+        }
+        if (i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int explicitExponent = 0;
+            boolean anyExponentDigits = false;
+            for (; i < end; i++) {
+                int digit = bytes[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                anyExponentDigits = true;
+                if (explicitExponent < 100000) {
+                    explicitExponent = explicitExponent * 10 + digit;
+                }
+            }
+            if (!anyExponentDigits) {
+                return fallback(bytes, start, end);
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (i != end) {
+            return fallback(bytes, start, end);
+        }
+        if (significand == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (exponent >= -22 && exponent <= 22 && significand > 0 && significand <= 1L << 53) {
+            // Both the significand and the power of ten are exact, so a single rounding gives the correct result
+            double value = exponent < 0 ? significand / POWERS_OF_TEN[-exponent] : significand * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        if (exponent >= SMALLEST_POWER && exponent <= LARGEST_POWER) {
+            long bits = eiselLemire(significand, exponent);
+            if (bits >= 0) {
+                return Double.longBitsToDouble(negative ? bits | 1L << 63 : bits);
+            }
+        }
+        return fallback(bytes, start, end);
+    }
+
+    /**
+     * Compute the bits of the (positive) double nearest to
+     * <code>significand * 10^power</code>.
+     *
+     * @return The bits, or -1 if the result cannot be determined exactly
+     */
+    private static long eiselLemire(long significand, int power) {
+        int index = power - SMALLEST_POWER;
+        long factorHigh = MANTISSA_HIGH[index];
+        long binaryExponent = (((152170L + 65536L) * power) >> 16) + 1024 + 63;
+        int lz = Long.numberOfLeadingZeros(significand);
+        long w = significand << lz;
+        long upper = unsignedMultiplyHigh(w, factorHigh);
+        long lower = w * factorHigh;
+        if ((upper & 0x1FF) == 0x1FF && Long.compareUnsigned(lower + w, lower) < 0) {
+            // The 64 bit product is not precise enough, so use the full 128 bit factor
+            long factorLow = MANTISSA_LOW[index];
+            long productLow = w * factorLow;
+            long productMiddle = lower + unsignedMultiplyHigh(w, factorLow);
+            long productHigh = upper;
+            if (Long.compareUnsigned(productMiddle, lower) < 0) {
+                productHigh++;
+            }
+            if (productMiddle + 1 == 0 && (productHigh & 0x1FF) == 0x1FF && Long.compareUnsigned(productLow + w, productLow) < 0) {
+                return -1;
+            }
+            upper = productHigh;
+            lower = productMiddle;
+        }
+        long upperBit = upper >>> 63;
+        long mantissa = upper >>> (upperBit + 9);
+        lz += (int) (1 ^ upperBit);
+        if (lower == 0 && (upper & 0x1FF) == 0 && (mantissa & 3) == 1) {
+            // Exactly halfway between two doubles, which needs the rounding rule
+            return -1;
+        }
+        mantissa += 1;
+        mantissa >>>= 1;
+        if (mantissa >= 1L << 53) {
+            mantissa = 1L << 52;
+            lz--;
+        }
+        mantissa &= ~(1L << 52);
+        long realExponent = binaryExponent - lz;
+        if (realExponent < 1 || realExponent > 2046) {
+            return -1;
+        }
+        return mantissa | realExponent << 52;
+    }
+
+    private static long unsignedMultiplyHigh(long x, long y) {
+        long x0 = x & 0xFFFFFFFFL;
+        long x1 = x >>> 32;
+        long y0 = y & 0xFFFFFFFFL;
+        long y1 = y >>> 32;
+        long p01 = x0 * y1;
+        long middle = x1 * y0 + ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL);
+        return x1 * y1 + (middle >>> 32) + (p01 >>> 32);
+    }
+
+    private static double fallback(byte[] bytes, int start, int end) {
+        if (end - start == 3 && bytes[start] == 'N' && bytes[start + 1] == 'a' && bytes[start + 2] == 'N') {
+            return Double.NaN;
+        }
+        return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private static NumberFormatException numberFormatException(byte[] bytes, int offset, int length) {
+        return new NumberFormatException("For input string: \"" + new String(bytes, offset, length, StandardCharsets.ISO_8859_1) + "\"");
+    }
+}
@@ -0,0 +1,456 @@
+package org.lsst.ccs.web.trending;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.lsst.ccs.web.trending.RollupStore.RollupStatistics;
+import org.lsst.ccs.web.trending.SegmentStore.SegmentStatistics;
+import org.lsst.ccs.web.trending.TrendingRestInterface.Flavor;
+import org.lsst.ccs.web.trending.TrendingRestInterface.TrendingPerSeriesMetaData;
+
+/**
+ * A cache of binned trending data for a single dataserver source. Bins are
+ * stored per channel and per bin grid (bin width and phase), so that any two
+ * requests which share a grid can share bins, even if their windows only
+ * partly overlap. The phase of an unaligned request is <code>t1</code> modulo
+ * the bin width, which changes every time a relative window is reloaded, so in
+ * practice only aligned requests (<code>align=true</code>, which a page asks
+ * for with the <code>align</code> attribute) are served from the cache.
+ * <p>
+ * Bins which ended more than <code>liveTTL</code> before they were fetched are
+ * considered final and are kept until evicted. More recent ("live") bins are
+ * only trusted for <code>liveTTL</code> after they were fetched, after which
+ * they are read again from the dataserver. The cache is bounded by the total
+ * number of bins it holds, and evicts the least recently used series first.
+ * <p>
+ * Final bins may also be kept in a {@link SegmentStore}, but only for the
+ * canonical grids (a canonical bin width, aligned to it), since any other grid
+ * is unlikely ever to be asked for again. The store is read and written
+ * outside the lock on the cache, so that disk I/O for one channel does not
+ * hold up lookups for the others.
+ */
+class BinCache {
+
+    private static final long[] CANONICAL_BIN_WIDTHS = {
+        1000, 2000, 5000, 10000, 15000, 30000,
+        60000, 2 * 60000, 5 * 60000, 10 * 60000, 15 * 60000, 30 * 60000,
+        3600000, 2 * 3600000, 3 * 3600000, 6 * 3600000, 12 * 3600000, 24 * 3600000
+    };
+
+    private final int maxBins;
+    private final long liveTTL;
+    private final Map<SeriesKey, CachedSeries> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private int totalBins;
+    private long hits;
+    private long partialHits;
+    private long misses;
+    private long bypassed;
+    private long staleHits;
+    private long evictions;
+    private final SegmentStore segments;
+
+    BinCache(int maxBins, long liveTTL) {
+        this(maxBins, liveTTL, null);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param maxBins The maximum number of bins to keep in memory
+     * @param liveTTL How long recent bins are trusted
+     * @param segments A persistent store for final bins, or <code>null</code>
+     */
+    BinCache(int maxBins, long liveTTL, SegmentStore segments) {
+        this.maxBins = maxBins;
+        this.liveTTL = liveTTL;
+        this.segments = segments;
+    }
+
+    /**
+     * Compute the bin width for a request, or zero if the request cannot be
+     * served from the cache.
+     */
+    static long binWidth(long t1, long t2, int nBins, Flavor flavor) {
+        if (flavor != Flavor.STAT || nBins <= 0 || t2 <= t1 || (t2 - t1) % nBins != 0) {
+            return 0;
+        }
+        return (t2 - t1) / nBins;
+    }
+
+    /**
+     * Find the largest canonical bin width which is no wider than the given
+     * width, so that a window split into bins of that width has at least as
+     * many bins as were asked for. Canonical widths are "round" numbers of
+     * seconds, minutes, hours or days, so that the grid lines up with the
+     * epoch. Widths of less than a second are used as they are.
+     */
+    static long canonicalBinWidth(long width) {
+        long day = CANONICAL_BIN_WIDTHS[CANONICAL_BIN_WIDTHS.length - 1];
+        if (width >= day) {
+            return width / day * day;
+        }
+        long result = Math.max(1, width);
+        for (long canonical : CANONICAL_BIN_WIDTHS) {
+            if (canonical > width) {
+                break;
+            }
+            result = canonical;
+        }
+        return result;
+    }
+
+    /**
+     * Look up the cached bins for a channel.
+     *
+     * @param key The channel id
+     * @param flavor The data flavor
+     * @param t1 The start of the requested window
+     * @param t2 The end of the requested window
+     * @param width The bin width, as computed by {@link #binWidth}
+     * @param now The current time
+     * @return The cached bins from <code>t1</code> up to
+     * {@link Slice#getValidTo()}, which is <code>t1</code> if nothing usable is
+     * cached, and <code>t2</code> if the whole window is cached.
+     */
+    Slice lookup(String key, Flavor flavor, long t1, long t2, long width, long now) {
+        SeriesKey seriesKey = new SeriesKey(key, flavor, width, Math.floorMod(t1, width));
+        if (segments != null && seriesKey.isPersistent()) {
+            boolean covered;
+            synchronized (this) {
+                covered = covers(cache.get(seriesKey), t1);
+            }
+            if (!covered) {
+                SegmentStore.Run run = segments.read(key, flavor, width, seriesKey.phase, t1);
+                if (run != null) {
+                    load(seriesKey, t1, run, segments.getMetaData(key));
+                }
+            }
+        }
+        return lookup(seriesKey, t1, t2, now);
+    }
+
+    private synchronized Slice lookup(SeriesKey seriesKey, long t1, long t2, long now) {
+        CachedSeries series = cache.get(seriesKey);
+        long validTo = t1;
+        if (series != null && series.from <= t1) {
+            validTo = now - series.fetchedAt < liveTTL ? series.to : Math.min(series.to, series.stableTo);
+        }
+        if (validTo <= t1) {
+            misses++;
+            return new Slice(t1, new TrendingSeries());
+        }
+        validTo = Math.min(validTo, t2);
+        if (validTo == t2) {
+            hits++;
+        } else {
+            partialHits++;
+        }
+        return new Slice(validTo, series.data.slice(t1, validTo));
+    }
+
+    /**
+     * Look up all the cached bins for a channel, including live bins which
+     * are older than <code>liveTTL</code>. Used to serve stale data when the
+     * dataserver cannot be reached.
+     *
+     * @return The cached bins, as for {@link #lookup}
+     */
+    synchronized Slice lookupStale(String key, Flavor flavor, long t1, long t2, long width) {
+        CachedSeries series = cache.get(new SeriesKey(key, flavor, width, Math.floorMod(t1, width)));
+        if (series == null || series.from > t1 || series.to <= t1) {
+            return new Slice(t1, new TrendingSeries());
+        }
+        staleHits++;
+        long validTo = Math.min(series.to, t2);
+        return new Slice(validTo, series.data.slice(t1, validTo));
+    }
+
+    private static boolean covers(CachedSeries series, long t1) {
+        return series != null && series.from <= t1 && series.to > t1;
+    }
+
+    /**
+     * Add bins read from the persistent store, joining them to the bins in
+     * memory if they meet. Nothing is done if the bins in memory now contain
+     * <code>t1</code>, as they may if another thread got there first.
+     */
+    private synchronized void load(SeriesKey seriesKey, long t1, SegmentStore.Run run, TrendingPerSeriesMetaData meta) {
+        CachedSeries series = cache.get(seriesKey);
+        if (covers(series, t1)) {
+            return;
+        }
+        TrendingSeries data = run.getData();
+        long to = run.getTo();
+        long stableTo = run.getTo();
+        long fetchedAt = 0;
+        if (series != null) {
+            totalBins -= series.data.size();
+            if (series.from <= run.getTo() && series.to > run.getTo()) {
+                data.addAll(series.data.slice(run.getTo(), Long.MAX_VALUE));
+                to = series.to;
+                stableTo = Math.max(run.getTo(), series.stableTo);
+                fetchedAt = series.fetchedAt;
+            }
+            data.setMeta(series.data.getMeta());
+        }
+        if (data.getMeta() == null) {
+            data.setMeta(meta);
+        }
+        cache.put(seriesKey, new CachedSeries(run.getFrom(), to, stableTo, fetchedAt, data));
+        totalBins += data.size();
+        evict();
+    }
+
+    synchronized void bypass() {
+        bypassed++;
+    }
+
+    /**
+     * Store bins read from the dataserver. If the new bins extend an existing
+     * series they are appended to it, otherwise they replace it.
+     *
+     * @param key The channel id
+     * @param flavor The data flavor
+     * @param from The start of the window which was read (on the bin grid)
+     * @param to The end of the window which was read (on the bin grid)
+     * @param width The bin width
+     * @param fetchedAt The time at which the data was read
+     * @param data The data which was read
+     */
+    void store(String key, Flavor flavor, long from, long to, long width, long fetchedAt, TrendingSeries data) {
+        SeriesKey seriesKey = new SeriesKey(key, flavor, width, Math.floorMod(from, width));
+        long stableTo = Math.max(from, fetchedAt - liveTTL - Math.floorMod(fetchedAt - liveTTL - from, width));
+        store(seriesKey, from, to, stableTo, fetchedAt, data);
+        if (segments != null && seriesKey.isPersistent()) {
+            segments.append(key, flavor, width, seriesKey.phase, from, stableTo, data);
+            if (data.getMeta() != null) {
+                segments.putMetaData(key, data.getMeta());
+            }
+        }
+    }
+
+    private synchronized void store(SeriesKey seriesKey, long from, long to, long stableTo, long fetchedAt, TrendingSeries data) {
+        CachedSeries series = cache.get(seriesKey);
+        if (series != null && from >= series.from && from <= series.to && to >= series.to) {
+            totalBins -= series.data.size();
+            series.data.truncate(from);
+            series.data.addAll(data);
+            totalBins += series.data.size();
+            series.to = to;
+            // Only advance the stable point if the bins kept from the earlier read were all stable
+            if (from <= series.stableTo) {
+                series.stableTo = stableTo;
+                series.fetchedAt = fetchedAt;
+            }
+            if (data.getMeta() != null) {
+                series.data.setMeta(data.getMeta());
+            }
+        } else {
+            if (series != null) {
+                totalBins -= series.data.size();
+            }
+            // Copy, since the data may be shared with other readers
+            series = new CachedSeries(from, to, stableTo, fetchedAt, data.slice(Long.MIN_VALUE, Long.MAX_VALUE));
+            cache.put(seriesKey, series);
+            totalBins += series.data.size();
+        }
+        evict();
+    }
+
+    private void evict() {
+        Iterator<CachedSeries> i = cache.values().iterator();
+        while (totalBins > maxBins && i.hasNext()) {
+            totalBins -= i.next().data.size();
+            i.remove();
+            evictions++;
+        }
+    }
+
+    CacheStatistics getStatistics() {
+        CacheStatistics statistics;
+        synchronized (this) {
+            statistics = new CacheStatistics(hits, partialHits, misses, bypassed, staleHits, evictions, cache.size(), totalBins, maxBins, liveTTL);
+        }
+        if (segments != null) {
+            statistics.setSegments(segments.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * The bins found in the cache for a single channel.
+     */
+    static class Slice {
+
+        private final long validTo;
+        private final TrendingSeries series;
+
+        private Slice(long validTo, TrendingSeries series) {
+            this.validTo = validTo;
+            this.series = series;
+        }
+
+        long getValidTo() {
+            return validTo;
+        }
+
+        /**
+         * A private copy of the cached bins, which the caller may modify.
+         */
+        TrendingSeries getSeries() {
+            return series;
+        }
+    }
+
+    /**
+     * Cache counters, exposed through the REST interface so that the cache
+     * can be sized. The counters of the persistent stores are included if
+     * the source has them.
+     */
+    static class CacheStatistics {
+
+        private final long hits;
+        private final long partialHits;
+        private final long misses;
+        private final long bypassed;
+        private final long staleHits;
+        private final long evictions;
+        private final int series;
+        private final int bins;
+        private final int maxBins;
+        private final long liveTTL;
+        private RollupStatistics rollups;
+        private SegmentStatistics segments;
+
+        CacheStatistics(long hits, long partialHits, long misses, long bypassed, long staleHits, long evictions, int series, int bins, int maxBins, long liveTTL) {
+            this.hits = hits;
+            this.partialHits = partialHits;
+            this.misses = misses;
+            this.bypassed = bypassed;
+            this.staleHits = staleHits;
+            this.evictions = evictions;
+            this.series = series;
+            this.bins = bins;
+            this.maxBins = maxBins;
+            this.liveTTL = liveTTL;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getPartialHits() {
+            return partialHits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getBypassed() {
+            return bypassed;
+        }
+
+        public long getStaleHits() {
+            return staleHits;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public int getSeries() {
+            return series;
+        }
+
+        public int getBins() {
+            return bins;
+        }
+
+        public int getMaxBins() {
+            return maxBins;
+        }
+
+        public long getLiveTTL() {
+            return liveTTL;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public RollupStatistics getRollups() {
+            return rollups;
+        }
+
+        void setRollups(RollupStatistics rollups) {
+            this.rollups = rollups;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public SegmentStatistics getSegments() {
+            return segments;
+        }
+
+        void setSegments(SegmentStatistics segments) {
+            this.segments = segments;
+        }
+    }
+
+    private static class CachedSeries {
+
+        private final long from;
+        private long to;
+        private long stableTo;
+        private long fetchedAt;
+        private final TrendingSeries data;
+
+        CachedSeries(long from, long to, long stableTo, long fetchedAt, TrendingSeries data) {
+            this.from = from;
+            this.to = to;
+            this.stableTo = stableTo;
+            this.fetchedAt = fetchedAt;
+            this.data = data;
+        }
+    }
+
+    private static class SeriesKey {
+
+        private final String key;
+        private final Flavor flavor;
+        private final long width;
+        private final long phase;
+
+        SeriesKey(String key, Flavor flavor, long width, long phase) {
+            this.key = key;
+            this.flavor = flavor;
+            this.width = width;
+            this.phase = phase;
+        }
+
+        /**
+         * Whether the bins of this series are worth keeping on disk, which
+         * they are only if they are on a canonical grid.
+         */
+        boolean isPersistent() {
+            return phase == 0 && width >= CANONICAL_BIN_WIDTHS[0] && canonicalBinWidth(width) == width;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, flavor, width, phase);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SeriesKey)) {
+                return false;
+            }
+            final SeriesKey other = (SeriesKey) obj;
+            return this.width == other.width && this.phase == other.phase
+                    && this.flavor == other.flavor && this.key.equals(other.key);
+        }
+    }
+}
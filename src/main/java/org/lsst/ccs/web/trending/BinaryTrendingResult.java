@@ -0,0 +1,188 @@
+package org.lsst.ccs.web.trending;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import org.lsst.ccs.web.trending.TrendingRestInterface.ErrorBars;
+
+/**
+ * Writes a trending result in a compact binary form, as an alternative to
+ * JSON for clients which ask for it. All multi-byte values are little endian.
+ * The layout is:
+ * <pre>
+ * "CCST"             magic
+ * u8                 version (1)
+ * u8                 flags (bit 0 set if the columns are float32 rather than float64)
+ * u8                 error bars (0=NONE, 1=MINMAX, 2=RMS)
+ * varint             number of series
+ * varint + bytes     the metadata, as UTF-8 JSON
+ * varint             number of rows
+ * varint[rows]       the row times, zigzag encoded, the first absolute and the rest as deltas
+ * per series:
+ *   u8[(rows+7)/8]   bitmap of the rows for which the series has a bin (bit i%8 of byte i/8)
+ *   per component:   the bins present, as float32 or float64
+ * </pre> The components of each series are those of the JSON form, ie value
+ * for no error bars, min, value, max for MINMAX, and value, rms for RMS.
+ */
+class BinaryTrendingResult implements StreamingOutput {
+
+    static final String MEDIA_TYPE = "application/x-ccs-trending";
+    private static final ObjectMapper MAPPER = JacksonConfigurator.createObjectMapper();
+    private static final byte VERSION = 1;
+
+    private final Object meta;
+    private final MergedMap data;
+    private final boolean singlePrecision;
+
+    /**
+     * Create a binary result.
+     *
+     * @param meta The metadata, which is written as JSON
+     * @param data The data
+     * @param singlePrecision If <code>true</code> write float32 rather than
+     * float64 columns
+     */
+    BinaryTrendingResult(Object meta, MergedMap data, boolean singlePrecision) {
+        this.meta = meta;
+        this.data = data;
+        this.singlePrecision = singlePrecision;
+    }
+
+    /**
+     * Check if a media type requests single precision, using the
+     * <code>precision=single</code> parameter.
+     */
+    static boolean isSinglePrecision(MediaType type) {
+        return "single".equals(type.getParameters().get("precision"));
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        final List<TrendingSeries> sets = data.getSets();
+        final ErrorBars errorBars = data.getErrorBars();
+        Rows rows = new Rows(sets.size());
+        data.forEachRow(rows);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        out.writeBytes("CCST");
+        out.writeByte(VERSION);
+        out.writeByte(singlePrecision ? 1 : 0);
+        out.writeByte(errorBars.ordinal());
+        writeVarint(out, sets.size());
+        byte[] metaBytes = MAPPER.writeValueAsBytes(meta);
+        writeVarint(out, metaBytes.length);
+        out.write(metaBytes);
+        writeVarint(out, rows.size);
+        long previous = 0;
+        for (int row = 0; row < rows.size; row++) {
+            writeVarint(out, zigzag(rows.times[row] - previous));
+            previous = rows.times[row];
+        }
+        for (int s = 0; s < sets.size(); s++) {
+            int[] index = rows.indices[s];
+            for (int row = 0; row < rows.size; row += 8) {
+                int bits = 0;
+                for (int bit = 0; bit < 8 && row + bit < rows.size; bit++) {
+                    if (index[row + bit] >= 0) {
+                        bits |= 1 << bit;
+                    }
+                }
+                out.writeByte(bits);
+            }
+            TrendingSeries set = sets.get(s);
+            switch (errorBars) {
+                case MINMAX:
+                    writeColumn(out, set, index, rows.size, Component.MIN);
+                    writeColumn(out, set, index, rows.size, Component.VALUE);
+                    writeColumn(out, set, index, rows.size, Component.MAX);
+                    break;
+                case RMS:
+                    writeColumn(out, set, index, rows.size, Component.VALUE);
+                    writeColumn(out, set, index, rows.size, Component.RMS);
+                    break;
+                default:
+                    writeColumn(out, set, index, rows.size, Component.VALUE);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * The merged rows, with for each set the index of its bin in each row.
+     */
+    private static class Rows implements MergedMap.RowConsumer {
+
+        private long[] times = new long[256];
+        private final int[][] indices;
+        private int size;
+
+        Rows(int nSets) {
+            indices = new int[nSets][times.length];
+        }
+
+        @Override
+        public void accept(long time, int[] rowIndices) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                for (int s = 0; s < indices.length; s++) {
+                    indices[s] = Arrays.copyOf(indices[s], size * 2);
+                }
+            }
+            times[size] = time;
+            for (int s = 0; s < indices.length; s++) {
+                indices[s][size] = rowIndices[s];
+            }
+            size++;
+        }
+    }
+
+    private enum Component {
+        VALUE, RMS, MIN, MAX
+    }
+
+    private void writeColumn(DataOutputStream out, TrendingSeries set, int[] index, int nRows, Component component) throws IOException {
+        for (int row = 0; row < nRows; row++) {
+            int i = index[row];
+            if (i < 0) {
+                continue;
+            }
+            double value;
+            switch (component) {
+                case RMS:
+                    value = set.getRMS(i);
+                    break;
+                case MIN:
+                    value = set.getMin(i);
+                    break;
+                case MAX:
+                    value = set.getMax(i);
+                    break;
+                default:
+                    value = set.getValue(i);
+            }
+            if (singlePrecision) {
+                out.writeInt(Integer.reverseBytes(Float.floatToRawIntBits((float) value)));
+            } else {
+                out.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(value)));
+            }
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
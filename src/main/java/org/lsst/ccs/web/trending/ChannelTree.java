@@ -2,131 +2,400 @@ package org.lsst.ccs.web.trending;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.function.BiConsumer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
+ * The tree of trending channels, built from the dataserver's channel list.
+ * <p>
+ * Nodes are identified by their handle, which is the order in which they were
+ * created, and are stored in parallel arrays indexed by handle rather than as
+ * objects. Each distinct path segment is stored once, and nodes refer to it by
+ * index. While the tree is being built a hash index from (parent, segment) to
+ * child is used to find existing nodes, and once it is complete the children
+ * of every node are laid out in name order in a single array. A
+ * {@link TreeNode} is just a view of a node, created on demand. Trees are not
+ * modified once built, so they can be shared between threads; applying an
+ * incremental channel list with {@link #update} creates a new tree.
  *
  * @author tonyj
  */
 public class ChannelTree {
 
-    private final TreeNode root;
-    private int nextHandle = 0;
-    private final Map<Integer, TreeNode> nodeMap = new HashMap<>();
+    // Seeded from the clock so that generations are not reused after a restart
+    private static final AtomicLong GENERATIONS = new AtomicLong(System.currentTimeMillis());
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
 
-    private ChannelTree() {
-        root = new TreeNode(nextHandle++);
-        nodeMap.put(root.getHandle(), root);
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private static final int ROOT = 0;
+    private static final int NO_NAME = -1;
+    private final long generation;
+    private long activeSince;
+    private int size;
+    // Per node, indexed by handle
+    private int[] names = new int[1024];
+    private String[] ids = new String[1024];
+    // The children of node h are childList[childStart[h]] to childList[childStart[h + 1] - 1]
+    private int[] childStart;
+    private int[] childList;
+    private final ArrayList<String> segments = new ArrayList<>();
+    // The full path of each leaf, indexed by handle, only computed once the tree is filtered
+    private volatile String[] paths;
+    // Only needed while the tree is being built
+    private int[] parents = new int[1024];
+    private Map<String, Integer> segmentIndex = new HashMap<>();
+    private ChildIndex childIndex = new ChildIndex();
+
+    private ChannelTree(long generation) {
+        this.generation = generation;
+        parents[ROOT] = ROOT;
+        names[ROOT] = NO_NAME;
+        size = 1;
     }
 
     ChannelTree(String message) {
-        root = new TreeNode(nextHandle++);
-        root.addChild(new TreeNode(nextHandle++, message));
+        this(GENERATIONS.incrementAndGet());
+        addNode(null, Collections.singletonList(message));
+        finish();
     }
 
     ChannelTree(InputStream in) throws IOException {
-        this();
+        this(GENERATIONS.incrementAndGet());
         buildTree(in);
+        finish();
     }
 
+    /**
+     * Build the tree from the <code>listchannels</code> XML in a single
+     * streaming pass, adding each channel as its <code>datachannel</code>
+     * element ends, so that the document itself is never held in memory.
+     */
     private void buildTree(InputStream in) throws IOException {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         try {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Document doc = db.parse(in);
-
-            XPathFactory xPathfactory = XPathFactory.newInstance();
-            XPath xpath = xPathfactory.newXPath();
-            XPathExpression expr = xpath.compile("datachannels/datachannel");
-            XPathExpression pathExpression = xpath.compile("path/pathelement");
-            NodeList nl = (NodeList) expr.evaluate(doc, XPathConstants.NODESET);
-            for (int n = 0; n < nl.getLength(); n++) {
-                Node node = nl.item(n);
-                // The next line gives a huge performaance increase. 
-                // See: https://stackoverflow.com/questions/3782618
-                node.getParentNode().removeChild(node);
-                NodeList pathList = (NodeList) pathExpression.evaluate(node, XPathConstants.NODESET);
-                List<String> path = new ArrayList<>(pathList.getLength());
-                for (int nn = 0; nn < pathList.getLength(); nn++) {
-                    path.add(pathList.item(nn).getTextContent());
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                List<String> path = new ArrayList<>();
+                String id = null;
+                // datachannels is at depth 1, datachannel at depth 2
+                int depth = 0;
+                boolean inPath = false;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        String element = reader.getLocalName();
+                        if (depth == 1 && "datachannels".equals(element)) {
+                            activeSince = parseDate(reader.getAttributeValue(null, "activeSinceDate"));
+                        } else if (depth == 2 && "datachannel".equals(element)) {
+                            path.clear();
+                            id = null;
+                        } else if (depth == 3 && "path".equals(element)) {
+                            inPath = true;
+                        } else if (depth == 3 && "id".equals(element)) {
+                            id = reader.getElementText();
+                            depth--;
+                        } else if (depth == 4 && inPath && "pathelement".equals(element)) {
+                            path.add(reader.getElementText());
+                            depth--;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if (depth == 3) {
+                            inPath = false;
+                        } else if (depth == 2 && "datachannel".equals(reader.getLocalName())) {
+                            addNode(id, path);
+                        }
+                        depth--;
+                    }
                 }
-                String id = (String) xpath.evaluate("id", node, XPathConstants.STRING);
-                addNode(id, path);
+            } finally {
+                reader.close();
             }
-        } catch (SAXException | XPathExpressionException | ParserConfigurationException x) {
+        } catch (XMLStreamException x) {
             throw new IOException("Error parsing channel list", x);
         }
     }
 
+    private static long parseDate(String date) {
+        try {
+            return date == null ? 0 : OffsetDateTime.parse(date).toInstant().toEpochMilli();
+        } catch (DateTimeParseException x) {
+            return 0;
+        }
+    }
+
     private void addNode(String id, List<String> path) {
-        TreeNode node = root;
+        int node = ROOT;
         for (String element : path) {
-            TreeNode child = node.findChildByName(element);
-            if (child == null) {
-                child = new TreeNode(nextHandle++, element);
-                node.addChild(child);
-                nodeMap.put(child.getHandle(), child);
+            int segment = segment(element);
+            int child = childIndex.get(node, segment);
+            if (child < 0) {
+                child = newNode(node, segment);
+                childIndex.put(node, segment, child);
             }
             node = child;
         }
-        node.setId(id);
+        ids[node] = id;
+    }
+
+    private int segment(String name) {
+        Integer segment = segmentIndex.get(name);
+        if (segment == null) {
+            segment = segments.size();
+            segments.add(name);
+            segmentIndex.put(name, segment);
+        }
+        return segment;
+    }
+
+    private int newNode(int parent, int segment) {
+        if (size == parents.length) {
+            int capacity = size * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            names = Arrays.copyOf(names, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+        }
+        parents[size] = parent;
+        names[size] = segment;
+        return size++;
+    }
+
+    /**
+     * Lay out the children of each node in name order, and drop everything
+     * which is only needed while building the tree.
+     */
+    private void finish() {
+        names = Arrays.copyOf(names, size);
+        ids = Arrays.copyOf(ids, size);
+        // Rank the segments by name, so that children can be sorted on (parent, rank) as longs
+        Integer[] bySegmentName = new Integer[segments.size()];
+        for (int i = 0; i < bySegmentName.length; i++) {
+            bySegmentName[i] = i;
+        }
+        Arrays.sort(bySegmentName, (a, b) -> segments.get(a).compareTo(segments.get(b)));
+        int[] ranks = new int[bySegmentName.length];
+        for (int i = 0; i < bySegmentName.length; i++) {
+            ranks[bySegmentName[i]] = i;
+        }
+        long[] keys = new long[size - 1];
+        for (int node = 1; node < size; node++) {
+            keys[node - 1] = ((long) parents[node] << 32) | ranks[names[node]];
+        }
+        Arrays.sort(keys);
+        childStart = new int[size + 1];
+        childList = new int[size - 1];
+        for (int i = 0; i < keys.length; i++) {
+            int parent = (int) (keys[i] >>> 32);
+            childList[i] = childIndex.get(parent, bySegmentName[(int) keys[i]]);
+            childStart[parent + 1]++;
+        }
+        for (int node = 0; node < size; node++) {
+            childStart[node + 1] += childStart[node];
+        }
+        segments.trimToSize();
+        parents = null;
+        segmentIndex = null;
+        childIndex = null;
     }
 
     TreeNode getRoot() {
-        return root;
+        return new TreeNode(this, ROOT);
+    }
+
+    /**
+     * A number which identifies the channel list this tree was built from. It
+     * changes every time the list is read, and trees created by
+     * {@link #filter} or {@link #flatten} share the generation of the tree
+     * they were created from, since they (and their handles) are derived
+     * deterministically from it.
+     *
+     * @return The generation
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * The time from which the channel list this tree was read from includes
+     * channels, as reported by the dataserver in the
+     * <code>activeSinceDate</code> attribute.
+     *
+     * @return The time in milliseconds, or 0 if it was not reported
+     */
+    long getActiveSince() {
+        return activeSince;
     }
 
     TreeNode findNode(Integer handle) {
-        return nodeMap.get(handle);
+        return handle == null || handle < 0 || handle >= size ? null : new TreeNode(this, handle);
+    }
+
+    /**
+     * The number of nodes in the tree, including the root.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * An estimate of the heap used by the tree, assuming compressed object
+     * pointers. The segment and id strings are counted as if they were not
+     * shared with anything else.
+     *
+     * @return The estimated size in bytes
+     */
+    long getFootprint() {
+        long bytes = 64;
+        bytes += intArray(names.length) + intArray(childStart.length) + intArray(childList.length);
+        bytes += 16 + 4L * ids.length;
+        for (String id : ids) {
+            bytes += string(id);
+        }
+        bytes += 40 + 4L * segments.size();
+        for (String segment : segments) {
+            bytes += string(segment);
+        }
+        String[] leafPaths = paths;
+        if (leafPaths != null) {
+            bytes += 16 + 4L * leafPaths.length;
+            for (String path : leafPaths) {
+                bytes += string(path);
+            }
+        }
+        return bytes;
+    }
+
+    private static long intArray(int length) {
+        return 16 + 4L * length;
+    }
+
+    private static long string(String s) {
+        // String object plus its char array, each rounded up to 8 bytes
+        return s == null ? 0 : 24 + ((16 + 2L * s.length() + 7) & ~7);
+    }
+
+    private interface NodeVisitor {
+
+        /**
+         * @param path The names from the root to the node, which is only
+         * valid during the call
+         * @param node The handle of the node
+         */
+        void visit(List<String> path, int node);
     }
 
-    private void traverseTree(TreeNode start, List<String> initialPath, boolean visitAll, BiConsumer<List<String>, TreeNode> visitor) {
-        final Set<TreeNode> children = start.getChildren();
-        List<String> path = new ArrayList(initialPath);
-        if (start.getName() != null) {
-            path.add(start.getName());
+    private void traverseTree(int start, List<String> path, boolean visitAll, NodeVisitor visitor) {
+        if (start != ROOT) {
+            path.add(segments.get(names[start]));
         }
-        if (children.isEmpty()) {
-            visitor.accept(path, start);
+        if (childStart[start] == childStart[start + 1]) {
+            visitor.visit(path, start);
         } else {
             if (visitAll) {
-                visitor.accept(path, start);
+                visitor.visit(path, start);
             }
-            children.forEach((child) -> {
-                traverseTree(child, path, visitAll, visitor);
-            });
+            for (int i = childStart[start]; i < childStart[start + 1]; i++) {
+                traverseTree(childList[i], path, visitAll, visitor);
+            }
+        }
+        if (start != ROOT) {
+            path.remove(path.size() - 1);
         }
     }
 
     ChannelTree filter(Pattern pattern) {
-        ChannelTree result = new ChannelTree();
-        traverseTree(root, Collections.EMPTY_LIST, false, (path, node) -> {
-            String fullPath = path.stream().collect(Collectors.joining("/"));
-            if (pattern.matcher(fullPath).matches()) {
-                result.addNode(node.getId(), path);
+        return filter(pattern, 0);
+    }
+
+    /**
+     * Keep the leaves whose full path matches a regular expression.
+     *
+     * @param pattern The regular expression
+     * @param timeout The time in milliseconds after which filtering is
+     * abandoned, or 0 for no limit. A regular expression can take time
+     * exponential in the length of a path.
+     * @return The filtered tree
+     * @throws RuntimeException If the time limit is exceeded
+     */
+    ChannelTree filter(Pattern pattern, long timeout) {
+        ChannelTree result = new ChannelTree(generation);
+        String[] leafPaths = getPaths();
+        TimeLimitedSequence sequence = new TimeLimitedSequence(timeout);
+        Matcher matcher = pattern.matcher("");
+        traverseTree(ROOT, new ArrayList<>(), false, (path, node) -> {
+            if (matcher.reset(timeout > 0 ? sequence.reset(leafPaths[node]) : leafPaths[node]).matches()) {
+                result.addNode(ids[node], path);
             }
         });
+        result.finish();
+        return result;
+    }
+
+    /**
+     * Keep the leaves whose path matches a glob, matching as the tree is
+     * walked so that subtrees which cannot match are skipped.
+     *
+     * @param glob The glob
+     * @return The filtered tree
+     */
+    ChannelTree filter(GlobMatcher glob) {
+        ChannelTree result = new ChannelTree(generation);
+        filter(ROOT, glob.start(), glob, new ArrayList<>(), result);
+        result.finish();
+        return result;
+    }
+
+    private void filter(int node, long state, GlobMatcher glob, List<String> path, ChannelTree result) {
+        if (childStart[node] == childStart[node + 1]) {
+            if (glob.matches(state)) {
+                result.addNode(ids[node], path);
+            }
+            return;
+        }
+        for (int i = childStart[node]; i < childStart[node + 1]; i++) {
+            int child = childList[i];
+            String name = segments.get(names[child]);
+            long next = glob.step(state, name);
+            if (next != 0) {
+                path.add(name);
+                filter(child, next, glob, path, result);
+                path.remove(path.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * The full path of every leaf, as matched by {@link #filter}. These are
+     * built the first time the tree is filtered and then kept, since the same
+     * tree is usually filtered many times as the user types a filter.
+     */
+    private String[] getPaths() {
+        String[] result = paths;
+        if (result == null) {
+            String[] leafPaths = new String[size];
+            traverseTree(ROOT, new ArrayList<>(), false, (path, node) -> leafPaths[node] = String.join("/", path));
+            paths = result = leafPaths;
+        }
         return result;
     }
 
@@ -137,10 +406,10 @@ public class ChannelTree {
      * @return The flattened tree.
      */
     ChannelTree flatten() {
-        ChannelTree result = new ChannelTree();
+        ChannelTree result = new ChannelTree(generation);
         final List<Integer> suppressStart = new ArrayList<>();
         final List<Integer> suppressSize = new ArrayList<>();
-        traverseTree(root, Collections.EMPTY_LIST, true, (path, node) -> {
+        traverseTree(ROOT, new ArrayList<>(), true, (path, node) -> {
             if (path.size() == 0) return;
             for (int index = suppressStart.size()-1; index>=0; index--) {
                 if (path.size() <= suppressStart.get(index)+suppressSize.get(index)) {
@@ -148,7 +417,8 @@ public class ChannelTree {
                     suppressSize.remove(index);
                 }
             }
-            if (node.getChildren().size() == 1) {
+            int nChildren = childStart[node + 1] - childStart[node];
+            if (nChildren == 1) {
                 int index = suppressStart.size() - 1;
                 if (index >= 0 && suppressStart.get(index) + suppressSize.get(index) + 1 == path.size()) {
                     suppressSize.set(index, suppressSize.get(index) + 1);
@@ -156,10 +426,10 @@ public class ChannelTree {
                     suppressStart.add(path.size() - 1);
                     suppressSize.add(1);
                 }
-            } 
-            else if (node.getChildren().isEmpty()) {
+            }
+            else if (nChildren == 0) {
                 if (suppressStart.isEmpty()) {
-                    result.addNode(node.getId(), path);
+                    result.addNode(ids[node], path);
                 } else {
                     List<String> newPath = new ArrayList<>();
                     int index = 0;
@@ -173,81 +443,296 @@ public class ChannelTree {
                             i++;
                         }
                     }
-                    result.addNode(node.getId(), newPath);
+                    result.addNode(ids[node], newPath);
                 }
             }
         });
+        result.finish();
+        return result;
+    }
+
+    /**
+     * Apply an incremental channel list, containing only the recently active
+     * channels, to this tree. Channels which are new, or whose id has changed,
+     * are added. A channel whose id is now found at a different path is moved,
+     * but channels which are missing from the list are left alone, since it
+     * only says which channels were active. When nothing has moved the nodes
+     * of this tree keep their handles in the new tree, so that clients which
+     * are browsing it are not disturbed.
+     *
+     * @param delta The tree read from the incremental channel list
+     * @return This tree if the list contains no changes, otherwise a new tree
+     * with a new generation
+     */
+    ChannelTree update(ChannelTree delta) {
+        List<String> changedIds = new ArrayList<>();
+        List<List<String>> changedPaths = new ArrayList<>();
+        delta.traverseTree(ROOT, new ArrayList<>(), true, (path, node) -> {
+            String id = delta.ids[node];
+            if (id != null && !id.equals(ids[findNode(path)])) {
+                changedIds.add(id);
+                changedPaths.add(new ArrayList<>(path));
+            }
+        });
+        if (changedIds.isEmpty()) {
+            return this;
+        }
+        Set<String> changed = new HashSet<>(changedIds);
+        Set<String> moved = new HashSet<>();
+        for (String id : ids) {
+            if (id != null && changed.contains(id)) {
+                moved.add(id);
+            }
+        }
+        ChannelTree result = moved.isEmpty() ? extend() : new ChannelTree(GENERATIONS.incrementAndGet());
+        if (!moved.isEmpty()) {
+            traverseTree(ROOT, new ArrayList<>(), true, (path, node) -> {
+                if (ids[node] != null && !moved.contains(ids[node])) {
+                    result.addNode(ids[node], path);
+                }
+            });
+        }
+        for (int i = 0; i < changedIds.size(); i++) {
+            result.addNode(changedIds.get(i), changedPaths.get(i));
+        }
+        result.finish();
+        return result;
+    }
+
+    /**
+     * Find a node by its path.
+     *
+     * @return The handle of the node, or <code>ROOT</code> if there is no such
+     * node (the root never has an id)
+     */
+    private int findNode(List<String> path) {
+        int node = ROOT;
+        for (String element : path) {
+            int low = childStart[node];
+            int high = childStart[node + 1] - 1;
+            node = ROOT;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = segments.get(names[childList[mid]]).compareTo(element);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    node = childList[mid];
+                    break;
+                }
+            }
+            if (node == ROOT) {
+                return ROOT;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * A copy of this tree, with a new generation, to which further nodes can
+     * be added. Existing nodes keep their handles.
+     */
+    private ChannelTree extend() {
+        ChannelTree result = new ChannelTree(GENERATIONS.incrementAndGet());
+        int capacity = Math.max(size * 2, 1024);
+        result.size = size;
+        result.names = Arrays.copyOf(names, capacity);
+        result.ids = Arrays.copyOf(ids, capacity);
+        result.parents = new int[capacity];
+        for (int node = 0; node < size; node++) {
+            for (int i = childStart[node]; i < childStart[node + 1]; i++) {
+                int child = childList[i];
+                result.parents[child] = node;
+                result.childIndex.put(node, names[child], child);
+            }
+        }
+        for (String segment : segments) {
+            result.segment(segment);
+        }
         return result;
     }
 
     void dump() {
-        traverseTree(root, Collections.EMPTY_LIST, false, (path, node) -> System.out.printf("%s: %s\n", path, node.id));
+        traverseTree(ROOT, new ArrayList<>(), false, (path, node) -> System.out.printf("%s: %s\n", path, ids[node]));
     }
 
+    /**
+     * A view of a node of the tree.
+     */
     public static class TreeNode implements Comparable<TreeNode> {
 
-        private final String name;
-        private Set<TreeNode> children;
+        private final ChannelTree tree;
         private final int handle;
-        private String id;
 
-        private TreeNode(int handle) {
-            this.name = null;
+        private TreeNode(ChannelTree tree, int handle) {
+            this.tree = tree;
             this.handle = handle;
         }
 
-        private TreeNode(int handle, String name) {
-            this.name = name;
-            this.handle = handle;
+        @Override
+        public String toString() {
+            return "TreeNode{" + "name=" + getName() + ", children=" + getChildren() + ", handle=" + handle + ", id=" + getId() + '}';
         }
 
-        private void addChild(TreeNode child) {
-            if (children == null) {
-                children = new TreeSet<>();
-            }
-            children.add(child);
+        public String getName() {
+            int name = tree.names[handle];
+            return name == NO_NAME ? null : tree.segments.get(name);
         }
 
-        private TreeNode findChildByName(String name) {
-            if (children != null) {
-                for (TreeNode child : children) {
-                    if (name.equals(child.name)) {
-                        return child;
+        /**
+         * The children of the node, in name order.
+         */
+        public List<TreeNode> getChildren() {
+            final int start = tree.childStart[handle];
+            final int end = tree.childStart[handle + 1];
+            return new AbstractList<TreeNode>() {
+                @Override
+                public TreeNode get(int index) {
+                    if (index < 0 || index >= end - start) {
+                        throw new IndexOutOfBoundsException();
                     }
+                    return new TreeNode(tree, tree.childList[start + index]);
                 }
-            }
-            return null;
+
+                @Override
+                public int size() {
+                    return end - start;
+                }
+            };
+        }
+
+        public boolean hasChildren() {
+            return tree.childStart[handle + 1] > tree.childStart[handle];
+        }
+
+        public String getId() {
+            return tree.ids[handle];
+        }
+
+        public int getHandle() {
+            return handle;
         }
 
-        private void setId(String id) {
-            this.id = id;
+        @Override
+        public int compareTo(TreeNode other) {
+            return this.getName().compareTo(other.getName());
         }
 
         @Override
-        public String toString() {
-            return "TreeNode{" + "name=" + name + ", children=" + children + ", handle=" + handle + ", id=" + id + '}';
+        public boolean equals(Object obj) {
+            return obj instanceof TreeNode && ((TreeNode) obj).tree == tree && ((TreeNode) obj).handle == handle;
         }
 
-        public String getName() {
-            return name;
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(tree) * 31 + handle;
         }
+    }
+
+    /**
+     * A path which throws once a deadline has passed while it is being read,
+     * which stops a runaway regular expression match.
+     */
+    static class TimeLimitedSequence implements CharSequence {
+
+        private final long timeout;
+        private final long deadline;
+        private String text;
+        private int reads;
 
-        public Set<TreeNode> getChildren() {
-            return children == null ? Collections.EMPTY_SET : children;
+        TimeLimitedSequence(long timeout) {
+            this.timeout = timeout;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
         }
 
-        public String getId() {
-            return id;
+        TimeLimitedSequence reset(String text) {
+            this.text = text;
+            return this;
         }
 
-        public int getHandle() {
-            return handle;
+        @Override
+        public char charAt(int index) {
+            if ((++reads & 0xfff) == 0 && System.nanoTime() - deadline > 0) {
+                throw new RuntimeException("Filter took longer than " + timeout + " ms");
+            }
+            return text.charAt(index);
         }
 
         @Override
-        public int compareTo(TreeNode other) {
-            return this.name.compareTo(other.name);
+        public int length() {
+            return text.length();
         }
 
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * An open addressing hash map from (parent handle, segment) to child
+     * handle, with no per-entry objects.
+     */
+    private static class ChildIndex {
+
+        private long[] keys = new long[2048];
+        private int[] values = new int[2048];
+        private int count;
+
+        int get(int parent, int segment) {
+            long key = key(parent, segment);
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+                if (keys[i] == 0) {
+                    return -1;
+                } else if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+        }
+
+        void put(int parent, int segment, int child) {
+            if (2 * (count + 1) > keys.length) {
+                long[] oldKeys = keys;
+                int[] oldValues = values;
+                keys = new long[oldKeys.length * 2];
+                values = new int[oldValues.length * 2];
+                count = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != 0) {
+                        insert(oldKeys[i], oldValues[i]);
+                    }
+                }
+            }
+            insert(key(parent, segment), child);
+        }
+
+        private void insert(long key, int value) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            count++;
+        }
+
+        private static long key(int parent, int segment) {
+            // Segment + 1 so that no key is zero, which marks an empty slot
+            return ((long) parent << 32) | (segment + 1L);
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
     }
 }
@@ -0,0 +1,136 @@
+package org.lsst.ccs.web.trending;
+
+/**
+ * A circuit breaker for a single dataserver source. After a number of
+ * consecutive failures the breaker opens, and requests to the source fail
+ * immediately rather than each waiting for its own timeout. Once the breaker
+ * has been open for a while a single trial request is let through; if it
+ * succeeds the breaker closes again, otherwise it stays open for another
+ * period.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long opened;
+    private long rejected;
+
+    /**
+     * Create a circuit breaker.
+     *
+     * @param failureThreshold The number of consecutive failures which open
+     * the breaker
+     * @param openMillis How long the breaker stays open before a trial
+     * request is allowed
+     */
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Check whether a request would currently be rejected, without changing
+     * the state of the breaker, so that callers can fail before queueing for
+     * a connection. A rejection is counted if so.
+     */
+    synchronized boolean rejects(long now) {
+        if (state == State.HALF_OPEN || (state == State.OPEN && now < openedAt + openMillis)) {
+            rejected++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ask to make a request. Every request which is allowed must be followed
+     * by a call to either {@link #recordSuccess()} or
+     * {@link #recordFailure(long)}.
+     *
+     * @param now The current time
+     * @return <code>true</code> if the request may go ahead
+     */
+    synchronized boolean allowRequest(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now >= openedAt + openMillis) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                rejected++;
+                return false;
+            default:
+                // Only the single trial request is allowed while half open
+                rejected++;
+                return false;
+        }
+    }
+
+    synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    synchronized void recordFailure(long now) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = now;
+            opened++;
+        }
+    }
+
+    /**
+     * The time at which a trial request will next be allowed, or
+     * <code>now</code> if the breaker is closed.
+     */
+    synchronized long getRetryTime(long now) {
+        return state == State.CLOSED ? now : Math.max(now, openedAt + openMillis);
+    }
+
+    synchronized BreakerStatistics getStatistics() {
+        return new BreakerStatistics(state, consecutiveFailures, opened, rejected);
+    }
+
+    /**
+     * Circuit breaker state and counters, exposed through the REST interface.
+     */
+    static class BreakerStatistics {
+
+        private final State state;
+        private final int consecutiveFailures;
+        private final long opened;
+        private final long rejected;
+
+        BreakerStatistics(State state, int consecutiveFailures, long opened, long rejected) {
+            this.state = state;
+            this.consecutiveFailures = consecutiveFailures;
+            this.opened = opened;
+            this.rejected = rejected;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public long getOpened() {
+            return opened;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+    }
+}
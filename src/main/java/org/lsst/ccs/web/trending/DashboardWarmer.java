@@ -0,0 +1,375 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+import org.lsst.ccs.web.trending.TrendingRestInterface.Flavor;
+
+/**
+ * Keeps the data shown by the dashboards shipped with the webapp warm in the
+ * bin cache, so that opening a dashboard does not have to wait for the
+ * dataserver.
+ * <p>
+ * At startup the HTML pages of the webapp are indexed, collecting the keys of
+ * each <code>trending-plot</code> along with the site, source, range and
+ * number of bins it uses by default. Optionally the most frequent queries in
+ * an access log are added. The default window of each is then read once per
+ * interval, on the same canonical grid used by live update subscriptions, so
+ * that only the newest bins have to come from the dataserver each time.
+ */
+@WebListener
+public class DashboardWarmer implements ServletContextListener {
+
+    private static final Logger LOG = Logger.getLogger(DashboardWarmer.class.getName());
+    // Interval between warming passes, 0 to disable warming
+    private static final long WARM_INTERVAL = TimeUnit.SECONDS.toMillis(Long.getLong("org.lsst.ccs.web.trending.warm.interval", 60));
+    // An access log whose most frequent trending queries are also kept warm
+    private static final String WARM_ACCESS_LOG = System.getProperty("org.lsst.ccs.web.trending.warm.accessLog");
+    private static final int MAX_ACCESS_LOG_QUERIES = 50;
+    private static final long DEFAULT_RANGE = 24 * 3600 * 1000L;
+    private static final int DEFAULT_BINS = 100;
+    private static final Pattern CONTROLLER_PATTERN = Pattern.compile("<trending-controller\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PLOT_PATTERN = Pattern.compile("<trending-plot\\b([^>]*)>(.*?)</trending-plot>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern DATA_PATTERN = Pattern.compile("<trending-data\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("([\\w-]+)(?:\\s*=\\s*\"([^\"]*)\")?");
+    private static final Pattern DURATION_PATTERN = Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*(ms|s|m|h|d|w)?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ACCESS_LOG_PATTERN = Pattern.compile("\"GET [^\" ]*/rest(?:/([\\w-]+))?(?:/subscribe)?\\?([^\" ]*) HTTP");
+    private ScheduledExecutorService executor;
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        if (WARM_INTERVAL <= 0) {
+            return;
+        }
+        ServletContext context = event.getServletContext();
+        executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread thread = new Thread(r, "dashboard-warmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(() -> {
+            Map<String, WarmQuery> queries = new LinkedHashMap<>();
+            for (String path : findPages(context, "/")) {
+                try (InputStream in = context.getResourceAsStream(path)) {
+                    if (in != null) {
+                        merge(queries, parsePage(read(in)));
+                    }
+                } catch (IOException | RuntimeException x) {
+                    LOG.log(Level.WARNING, "Unable to index dashboard " + path, x);
+                }
+            }
+            if (WARM_ACCESS_LOG != null) {
+                try (InputStream in = new FileInputStream(WARM_ACCESS_LOG)) {
+                    merge(queries, parseAccessLog(in, MAX_ACCESS_LOG_QUERIES));
+                } catch (IOException x) {
+                    LOG.log(Level.WARNING, "Unable to read access log " + WARM_ACCESS_LOG, x);
+                }
+            }
+            LOG.log(Level.INFO, "Keeping {0} dashboard queries warm", queries.size());
+            executor.scheduleWithFixedDelay(() -> warm(queries.values()), 0, WARM_INTERVAL, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void warm(Collection<WarmQuery> queries) {
+        long now = System.currentTimeMillis();
+        int failures = 0;
+        for (WarmQuery query : queries) {
+            Site site = TrendingRestInterface.findSite(query.site);
+            if (site == null) {
+                continue;
+            }
+            // The same window as a live update subscription made now, see TrendingQuery.resolve
+            long width = BinCache.canonicalBinWidth(query.range / query.nBins);
+            long t1 = Math.floorDiv(now - query.range, width) * width;
+            long t2 = -Math.floorDiv(-now, width) * width;
+            try {
+                site.getTrendingData(new ArrayList<>(query.keys), t1, t2, (int) ((t2 - t1) / width), Flavor.STAT, query.source);
+            } catch (IOException | RuntimeException x) {
+                LOG.log(Level.FINE, "Warming failed", x);
+                failures++;
+            }
+        }
+        if (failures > 0) {
+            LOG.log(Level.WARNING, "Warming failed for {0} of {1} dashboard queries", new Object[]{failures, queries.size()});
+        }
+    }
+
+    private static List<String> findPages(ServletContext context, String directory) {
+        List<String> result = new ArrayList<>();
+        Set<String> paths = context.getResourcePaths(directory);
+        if (paths != null) {
+            for (String path : paths) {
+                if (path.endsWith("/")) {
+                    if (!path.startsWith("/WEB-INF/") && !path.startsWith("/META-INF/")) {
+                        result.addAll(findPages(context, path));
+                    }
+                } else if (path.endsWith(".html")) {
+                    result.add(path);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0;) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Combine queries which differ only in their keys.
+     */
+    private static void merge(Map<String, WarmQuery> queries, List<WarmQuery> more) {
+        for (WarmQuery query : more) {
+            WarmQuery existing = queries.putIfAbsent(query.getGroupKey(), query);
+            if (existing != null) {
+                existing.keys.addAll(query.keys);
+            }
+        }
+    }
+
+    /**
+     * Find the default queries made by the plots of a dashboard. The range,
+     * bins and source of the page's controller apply to all of its plots,
+     * unless the plot sets them itself.
+     *
+     * @param html The contents of the page
+     * @return The queries, one per plot
+     */
+    static List<WarmQuery> parsePage(String html) {
+        Map<String, String> defaults = new HashMap<>();
+        Matcher controller = CONTROLLER_PATTERN.matcher(html);
+        if (controller.find()) {
+            defaults.putAll(attributes(controller.group(1)));
+        }
+        List<WarmQuery> result = new ArrayList<>();
+        Matcher plot = PLOT_PATTERN.matcher(html);
+        while (plot.find()) {
+            Map<String, String> attributes = new HashMap<>(defaults);
+            attributes.putAll(attributes(plot.group(1)));
+            Set<String> keys = new LinkedHashSet<>();
+            Matcher data = DATA_PATTERN.matcher(plot.group(2));
+            while (data.find()) {
+                String key = attributes(data.group(1)).get("key");
+                if (key != null && !key.isEmpty()) {
+                    keys.add(key);
+                }
+            }
+            String rangeAttribute = attributes.get("range");
+            long range = rangeAttribute == null ? DEFAULT_RANGE : parseDuration(rangeAttribute);
+            int nBins = parseInt(attributes.get("nbins"), DEFAULT_BINS);
+            if (!keys.isEmpty() && range > 0 && nBins > 0) {
+                result.add(new WarmQuery(siteForRestURL(attributes.getOrDefault("resturl", "rest")), emptyToNull(attributes.get("source")), range, nBins, keys));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find the most frequent trending queries in an access log, assuming
+     * each was for a window ending at the time it was made.
+     *
+     * @param in The access log, in common log format
+     * @param maxQueries The maximum number of queries to return
+     * @return The queries
+     */
+    static List<WarmQuery> parseAccessLog(InputStream in, int maxQueries) throws IOException {
+        Map<String, WarmQuery> queries = new HashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        for (String line; (line = reader.readLine()) != null;) {
+            Matcher matcher = ACCESS_LOG_PATTERN.matcher(line);
+            if (!matcher.find()) {
+                continue;
+            }
+            Map<String, List<String>> parameters = new HashMap<>();
+            for (String parameter : matcher.group(2).split("&")) {
+                String[] nameValue = parameter.split("=", 2);
+                if (nameValue.length == 2) {
+                    parameters.computeIfAbsent(nameValue[0], (k) -> new ArrayList<>()).add(URLDecoder.decode(nameValue[1], "UTF-8"));
+                }
+            }
+            try {
+                long t1 = Long.parseLong(first(parameters, "t1"));
+                long t2 = Long.parseLong(first(parameters, "t2"));
+                int nBins = parseInt(first(parameters, "n"), DEFAULT_BINS);
+                // Round to the minute, so that the same dashboard opened at different times is counted together
+                long range = Math.round((t2 - t1) / 60000.0) * 60000;
+                List<String> keys = parameters.get("key");
+                if (keys == null || range <= 0 || nBins <= 0 || parameters.containsKey("flavor")) {
+                    continue;
+                }
+                WarmQuery query = new WarmQuery(matcher.group(1) == null ? "" : matcher.group(1), emptyToNull(first(parameters, "source")), range, nBins, new LinkedHashSet<>(keys));
+                String key = query.getGroupKey() + "|" + query.keys;
+                queries.putIfAbsent(key, query);
+                counts.merge(key, 1, Integer::sum);
+            } catch (NumberFormatException x) {
+                // Not a query for a time window
+            }
+        }
+        List<String> keys = new ArrayList<>(counts.keySet());
+        keys.sort((a, b) -> counts.get(b) - counts.get(a));
+        List<WarmQuery> result = new ArrayList<>();
+        for (String key : keys.subList(0, Math.min(maxQueries, keys.size()))) {
+            result.add(queries.get(key));
+        }
+        return result;
+    }
+
+    private static Map<String, String> attributes(String tag) {
+        Map<String, String> result = new HashMap<>();
+        Matcher matcher = ATTRIBUTE_PATTERN.matcher(tag);
+        while (matcher.find()) {
+            // HTML attribute names are case insensitive
+            result.putIfAbsent(matcher.group(1).toLowerCase(), matcher.group(2) == null ? "" : matcher.group(2));
+        }
+        return result;
+    }
+
+    /**
+     * The site used by a plot, from its rest URL, for example
+     * <code>../rest/maincamera</code>. The empty string is the default site.
+     */
+    static String siteForRestURL(String restURL) {
+        int index = restURL.lastIndexOf("rest");
+        if (index < 0) {
+            return "";
+        }
+        String site = restURL.substring(index + "rest".length());
+        return site.replaceAll("^/+|/+$", "");
+    }
+
+    /**
+     * Parse a range as used by the plots, either in milliseconds or with a
+     * unit, for example <code>3h</code>.
+     *
+     * @return The duration in milliseconds, or 0 if it cannot be parsed
+     */
+    static long parseDuration(String duration) {
+        Matcher matcher = DURATION_PATTERN.matcher(duration.trim());
+        if (!matcher.matches()) {
+            return 0;
+        }
+        double value = Double.parseDouble(matcher.group(1));
+        String unit = matcher.group(2) == null ? "ms" : matcher.group(2).toLowerCase();
+        switch (unit) {
+            case "s":
+                value *= 1000;
+                break;
+            case "m":
+                value *= 60 * 1000;
+                break;
+            case "h":
+                value *= 3600 * 1000;
+                break;
+            case "d":
+                value *= 24 * 3600 * 1000;
+                break;
+            case "w":
+                value *= 7 * 24 * 3600 * 1000;
+                break;
+            default:
+        }
+        return (long) value;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException x) {
+            return defaultValue;
+        }
+    }
+
+    private static String first(Map<String, List<String>> parameters, String name) {
+        List<String> values = parameters.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * A default query made by one or more dashboard plots.
+     */
+    static class WarmQuery {
+
+        private final String site;
+        private final String source;
+        private final long range;
+        private final int nBins;
+        private final Set<String> keys;
+
+        WarmQuery(String site, String source, long range, int nBins, Set<String> keys) {
+            this.site = site;
+            this.source = source;
+            this.range = range;
+            this.nBins = nBins;
+            this.keys = keys;
+        }
+
+        /**
+         * Queries with the same group key read the same window, and can be
+         * combined.
+         */
+        String getGroupKey() {
+            return site + "|" + source + "|" + range + "|" + nBins;
+        }
+
+        String getSite() {
+            return site;
+        }
+
+        String getSource() {
+            return source;
+        }
+
+        long getRange() {
+            return range;
+        }
+
+        int getnBins() {
+            return nBins;
+        }
+
+        Set<String> getKeys() {
+            return keys;
+        }
+    }
+}
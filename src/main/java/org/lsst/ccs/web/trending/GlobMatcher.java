@@ -0,0 +1,393 @@
+package org.lsst.ccs.web.trending;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches channel paths against a glob, one path segment at a time, with the
+ * same (case insensitive) meaning as the regular expression produced by
+ * {@link Globs#toUnixRegexPattern}. This lets the channel tree be filtered as
+ * it is walked, skipping any subtree whose path so far cannot match, without
+ * building the path of every leaf.
+ * <p>
+ * Each segment of the glob is compiled to a small nondeterministic automaton,
+ * which is run on a segment name by keeping the set of states it could be in,
+ * so matching takes time proportional to the length of the name whatever the
+ * glob. A <code>**</code> segment matches one or more path segments. The
+ * position in the glob is also kept as a set, held in a <code>long</code>
+ * with one bit per glob segment. A matcher keeps some working state, so it
+ * must only be used by one thread at a time.
+ */
+final class GlobMatcher {
+
+    private static final int MAX_SEGMENTS = 62;
+    // A null entry is a ** segment
+    private final Segment[] segments;
+
+    private GlobMatcher(Segment[] segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Compile a glob.
+     *
+     * @param glob The glob
+     * @return The matcher, or <code>null</code> if the glob cannot be matched
+     * segment by segment (because it uses <code>**</code> within a segment, or
+     * a <code>/</code> within a group or escaped), in which case it has to be
+     * matched as a regular expression against the full path
+     * @throws java.util.regex.PatternSyntaxException If the glob is invalid
+     */
+    static GlobMatcher compile(String glob) {
+        // Report errors exactly as the regular expression would
+        Pattern.compile(Globs.toUnixRegexPattern(glob));
+        List<Segment> segments = new ArrayList<>();
+        int start = 0;
+        boolean inGroup = false;
+        boolean inClass = false;
+        for (int i = 0; i <= glob.length(); i++) {
+            char c = i < glob.length() ? glob.charAt(i) : '/';
+            if (inClass) {
+                inClass = c != ']';
+            } else if (c == '\\') {
+                if (glob.charAt(++i) == '/') {
+                    return null;
+                }
+            } else if (c == '[') {
+                // Ends at the next ], and nothing within it is special
+                inClass = true;
+            } else if (c == '{') {
+                inGroup = true;
+            } else if (c == '}') {
+                inGroup = false;
+            } else if (c == '/') {
+                if (inGroup) {
+                    return null;
+                }
+                String segment = glob.substring(start, Math.min(i, glob.length()));
+                if ("**".equals(segment)) {
+                    segments.add(null);
+                } else if (segment.contains("**")) {
+                    return null;
+                } else {
+                    segments.add(new Segment(segment));
+                }
+                start = i + 1;
+            }
+        }
+        return segments.size() > MAX_SEGMENTS ? null : new GlobMatcher(segments.toArray(new Segment[segments.size()]));
+    }
+
+    /**
+     * The position before any path segment has been matched.
+     */
+    long start() {
+        return 1;
+    }
+
+    /**
+     * Match one more path segment.
+     *
+     * @param state The position so far
+     * @param name The name of the path segment
+     * @return The new position, which is 0 if no path continuing this way can
+     * match
+     */
+    long step(long state, String name) {
+        long result = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if ((state & (1L << i)) != 0) {
+                if (segments[i] == null) {
+                    result |= (1L << i) | (1L << (i + 1));
+                } else if ((result & (1L << (i + 1))) == 0 && segments[i].matches(name)) {
+                    result |= 1L << (i + 1);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether a path ending at this position matches the glob.
+     */
+    boolean matches(long state) {
+        return (state & (1L << segments.length)) != 0;
+    }
+
+    /**
+     * One segment of the glob, compiled to an automaton. Each node either
+     * consumes a character which it accepts and moves to <code>next</code>,
+     * or (for a split) moves to both <code>next</code> and <code>alt</code>
+     * (if set) without consuming anything.
+     */
+    private static class Segment {
+
+        private static final int CHAR = 0;
+        private static final int ANY = 1;
+        private static final int CLASS = 2;
+        private static final int SPLIT = 3;
+        private static final int MATCH = 4;
+
+        private int[] types = new int[16];
+        private int[] next = new int[16];
+        private int[] alt = new int[16];
+        // For CHAR the character, for CLASS the index of its ranges
+        private int[] values = new int[16];
+        // Pairs of (low, high) for each class, and whether it is negated
+        private final List<char[]> classes = new ArrayList<>();
+        private final List<Boolean> negated = new ArrayList<>();
+        private int size;
+        private final int start;
+        private final int match;
+        // A lone * matches any name
+        private final boolean any;
+        // The state sets, reused since a matcher is only used by one thread
+        private boolean[] current;
+        private boolean[] following;
+
+        Segment(String glob) {
+            int[] sequence = parse(glob, 0, glob.length());
+            match = node(MATCH, 0);
+            next[sequence[1]] = match;
+            start = sequence[0];
+            any = "*".equals(glob);
+            current = new boolean[size];
+            following = new boolean[size];
+        }
+
+        /**
+         * Compile glob[from, to) as a sequence.
+         *
+         * @return The first node and the last node, whose next is left to be
+         * linked to whatever follows
+         */
+        private int[] parse(String glob, int from, int to) {
+            int first = node(SPLIT, 0);
+            int last = first;
+            for (int i = from; i < to;) {
+                char c = glob.charAt(i++);
+                int[] piece;
+                switch (c) {
+                    case '\\':
+                        piece = single(node(CHAR, glob.charAt(i++)));
+                        break;
+                    case '?':
+                        piece = single(node(ANY, 0));
+                        break;
+                    case '*':
+                        // A split which either consumes a character and comes back, or moves on
+                        int split = node(SPLIT, 0);
+                        int any = node(ANY, 0);
+                        alt[split] = any;
+                        next[any] = split;
+                        piece = single(split);
+                        break;
+                    case '[':
+                        i = parseClass(glob, i);
+                        piece = single(node(CLASS, classes.size() - 1));
+                        break;
+                    case '{':
+                        int end = groupEnd(glob, i);
+                        piece = parseGroup(glob, i, end);
+                        i = end + 1;
+                        break;
+                    default:
+                        piece = single(node(CHAR, c));
+                }
+                next[last] = piece[0];
+                last = piece[1];
+            }
+            return new int[]{first, last};
+        }
+
+        private static int[] single(int node) {
+            return new int[]{node, node};
+        }
+
+        /**
+         * Compile the alternatives of a group {a,b,...} found between from
+         * and the closing brace at end, as splits leading to each of them,
+         * all of which lead on to a single node.
+         */
+        private int[] parseGroup(String glob, int from, int end) {
+            int join = node(SPLIT, 0);
+            int first = -1;
+            int previous = -1;
+            int start = from;
+            for (int i = from; i <= end; i = skip(glob, i)) {
+                if (i == end || glob.charAt(i) == ',') {
+                    int[] alternative = parse(glob, start, i);
+                    next[alternative[1]] = join;
+                    int split = node(SPLIT, 0);
+                    next[split] = alternative[0];
+                    if (previous < 0) {
+                        first = split;
+                    } else {
+                        alt[previous] = split;
+                    }
+                    previous = split;
+                    start = i + 1;
+                }
+            }
+            return new int[]{first, join};
+        }
+
+        /**
+         * The index of the brace closing a group whose content starts at i.
+         */
+        private static int groupEnd(String glob, int i) {
+            while (glob.charAt(i) != '}') {
+                i = skip(glob, i);
+            }
+            return i;
+        }
+
+        /**
+         * The index after the character, escape or class starting at i.
+         */
+        private static int skip(String glob, int i) {
+            char c = glob.charAt(i);
+            if (c == '\\') {
+                return i + 2;
+            } else if (c == '[') {
+                return glob.indexOf(']', i + 1) + 1;
+            } else {
+                return i + 1;
+            }
+        }
+
+        /**
+         * Parse a character class starting after its opening bracket,
+         * following the rules of {@link Globs}. The glob has already been
+         * checked, so this does no checking of its own.
+         *
+         * @return The index after the closing bracket
+         */
+        private int parseClass(String glob, int i) {
+            StringBuilder ranges = new StringBuilder();
+            boolean negate = false;
+            if (glob.charAt(i) == '^') {
+                ranges.append("^^");
+                i++;
+            } else {
+                if (glob.charAt(i) == '!') {
+                    negate = true;
+                    i++;
+                }
+                if (glob.charAt(i) == '-') {
+                    ranges.append("--");
+                    i++;
+                }
+            }
+            while (true) {
+                char c = glob.charAt(i++);
+                if (c == ']') {
+                    break;
+                } else if (c == '-') {
+                    char high = glob.charAt(i++);
+                    if (high == ']') {
+                        ranges.append("--");
+                        break;
+                    }
+                    ranges.setCharAt(ranges.length() - 1, high);
+                } else {
+                    ranges.append(c).append(c);
+                }
+            }
+            char[] chars = new char[ranges.length()];
+            ranges.getChars(0, chars.length, chars, 0);
+            classes.add(chars);
+            negated.add(negate);
+            return i;
+        }
+
+        private int node(int type, int value) {
+            if (size == types.length) {
+                int capacity = size * 2;
+                types = Arrays.copyOf(types, capacity);
+                next = Arrays.copyOf(next, capacity);
+                alt = Arrays.copyOf(alt, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            types[size] = type;
+            values[size] = value;
+            next[size] = -1;
+            alt[size] = -1;
+            return size++;
+        }
+
+        boolean matches(String name) {
+            if (any) {
+                return name.indexOf('/') < 0;
+            }
+            Arrays.fill(current, false);
+            Arrays.fill(following, false);
+            add(current, start);
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                boolean live = false;
+                for (int node = 0; node < size; node++) {
+                    if (current[node] && accepts(node, c)) {
+                        add(following, next[node]);
+                        live = true;
+                    }
+                }
+                if (!live) {
+                    return false;
+                }
+                boolean[] swap = current;
+                current = following;
+                following = swap;
+                Arrays.fill(following, false);
+            }
+            return current[match];
+        }
+
+        /**
+         * Add a node to a state set, following splits.
+         */
+        private void add(boolean[] set, int node) {
+            if (node < 0 || set[node]) {
+                return;
+            }
+            set[node] = true;
+            if (types[node] == SPLIT) {
+                add(set, next[node]);
+                add(set, alt[node]);
+            }
+        }
+
+        private boolean accepts(int node, char c) {
+            switch (types[node]) {
+                case ANY:
+                    return c != '/';
+                case CHAR:
+                    return lower((char) values[node]) == lower(c);
+                case CLASS:
+                    char[] ranges = classes.get(values[node]);
+                    boolean in = false;
+                    for (int r = 0; r < ranges.length && !in; r += 2) {
+                        in = inRange(ranges[r], ranges[r + 1], c) || inRange(ranges[r], ranges[r + 1], lower(c)) || inRange(ranges[r], ranges[r + 1], upper(c));
+                    }
+                    return in != negated.get(values[node]);
+                default:
+                    return false;
+            }
+        }
+
+        private static boolean inRange(char low, char high, char c) {
+            return c >= low && c <= high;
+        }
+
+        // Case is ignored for ASCII letters only, as it is by Pattern.CASE_INSENSITIVE
+        private static char lower(char c) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+
+        private static char upper(char c) {
+            return c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+        }
+    }
+}
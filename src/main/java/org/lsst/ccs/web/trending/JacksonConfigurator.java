@@ -7,12 +7,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import java.io.IOException;
-import java.util.Map;
+import java.util.List;
 import javax.ws.rs.Produces;
 import javax.ws.rs.ext.ContextResolver;
 import javax.ws.rs.ext.Provider;
 import org.lsst.ccs.web.trending.ChannelTree.TreeNode;
-import org.lsst.ccs.web.trending.MergedMap.Bin;
 import org.lsst.ccs.web.trending.TrendingRestInterface.ErrorBars;
 
 /**
@@ -24,13 +23,42 @@ import org.lsst.ccs.web.trending.TrendingRestInterface.ErrorBars;
 @Produces("application/json")
 public class JacksonConfigurator implements ContextResolver<ObjectMapper> {
 
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final ObjectMapper mapper = createObjectMapper();
 
-    public JacksonConfigurator() {
+    /**
+     * Create an object mapper with our custom serializers registered. Used by
+     * the provider, and by code which writes JSON directly to the response.
+     *
+     * @return The new object mapper
+     */
+    static ObjectMapper createObjectMapper() {
+        ObjectMapper mapper = new ObjectMapper();
         SimpleModule module = new SimpleModule();
         module.addSerializer(MergedMap.class, new MergedMapSerializer());
         module.addSerializer(TreeNode.class, new TreeNodeSerializer());
         mapper.registerModule(module);
+        return mapper;
+    }
+
+    /**
+     * Write the value of a single bin, in the form expected by dygraphs for
+     * the given type of error bars.
+     */
+    static void writeBin(JsonGenerator jgen, ErrorBars errorBars, double value, double rms, double min, double max) throws IOException {
+        if (errorBars == ErrorBars.NONE) {
+            jgen.writeNumber(value);
+        } else {
+            jgen.writeStartArray();
+            if (errorBars == ErrorBars.MINMAX) {
+                jgen.writeNumber(min);
+                jgen.writeNumber(value);
+                jgen.writeNumber(max);
+            } else {
+                jgen.writeNumber(value);
+                jgen.writeNumber(rms);
+            }
+            jgen.writeEndArray();
+        }
     }
 
     @Override
@@ -42,31 +70,22 @@ public class JacksonConfigurator implements ContextResolver<ObjectMapper> {
 
         @Override
         public void serialize(MergedMap mergedMap, JsonGenerator jgen, SerializerProvider provider) throws IOException, JsonProcessingException {
-            Map<Long, Bin[]> map = mergedMap.getMap();
+            final List<TrendingSeries> sets = mergedMap.getSets();
             jgen.writeStartArray();
-            for (Map.Entry<Long, Bin[]> entry : map.entrySet()) {
+            mergedMap.forEachRow((time, indices) -> {
                 jgen.writeStartArray();
-                jgen.writeNumber(entry.getKey());
-                for (Bin a : entry.getValue()) {
-                    if (a == null) {
+                jgen.writeNumber(time);
+                for (int s = 0; s < indices.length; s++) {
+                    int i = indices[s];
+                    if (i < 0) {
                         jgen.writeNull();
-                    } else if (mergedMap.getErrorBars() == ErrorBars.NONE) {
-                        jgen.writeNumber(a.getValue());
                     } else {
-                        jgen.writeStartArray();
-                        if (mergedMap.getErrorBars() == ErrorBars.MINMAX) {
-                            jgen.writeNumber(a.getMin());
-                            jgen.writeNumber(a.getValue());
-                            jgen.writeNumber(a.getMax());
-                        } else {
-                            jgen.writeNumber(a.getValue());
-                            jgen.writeNumber(a.getRMS());
-                        }
-                        jgen.writeEndArray();
+                        TrendingSeries set = sets.get(s);
+                        writeBin(jgen, mergedMap.getErrorBars(), set.getValue(i), set.getRMS(i), set.getMin(i), set.getMax(i));
                     }
                 }
                 jgen.writeEndArray();
-            }
+            });
             jgen.writeEndArray();
         }
     }
@@ -81,7 +100,7 @@ public class JacksonConfigurator implements ContextResolver<ObjectMapper> {
             if (t.getId() != null) {
                 jg.writeStringField("data", t.getId());
             }
-            jg.writeBooleanField("children", !t.getChildren().isEmpty());
+            jg.writeBooleanField("children", t.hasChildren());
             jg.writeEndObject();
         }
     }
@@ -0,0 +1,216 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lsst.ccs.web.trending.TrendingRestInterface.Flavor;
+
+/**
+ * Pushes new bins to subscribed clients. Rather than every open plot polling
+ * the dataserver for itself, subscriptions to the same source and bin grid are
+ * grouped into a feed, and each feed is read once per interval, for the union
+ * of the channels of its subscribers. The new bins are then handed to every
+ * subscriber of the feed.
+ * <p>
+ * Each read starts from the bin containing the time one interval ago, since
+ * the most recent bins may still change as data arrives at the dataserver.
+ */
+class LiveUpdates implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(LiveUpdates.class.getName());
+    private final Site site;
+    private final long interval;
+    private final ScheduledExecutorService executor;
+    private final Map<String, Feed> feeds = new HashMap<>();
+    private long polls;
+    private long pushes;
+    private long failures;
+
+    /**
+     * Receives the updates for a subscription.
+     */
+    interface Subscriber {
+
+        List<String> getKeys();
+
+        /**
+         * Called once per interval with the bins read for the feed.
+         *
+         * @param from The start of the window read, on the bin grid
+         * @param to The end of the window read, on the bin grid
+         * @param data The bins read for each channel of the feed, which may
+         * include channels of other subscribers
+         * @throws IOException If the update cannot be delivered, in which case
+         * the subscription is dropped
+         */
+        void update(long from, long to, Map<String, TrendingSeries> data) throws IOException;
+    }
+
+    LiveUpdates(Site site, long interval) {
+        this.site = site;
+        this.interval = interval;
+        executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread thread = new Thread(r, "live-" + site.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::poll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a subscription. Its first update is at the next poll of its feed.
+     *
+     * @param source The source
+     * @param width The bin width, which should be a canonical width so that
+     * the grid is shared with other subscribers
+     * @param subscriber The subscriber
+     */
+    synchronized void subscribe(String source, long width, Subscriber subscriber) {
+        long next = Math.floorDiv(System.currentTimeMillis() - interval, width) * width;
+        Feed feed = feeds.computeIfAbsent(source + ":" + width, (k) -> new Feed(source, width, next));
+        feed.next = Math.min(feed.next, next);
+        feed.subscribers.add(subscriber);
+    }
+
+    synchronized void unsubscribe(Subscriber subscriber) {
+        feeds.values().removeIf((feed) -> feed.subscribers.remove(subscriber) && feed.subscribers.isEmpty());
+    }
+
+    private void poll() {
+        List<Feed> toPoll;
+        synchronized (this) {
+            toPoll = new ArrayList<>(feeds.values());
+        }
+        for (Feed feed : toPoll) {
+            try {
+                poll(feed);
+            } catch (IOException | RuntimeException x) {
+                LOG.log(Level.WARNING, "Live update failed for " + site.getName() + " " + feed.source, x);
+                synchronized (this) {
+                    failures++;
+                }
+            }
+        }
+    }
+
+    private void poll(Feed feed) throws IOException {
+        Set<String> keys = new LinkedHashSet<>();
+        for (Subscriber subscriber : feed.subscribers) {
+            keys.addAll(subscriber.getKeys());
+        }
+        long from;
+        synchronized (this) {
+            from = feed.next;
+        }
+        long now = System.currentTimeMillis();
+        long to = -Math.floorDiv(-now, feed.width) * feed.width;
+        List<String> keyList = new ArrayList<>(keys);
+        List<TrendingSeries> series = site.getTrendingData(keyList, from, to, (int) ((to - from) / feed.width), Flavor.STAT, feed.source);
+        Map<String, TrendingSeries> data = new HashMap<>();
+        for (int i = 0; i < keyList.size(); i++) {
+            data.put(keyList.get(i), series.get(i));
+        }
+        int delivered = 0;
+        for (Subscriber subscriber : feed.subscribers) {
+            try {
+                subscriber.update(from, to, data);
+                delivered++;
+            } catch (IOException x) {
+                LOG.log(Level.FINE, "Dropping live subscription", x);
+                unsubscribe(subscriber);
+            }
+        }
+        synchronized (this) {
+            polls++;
+            pushes += delivered;
+            // Unless a new subscriber has asked for earlier bins in the meantime
+            if (feed.next == from) {
+                feed.next = Math.max(from, Math.floorDiv(now - interval, feed.width) * feed.width);
+            }
+        }
+    }
+
+    synchronized LiveStatistics getStatistics() {
+        int subscribers = 0;
+        for (Feed feed : feeds.values()) {
+            subscribers += feed.subscribers.size();
+        }
+        return new LiveStatistics(feeds.size(), subscribers, polls, pushes, failures, interval);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static class Feed {
+
+        private final String source;
+        private final long width;
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        // The start of the next window to read
+        private long next;
+
+        Feed(String source, long width, long next) {
+            this.source = source;
+            this.width = width;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Live update counters, exposed through the REST interface.
+     */
+    static class LiveStatistics {
+
+        private final int feeds;
+        private final int subscribers;
+        private final long polls;
+        private final long pushes;
+        private final long failures;
+        private final long interval;
+
+        LiveStatistics(int feeds, int subscribers, long polls, long pushes, long failures, long interval) {
+            this.feeds = feeds;
+            this.subscribers = subscribers;
+            this.polls = polls;
+            this.pushes = pushes;
+            this.failures = failures;
+            this.interval = interval;
+        }
+
+        public int getFeeds() {
+            return feeds;
+        }
+
+        public int getSubscribers() {
+            return subscribers;
+        }
+
+        public long getPolls() {
+            return polls;
+        }
+
+        public long getPushes() {
+            return pushes;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getInterval() {
+            return interval;
+        }
+    }
+}
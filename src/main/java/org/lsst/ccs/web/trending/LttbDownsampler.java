@@ -0,0 +1,206 @@
+package org.lsst.ccs.web.trending;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.lsst.ccs.web.trending.TrendingRestInterface.TrendingPerSeriesMetaData;
+
+/**
+ * Reduces RAW trending data to at most one point per time bucket, as the
+ * dataserver reply is parsed, using the Largest-Triangle-Three-Buckets
+ * algorithm. The window is divided into equal time buckets, and from each
+ * bucket the sample which forms the largest triangle with the point chosen
+ * from the previous bucket and the average of the next bucket is kept, which
+ * preserves the visual shape of the data far better than averaging.
+ * <p>
+ * Since LTTB keeps a single sample per bucket, a narrow spike can still be
+ * lost, so each point also carries the min, max and rms of all the samples in
+ * its bucket, which are shown if the client asks for error bars.
+ * <p>
+ * Only two buckets per series are held at a time, so the memory used does not
+ * depend on the length of the reply.
+ */
+class LttbDownsampler implements TrendingDataParser.Sink {
+
+    private final long t1;
+    private final long t2;
+    private final int nBuckets;
+    private final SeriesState[] states;
+    private final List<TrendingSeries> result;
+
+    /**
+     * Create a downsampler.
+     *
+     * @param nSeries The number of channels in the reply
+     * @param t1 The start of the window
+     * @param t2 The end of the window
+     * @param nBuckets The number of buckets, and so the maximum number of
+     * points per series
+     */
+    LttbDownsampler(int nSeries, long t1, long t2, int nBuckets) {
+        this.t1 = t1;
+        this.t2 = t2;
+        this.nBuckets = Math.max(1, nBuckets);
+        this.states = new SeriesState[nSeries];
+        this.result = new ArrayList<>(nSeries);
+        for (int i = 0; i < nSeries; i++) {
+            TrendingSeries series = new TrendingSeries(Math.min(this.nBuckets, 4096));
+            states[i] = new SeriesState(series);
+            result.add(series);
+        }
+    }
+
+    @Override
+    public void addBin(int series, long time, double value, double rms, double min, double max) {
+        if (!Double.isNaN(value)) {
+            states[series].add(bucketOf(time), time, value);
+        }
+    }
+
+    @Override
+    public void addMetaData(int series, TrendingPerSeriesMetaData meta) {
+        result.get(series).setMeta(meta);
+    }
+
+    /**
+     * Complete the downsampling once the whole reply has been parsed.
+     *
+     * @return One series per channel, in the order in which they were
+     * requested
+     */
+    List<TrendingSeries> finish() {
+        for (SeriesState state : states) {
+            state.finish();
+        }
+        return result;
+    }
+
+    private int bucketOf(long time) {
+        if (t2 <= t1) {
+            return 0;
+        }
+        long bucket = Math.floorDiv((time - t1) * nBuckets, t2 - t1);
+        return (int) Math.max(0, Math.min(nBuckets - 1, bucket));
+    }
+
+    /**
+     * The samples of one bucket, with times relative to <code>t1</code> so
+     * that the triangle areas do not lose precision.
+     */
+    private static class Bucket {
+
+        private int index;
+        private long[] times = new long[16];
+        private double[] values = new double[16];
+        private int size;
+        private double min;
+        private double max;
+        private double sum;
+        private double sumSquares;
+        private double sumTimes;
+
+        void reset(int index) {
+            this.index = index;
+            size = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+            sum = sumSquares = sumTimes = 0;
+        }
+
+        void add(long time, double value) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            times[size] = time;
+            values[size] = value;
+            size++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            sumSquares += value * value;
+            sumTimes += time;
+        }
+
+        double meanTime() {
+            return sumTimes / size;
+        }
+
+        double meanValue() {
+            return sum / size;
+        }
+
+        double rms() {
+            double mean = sum / size;
+            return Math.sqrt(Math.max(0, sumSquares / size - mean * mean));
+        }
+    }
+
+    private class SeriesState {
+
+        private final TrendingSeries out;
+        // The complete bucket waiting for the average of the next one
+        private Bucket pending = new Bucket();
+        // The bucket currently being filled
+        private Bucket current = new Bucket();
+        private boolean haveSelected;
+        private double selectedTime;
+        private double selectedValue;
+
+        SeriesState(TrendingSeries out) {
+            this.out = out;
+        }
+
+        void add(int bucket, long time, double value) {
+            if (current.size > 0 && bucket != current.index) {
+                if (pending.size > 0) {
+                    select(pending, current.meanTime(), current.meanValue());
+                }
+                Bucket swap = pending;
+                pending = current;
+                current = swap;
+                current.size = 0;
+            }
+            if (current.size == 0) {
+                current.reset(bucket);
+            }
+            current.add(time - t1, value);
+        }
+
+        void finish() {
+            if (pending.size > 0) {
+                if (current.size > 0) {
+                    select(pending, current.meanTime(), current.meanValue());
+                } else {
+                    select(pending, pending.times[pending.size - 1], pending.values[pending.size - 1]);
+                }
+            }
+            if (current.size > 0) {
+                select(current, current.times[current.size - 1], current.values[current.size - 1]);
+            }
+            pending.size = current.size = 0;
+        }
+
+        /**
+         * Keep the sample from the bucket which forms the largest triangle
+         * with the previously selected point and the given point.
+         */
+        private void select(Bucket bucket, double nextTime, double nextValue) {
+            double aTime = haveSelected ? selectedTime : bucket.times[0];
+            double aValue = haveSelected ? selectedValue : bucket.values[0];
+            int best = 0;
+            double bestArea = -1;
+            for (int i = 0; i < bucket.size; i++) {
+                double area = Math.abs((aTime - nextTime) * (bucket.values[i] - aValue) - (aTime - bucket.times[i]) * (nextValue - aValue));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = i;
+                }
+            }
+            selectedTime = bucket.times[best];
+            selectedValue = bucket.values[best];
+            haveSelected = true;
+            out.add(bucket.times[best] + t1, selectedValue, bucket.rms(), bucket.min, bucket.max);
+        }
+    }
+}
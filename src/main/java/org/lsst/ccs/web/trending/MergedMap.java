@@ -1,71 +1,89 @@
 package org.lsst.ccs.web.trending;
 
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import org.lsst.ccs.web.trending.TrendingRestInterface.ErrorBars;
 
 /**
- * A special map for building CSV files from sets of trending data
+ * A special map for building CSV files from sets of trending data. Each set
+ * is kept as its own time ordered {@link TrendingSeries}, and the rows of the
+ * merged table are produced on demand by a k-way merge of the sets, so no
+ * per-row objects are ever created.
  *
  * @author tonyj
  */
 class MergedMap {
 
-    private final SortedMap<Long, Bin[]> map = new TreeMap<>();
-    private final int nSets;
+    private final List<TrendingSeries> sets;
     private final ErrorBars errorBars;
 
-    public MergedMap(int nSets, ErrorBars errorBars) {
-        this.nSets = nSets;
+    public MergedMap(List<TrendingSeries> sets, ErrorBars errorBars) {
+        this.sets = sets;
         this.errorBars = errorBars;
     }
 
-    void put(String timeString, String valueString, String rmsString, String minString, String maxString, int axis) {
-        long time = Long.parseLong(timeString);
-        Bin[] bins = map.get(time);
-        if (bins == null) {
-            bins = new Bin[nSets];
-            map.put(time, bins);
-        }
-        bins[axis] = new Bin(valueString, rmsString, minString, maxString);
-    }
-
-    public SortedMap<Long, Bin[]> getMap() {
-        return map;
-    }
+    /**
+     * Receives the rows of the merged table.
+     */
+    interface RowConsumer {
 
-    public ErrorBars getErrorBars() {
-        return errorBars;
+        /**
+         * Called once per distinct time, in time order.
+         *
+         * @param time The time of the row
+         * @param indices For each set, the index of the bin at this time, or
+         * -1 if the set has no bin at this time. The array is reused between
+         * calls.
+         * @throws IOException If the consumer fails
+         */
+        void accept(long time, int[] indices) throws IOException;
     }
 
-    static class Bin {
-        private final double value;
-        private final double rms;
-        private final double min;
-        private final double max;
-
-        private Bin(String valueString, String rmsString, String minString, String maxString) {
-           value = Double.parseDouble(valueString);
-           rms = Double.parseDouble(rmsString);
-           min = Double.parseDouble(minString);
-           max = Double.parseDouble(maxString);
-        }
-
-        double getValue() {
-            return value;
+    void forEachRow(RowConsumer consumer) throws IOException {
+        final int nSets = sets.size();
+        int[] cursors = new int[nSets];
+        int[] indices = new int[nSets];
+        for (;;) {
+            long time = Long.MAX_VALUE;
+            boolean found = false;
+            for (int s = 0; s < nSets; s++) {
+                TrendingSeries set = sets.get(s);
+                if (cursors[s] < set.size() && (!found || set.getTime(cursors[s]) < time)) {
+                    time = set.getTime(cursors[s]);
+                    found = true;
+                }
+            }
+            if (!found) {
+                return;
+            }
+            Arrays.fill(indices, -1);
+            for (int s = 0; s < nSets; s++) {
+                TrendingSeries set = sets.get(s);
+                if (cursors[s] < set.size() && set.getTime(cursors[s]) == time) {
+                    indices[s] = cursors[s]++;
+                }
+            }
+            consumer.accept(time, indices);
         }
+    }
 
-        double getRMS() {
-            return rms;
+    /**
+     * A hash of the contents of the table, used to build entity tags.
+     */
+    long hash() {
+        long hash = errorBars.ordinal();
+        for (TrendingSeries set : sets) {
+            hash = set.hash(hash);
         }
+        return hash;
+    }
 
-        double getMin() {
-            return min;
-        }
+    List<TrendingSeries> getSets() {
+        return sets;
+    }
 
-        double getMax() {
-            return max;
-        }
-        
+    public ErrorBars getErrorBars() {
+        return errorBars;
     }
 }
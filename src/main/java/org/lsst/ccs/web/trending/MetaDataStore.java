@@ -0,0 +1,82 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import org.lsst.ccs.web.trending.TrendingRestInterface.TrendingPerSeriesMetaData;
+
+/**
+ * Keeps the last channel metadata read from the dataserver in local files,
+ * one properties file per channel, so that data served from a persistent
+ * store after a restart still has its units etc.
+ */
+class MetaDataStore {
+
+    private final File directory;
+    private final Map<String, TrendingPerSeriesMetaData> metaData = new HashMap<>();
+
+    MetaDataStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the stored metadata for a channel.
+     *
+     * @return The metadata, or <code>null</code> if none has been stored
+     */
+    synchronized TrendingPerSeriesMetaData get(String key) throws IOException {
+        TrendingPerSeriesMetaData meta = metaData.get(key);
+        if (meta == null) {
+            File file = file(key);
+            if (file.exists()) {
+                Properties properties = new Properties();
+                try (InputStream in = new FileInputStream(file)) {
+                    properties.load(in);
+                }
+                meta = new TrendingPerSeriesMetaData(properties.getProperty("units"), properties.getProperty("format"),
+                        properties.getProperty("description"), properties.getProperty("state"));
+                metaData.put(key, meta);
+            }
+        }
+        return meta;
+    }
+
+    /**
+     * Store the metadata for a channel, if it has changed.
+     */
+    synchronized void put(String key, TrendingPerSeriesMetaData meta) throws IOException {
+        TrendingPerSeriesMetaData old = get(key);
+        if (old != null && Objects.equals(old.getUnits(), meta.getUnits()) && Objects.equals(old.getFormat(), meta.getFormat())
+                && Objects.equals(old.getDescription(), meta.getDescription()) && Objects.equals(old.getState(), meta.getState())) {
+            return;
+        }
+        Properties properties = new Properties();
+        putIfNotNull(properties, "units", meta.getUnits());
+        putIfNotNull(properties, "format", meta.getFormat());
+        putIfNotNull(properties, "description", meta.getDescription());
+        putIfNotNull(properties, "state", meta.getState());
+        File file = file(key);
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+        metaData.put(key, meta);
+    }
+
+    private static void putIfNotNull(Properties properties, String name, String value) {
+        if (value != null) {
+            properties.setProperty(name, value);
+        }
+    }
+
+    private File file(String key) {
+        return new File(directory, key.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties");
+    }
+}
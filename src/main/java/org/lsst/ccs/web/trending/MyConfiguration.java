@@ -2,7 +2,10 @@ package org.lsst.ccs.web.trending;
 
 import javax.ws.rs.ApplicationPath;
 import org.glassfish.jersey.jackson.JacksonFeature;
+import org.glassfish.jersey.message.DeflateEncoder;
+import org.glassfish.jersey.message.GZipEncoder;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.filter.EncodingFilter;
 
 /**
  *
@@ -16,5 +19,7 @@ public final class MyConfiguration extends ResourceConfig {
         register(TrendingRestInterface.class);
         register(JacksonFeature.class);
         register(JacksonConfigurator.class);
+        // Compress responses for clients which send Accept-Encoding
+        EncodingFilter.enableFor(this, GZipEncoder.class, DeflateEncoder.class);
     }
 }
@@ -0,0 +1,511 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lsst.ccs.web.trending.TrendingRestInterface.TrendingPerSeriesMetaData;
+
+/**
+ * A persistent store of binned trending data at a few fixed resolutions
+ * ("tiers"), for a single dataserver source, kept in local files. It is used
+ * to answer long range queries, which would otherwise read months of data
+ * from the dataserver each time.
+ * <p>
+ * Each tier of each channel is a file of fixed size records, one per bin of
+ * the tier, starting at a multiple of the bin width. Bins are only stored once
+ * they are final (older than <code>finalAfter</code>, which should be long
+ * enough for late data to have reached the dataserver), and are never read
+ * again. The first time bins of a tier are needed they are rolled up from a
+ * finer tier, if the store already holds it for the same window, and
+ * otherwise read from the dataserver at the resolution of the tier. That read
+ * can be up to <code>MAX_BINS_PER_QUERY_BIN</code> times larger than the
+ * query itself, but is only made once. Bins are never evicted, but any of the
+ * files can be deleted at any time (with the webapp stopped), and will be
+ * rebuilt as needed.
+ * <p>
+ * The dataserver does not report the number of samples in each bin, so when
+ * the bins of a tier are combined into wider bins each non-empty bin is given
+ * the same weight.
+ */
+class RollupStore {
+
+    private static final Logger LOG = Logger.getLogger(RollupStore.class.getName());
+    private static final int MAGIC = 0x43435352; // "CCSR"
+    private static final int VERSION = 1;
+    // magic, version, bin width, index of the first bin
+    private static final int HEADER_SIZE = 24;
+    // time, value, rms, min, max, count, padding
+    private static final int RECORD_SIZE = 48;
+    private static final int NOT_READ = -1;
+    // Minimum number of tier bins in each bin of a query which is not aligned with the tier
+    private static final int MIN_BINS_PER_QUERY_BIN = 10;
+    // Maximum number of tier bins for each bin of a query, which bounds how much more than the query
+    // itself the first read of a window of a tier can cost, and the number of finer tier bins read to
+    // roll up each bin of a coarser tier
+    private static final int MAX_BINS_PER_QUERY_BIN = 60;
+    private static final int LOCKS = 64;
+
+    private final File directory;
+    private final long[] tiers;
+    private final long finalAfter;
+    private final MetaDataStore metaData;
+    // Each file is guarded by one of these, so that different channels can be read and written
+    // at the same time
+    private final Object[] locks = new Object[LOCKS];
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong binsRead = new AtomicLong();
+    private final AtomicLong binsStored = new AtomicLong();
+    private final AtomicLong binsRolledUp = new AtomicLong();
+
+    /**
+     * Create a store.
+     *
+     * @param directory The directory in which to keep the files
+     * @param tiers The bin widths of the tiers, in milliseconds
+     * @param finalAfter The time after which a bin is considered final
+     */
+    RollupStore(File directory, long[] tiers, long finalAfter) {
+        this.directory = directory;
+        this.tiers = tiers.clone();
+        Arrays.sort(this.tiers);
+        this.finalAfter = finalAfter;
+        this.metaData = new MetaDataStore(new File(directory, "meta"));
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Choose the tier from which to serve a query. This is the coarsest tier
+     * whose bins fit exactly into the bins of the query, or failing that the
+     * coarsest tier which has at least <code>MIN_BINS_PER_QUERY_BIN</code>
+     * bins for each bin of the query, so that the query bin edges are only
+     * slightly blurred. In either case the tier must not have more than
+     * <code>MAX_BINS_PER_QUERY_BIN</code> bins for each bin of the query, so
+     * the tiers should be close enough together that every bin width of
+     * interest has a suitable tier.
+     *
+     * @param t1 The start of the query
+     * @param width The bin width of the query
+     * @return The bin width of the tier, or 0 if no tier is suitable
+     */
+    long tierFor(long t1, long width) {
+        for (int i = tiers.length - 1; i >= 0 && tiers[i] * MAX_BINS_PER_QUERY_BIN >= width; i--) {
+            if (width % tiers[i] == 0 && Math.floorMod(t1, tiers[i]) == 0) {
+                return tiers[i];
+            }
+        }
+        for (int i = tiers.length - 1; i >= 0; i--) {
+            if (tiers[i] * MIN_BINS_PER_QUERY_BIN <= width) {
+                return tiers[i] * MAX_BINS_PER_QUERY_BIN >= width ? tiers[i] : 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The end of the last bin of a tier which is final at the given time.
+     */
+    long stableTo(long tier, long now) {
+        return Math.floorDiv(now - finalAfter, tier) * tier;
+    }
+
+    /**
+     * Read the stored bins of a tier for a channel.
+     *
+     * @param key The channel id
+     * @param tier The bin width of the tier
+     * @param from The start of the first bin, on the tier grid
+     * @param to The end of the last bin, on the tier grid
+     * @return The bins, including any which have not yet been read from the
+     * dataserver
+     * @throws IOException If the file cannot be read
+     */
+    TierData read(String key, long tier, long from, long to) throws IOException {
+        TierData data = new TierData(from, tier, (int) ((to - from) / tier));
+        File file = file(key, tier);
+        synchronized (lockFor(file)) {
+            read(file, tier, from, to, data);
+        }
+        binsRead.addAndGet(data.size);
+        return data;
+    }
+
+    private static void read(File file, long tier, long from, long to, TierData data) throws IOException {
+        if (file.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                long first = readHeader(raf, tier);
+                if (first != Long.MIN_VALUE) {
+                    long count = (raf.length() - HEADER_SIZE) / RECORD_SIZE;
+                    long start = Math.max(first, from / tier);
+                    long end = Math.min(first + count, to / tier);
+                    if (end > start) {
+                        byte[] bytes = new byte[(int) ((end - start) * RECORD_SIZE)];
+                        raf.seek(HEADER_SIZE + (start - first) * RECORD_SIZE);
+                        raf.readFully(bytes);
+                        data.decode(ByteBuffer.wrap(bytes), (int) (start - from / tier), (int) (end - start));
+                    }
+                } else {
+                    LOG.log(Level.WARNING, "Ignoring invalid rollup file {0}", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Store bins read from the dataserver, or rolled up from a finer tier.
+     *
+     * @param key The channel id
+     * @param tier The bin width of the tier
+     * @param from The start of the window which was read, on the tier grid
+     * @param to The end of the window which was read, on the tier grid, which
+     * must not be after {@link #stableTo}
+     * @param series The bins which were read
+     * @throws IOException If the file cannot be written
+     */
+    void store(String key, long tier, long from, long to, TrendingSeries series) throws IOException {
+        TierData data = new TierData(from, tier, (int) ((to - from) / tier));
+        Arrays.fill(data.counts, 0);
+        for (int i = 0; i < series.size(); i++) {
+            long index = Math.floorDiv(series.getTime(i) - from, tier);
+            if (index >= 0 && index < data.size) {
+                data.set((int) index, series.getTime(i), series.getValue(i), series.getRMS(i), series.getMin(i), series.getMax(i), 1);
+            }
+        }
+        byte[] records = data.encode();
+        File file = file(key, tier);
+        synchronized (lockFor(file)) {
+            write(file, tier, from / tier, records);
+        }
+        binsStored.addAndGet(data.size);
+        if (series.getMeta() != null) {
+            metaData.put(key, series.getMeta());
+        }
+    }
+
+    /**
+     * Fill in bins of a tier which have not been read, by rolling up the bins
+     * of finer tiers which the store already holds. Each finer tier is only
+     * used where it covers whole bins of the tier, and the rest of the window
+     * is left to be read from the dataserver.
+     *
+     * @param key The channel id
+     * @param tier The bin width of the tier
+     * @param from The start of the window, on the tier grid
+     * @param to The end of the window, on the tier grid, which must not be
+     * after {@link #stableTo}
+     * @return The part of the window which is still missing, as
+     * <code>{from, to}</code>, empty if <code>from &gt;= to</code>
+     * @throws IOException If a file cannot be read or written
+     */
+    long[] rollUp(String key, long tier, long from, long to) throws IOException {
+        for (int i = tiers.length - 1; i >= 0 && from < to; i--) {
+            long finer = tiers[i];
+            if (finer >= tier || tier % finer != 0 || tier / finer > MAX_BINS_PER_QUERY_BIN) {
+                continue;
+            }
+            TierData data = read(key, finer, from, to);
+            // Whole tier bins before the first, and after the last, finer bin which is missing
+            long missingFrom = data.getMissingFrom();
+            long head = missingFrom == Long.MAX_VALUE ? to : from + Math.floorDiv(missingFrom - from, tier) * tier;
+            long tail = missingFrom == Long.MAX_VALUE ? to : from - Math.floorDiv(from - data.getMissingTo(), tier) * tier;
+            if (head > from) {
+                storeRollUp(key, tier, data, from, head);
+            }
+            if (tail < to) {
+                storeRollUp(key, tier, data, tail, to);
+            }
+            from = head;
+            to = tail;
+        }
+        return new long[]{from, to};
+    }
+
+    private void storeRollUp(String key, long tier, TierData data, long from, long to) throws IOException {
+        store(key, tier, from, to, combine(data, from, to, tier));
+        binsRolledUp.addAndGet((to - from) / tier);
+    }
+
+    /**
+     * Get the channel metadata last read from the dataserver, so that results
+     * served entirely from the store still have units etc.
+     */
+    TrendingPerSeriesMetaData getMetaData(String key) throws IOException {
+        return metaData.get(key);
+    }
+
+    void countQuery() {
+        queries.incrementAndGet();
+    }
+
+    RollupStatistics getStatistics() {
+        long[] seconds = new long[tiers.length];
+        for (int i = 0; i < tiers.length; i++) {
+            seconds[i] = tiers[i] / 1000;
+        }
+        return new RollupStatistics(seconds, queries.get(), binsRead.get(), binsStored.get(), binsRolledUp.get());
+    }
+
+    private Object lockFor(File file) {
+        return locks[Math.floorMod(file.hashCode(), LOCKS)];
+    }
+
+    private File file(String key, long tier) {
+        return new File(new File(directory, Long.toString(tier / 1000)), sanitize(key) + ".rollup");
+    }
+
+    private static String sanitize(String key) {
+        return key.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Read and check the header of a file.
+     *
+     * @return The index of the first bin, or <code>Long.MIN_VALUE</code> if
+     * the file is not a valid file for the tier
+     */
+    private static long readHeader(RandomAccessFile raf, long tier) throws IOException {
+        if (raf.length() < HEADER_SIZE || (raf.length() - HEADER_SIZE) % RECORD_SIZE != 0) {
+            return Long.MIN_VALUE;
+        }
+        raf.seek(0);
+        if (raf.readInt() != MAGIC || raf.readInt() != VERSION || raf.readLong() != tier) {
+            return Long.MIN_VALUE;
+        }
+        return raf.readLong();
+    }
+
+    private static void writeHeader(RandomAccessFile raf, long tier, long first) throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeLong(tier);
+        raf.writeLong(first);
+    }
+
+    /**
+     * Write records into a file, starting at the given bin index. Bins between
+     * the existing records and the new ones are marked as not read.
+     */
+    private static void write(File file, long tier, long first, byte[] records) throws IOException {
+        file.getParentFile().mkdirs();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long fileFirst = readHeader(raf, tier);
+            if (fileFirst == Long.MIN_VALUE) {
+                raf.setLength(0);
+                writeHeader(raf, tier, first);
+                fileFirst = first;
+            }
+            if (first >= fileFirst) {
+                long existing = (raf.length() - HEADER_SIZE) / RECORD_SIZE;
+                long offset = first - fileFirst;
+                if (offset > existing) {
+                    raf.seek(HEADER_SIZE + existing * RECORD_SIZE);
+                    raf.write(notRead((int) (offset - existing)));
+                }
+                raf.seek(HEADER_SIZE + offset * RECORD_SIZE);
+                raf.write(records);
+                return;
+            }
+        }
+        // The new records are before the start of the file, so it has to be rewritten
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"); RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            long fileFirst = readHeader(in, tier);
+            out.setLength(0);
+            writeHeader(out, tier, first);
+            long newCount = records.length / RECORD_SIZE;
+            byte[] old = new byte[(int) (in.length() - HEADER_SIZE)];
+            in.readFully(old);
+            out.write(records);
+            long gap = fileFirst - first - newCount;
+            if (gap > 0) {
+                out.write(notRead((int) gap));
+            }
+            // Where the old and new records overlap, the new ones win
+            long skip = Math.max(0, -gap);
+            if (skip * RECORD_SIZE < old.length) {
+                out.write(old, (int) (skip * RECORD_SIZE), (int) (old.length - skip * RECORD_SIZE));
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] notRead(int n) {
+        TierData data = new TierData(0, 1, n);
+        return data.encode();
+    }
+
+    /**
+     * Combine the bins of a tier into the bins of a query. Each tier bin is
+     * assigned to the query bin containing its start.
+     *
+     * @param data The tier bins
+     * @param t1 The start of the query
+     * @param t2 The end of the query
+     * @param width The bin width of the query
+     * @return The query bins, omitting any which are empty
+     */
+    static TrendingSeries combine(TierData data, long t1, long t2, long width) {
+        TrendingSeries result = new TrendingSeries((int) Math.max(16, Math.min(4096, (t2 - t1) / width)));
+        long bin = Long.MIN_VALUE;
+        int count = 0;
+        double sumTime = 0, sum = 0, sumSquares = 0, min = 0, max = 0;
+        for (int i = 0; i <= data.size; i++) {
+            long queryBin = Long.MAX_VALUE;
+            if (i < data.size) {
+                long start = data.from + i * data.tier;
+                if (start < t1 || start >= t2 || data.counts[i] <= 0) {
+                    continue;
+                }
+                queryBin = Math.floorDiv(start - t1, width);
+            }
+            if (queryBin != bin) {
+                if (count > 0) {
+                    double mean = sum / count;
+                    result.add(Math.round(sumTime / count), mean, Math.sqrt(Math.max(0, sumSquares / count - mean * mean)), min, max);
+                }
+                bin = queryBin;
+                count = 0;
+                sumTime = sum = sumSquares = 0;
+                min = Double.POSITIVE_INFINITY;
+                max = Double.NEGATIVE_INFINITY;
+            }
+            if (i < data.size) {
+                count++;
+                sumTime += data.times[i];
+                sum += data.values[i];
+                sumSquares += data.rms[i] * data.rms[i] + data.values[i] * data.values[i];
+                min = Math.min(min, data.mins[i]);
+                max = Math.max(max, data.maxs[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The bins of one tier of one channel over a window.
+     */
+    static class TierData {
+
+        private final long from;
+        private final long tier;
+        private final int size;
+        private final long[] times;
+        private final double[] values;
+        private final double[] rms;
+        private final double[] mins;
+        private final double[] maxs;
+        private final int[] counts;
+
+        TierData(long from, long tier, int size) {
+            this.from = from;
+            this.tier = tier;
+            this.size = size;
+            times = new long[size];
+            values = new double[size];
+            rms = new double[size];
+            mins = new double[size];
+            maxs = new double[size];
+            counts = new int[size];
+            Arrays.fill(counts, NOT_READ);
+        }
+
+        private void set(int i, long time, double value, double rms, double min, double max, int count) {
+            times[i] = time;
+            values[i] = value;
+            this.rms[i] = rms;
+            mins[i] = min;
+            maxs[i] = max;
+            counts[i] = count;
+        }
+
+        private void decode(ByteBuffer buffer, int offset, int n) {
+            for (int i = offset; i < offset + n; i++) {
+                set(i, buffer.getLong(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getInt());
+                buffer.getInt();
+            }
+        }
+
+        private byte[] encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(size * RECORD_SIZE);
+            for (int i = 0; i < size; i++) {
+                buffer.putLong(times[i]).putDouble(values[i]).putDouble(rms[i]).putDouble(mins[i]).putDouble(maxs[i]).putInt(counts[i]).putInt(0);
+            }
+            return buffer.array();
+        }
+
+        /**
+         * The start of the first bin which has not been read from the
+         * dataserver, or <code>Long.MAX_VALUE</code> if there is none.
+         */
+        long getMissingFrom() {
+            for (int i = 0; i < size; i++) {
+                if (counts[i] == NOT_READ) {
+                    return from + i * tier;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * The end of the last bin which has not been read from the
+         * dataserver, or <code>Long.MIN_VALUE</code> if there is none.
+         */
+        long getMissingTo() {
+            for (int i = size - 1; i >= 0; i--) {
+                if (counts[i] == NOT_READ) {
+                    return from + (i + 1) * tier;
+                }
+            }
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Rollup store counters, exposed through the REST interface.
+     */
+    static class RollupStatistics {
+
+        private final long[] tiers;
+        private final long queries;
+        private final long binsRead;
+        private final long binsStored;
+        private final long binsRolledUp;
+
+        RollupStatistics(long[] tiers, long queries, long binsRead, long binsStored, long binsRolledUp) {
+            this.tiers = tiers;
+            this.queries = queries;
+            this.binsRead = binsRead;
+            this.binsStored = binsStored;
+            this.binsRolledUp = binsRolledUp;
+        }
+
+        public long[] getTiers() {
+            return tiers;
+        }
+
+        public long getQueries() {
+            return queries;
+        }
+
+        public long getBinsRead() {
+            return binsRead;
+        }
+
+        public long getBinsStored() {
+            return binsStored;
+        }
+
+        public long getBinsRolledUp() {
+            return binsRolledUp;
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lsst.ccs.web.trending.TrendingRestInterface.Flavor;
+import org.lsst.ccs.web.trending.TrendingRestInterface.TrendingPerSeriesMetaData;
+
+/**
+ * Persistent backing for a {@link BinCache}, so that bins which have been
+ * read from the dataserver survive a restart of the webapp.
+ * <p>
+ * Only final bins are stored. Each channel and bin grid has its own
+ * append-only segment file, made up of chunks, each covering a window of time
+ * and holding the (possibly zero) bins read for that window. Chunks never
+ * overlap, since only the parts of a window not already covered are appended.
+ * An append which starts where the last chunk of the file ends, as the
+ * appends of live data do, extends that chunk rather than adding another.
+ * <p>
+ * Segment files are opened the first time they are needed, by memory mapping
+ * them and reading only the chunk headers to build an index by time. Bins are
+ * then copied straight from the mapping into the series returned, and
+ * appended by writing into it. Files are grown ahead of the data, doubling in
+ * size each time, so a segment only has to be mapped again when it grows. The
+ * bins of a chunk are written before its header, so if the webapp stops part
+ * way through an append the bins are simply not seen the next time the file is
+ * opened.
+ * <p>
+ * Each segment file is guarded by one of a fixed set of locks, chosen by its
+ * name, so different channels can be read and written at the same time. The
+ * store as a whole is only locked to keep track of which files are open and
+ * how big they are.
+ * <p>
+ * The store is bounded in two ways. Only a limited number of segments are
+ * kept open (and mapped) at once, the least recently used being closed first.
+ * The total size of the files is limited too, and when it is exceeded the
+ * least recently used files are deleted, to be rebuilt from the dataserver if
+ * they are needed again. A single segment is never allowed to grow beyond
+ * what can be mapped at once; it is started afresh instead.
+ */
+class SegmentStore {
+
+    private static final Logger LOG = Logger.getLogger(SegmentStore.class.getName());
+    private static final int MAGIC = 0x43435342; // "CCSB"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int CHUNK_MAGIC = 0x43484e4b; // "CHNK"
+    // magic, number of bins, start and end of the window
+    private static final int CHUNK_HEADER_SIZE = 24;
+    // time, value, rms, min, max
+    private static final int RECORD_SIZE = 40;
+    private static final int MAX_OPEN_SEGMENTS = 1000;
+    // A mapping cannot exceed 2 GB
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    // Files double in size as they grow, but by no more than this at a time
+    private static final long MAX_GROWTH = 64L << 20;
+    private static final int LOCKS = 64;
+
+    private final File directory;
+    private final long maxBytes;
+    // The open segments, least recently used first
+    private final Map<File, Segment> segments = new LinkedHashMap<>(16, 0.75f, true);
+    // The size of every segment file, open or not, least recently used first
+    private final Map<File, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final MetaDataStore metaData;
+    // Each file is guarded by one of these, the store itself only guards the maps above
+    private final Object[] locks = new Object[LOCKS];
+    private final AtomicLong binsLoaded = new AtomicLong();
+    private final AtomicLong binsAppended = new AtomicLong();
+    private final AtomicLong filesDeleted = new AtomicLong();
+
+    SegmentStore(File directory) {
+        this(directory, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a store.
+     *
+     * @param directory The directory in which to keep the files
+     * @param maxBytes The maximum total size of the segment files
+     */
+    SegmentStore(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.metaData = new MetaDataStore(new File(directory, "meta"));
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+        scan();
+    }
+
+    /**
+     * Find the existing files, treating the least recently modified as the
+     * least recently used.
+     */
+    private void scan() {
+        List<File> existing = new ArrayList<>();
+        File[] grids = directory.listFiles(File::isDirectory);
+        if (grids != null) {
+            for (File grid : grids) {
+                File[] bins = grid.listFiles((dir, name) -> name.endsWith(".bins"));
+                if (bins != null) {
+                    existing.addAll(Arrays.asList(bins));
+                }
+            }
+        }
+        existing.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : existing) {
+            long length = file.length();
+            files.put(file, length);
+            totalBytes += length;
+        }
+    }
+
+    /**
+     * Read the run of stored bins which contains the given time, if any.
+     *
+     * @param key The channel id
+     * @param flavor The data flavor
+     * @param width The bin width
+     * @param phase The bin grid phase
+     * @param t1 The time which the run must contain
+     * @return The longest contiguous run of stored windows containing
+     * <code>t1</code>, or <code>null</code> if there is none
+     */
+    Run read(String key, Flavor flavor, long width, long phase, long t1) {
+        File file = file(key, flavor, width, phase);
+        synchronized (lock(file)) {
+            Segment segment = segment(file);
+            if (segment == null || segment.chunks.isEmpty()) {
+                return null;
+            }
+            Map.Entry<Long, Chunk> first = segment.chunks.floorEntry(t1);
+            if (first == null || first.getValue().to <= t1) {
+                return null;
+            }
+            ByteBuffer buffer = segment.buffer;
+            int count = 0;
+            long to = first.getKey();
+            for (Chunk chunk = first.getValue(); chunk != null; chunk = segment.chunks.get(chunk.to)) {
+                count += chunk.count;
+                to = chunk.to;
+            }
+            TrendingSeries data = new TrendingSeries(Math.max(16, count));
+            for (Chunk chunk = first.getValue(); chunk != null; chunk = segment.chunks.get(chunk.to)) {
+                for (int i = 0; i < chunk.count; i++) {
+                    int offset = (int) (chunk.offset + (long) i * RECORD_SIZE);
+                    data.add(buffer.getLong(offset), buffer.getDouble(offset + 8), buffer.getDouble(offset + 16),
+                            buffer.getDouble(offset + 24), buffer.getDouble(offset + 32));
+                }
+            }
+            binsLoaded.addAndGet(count);
+            return new Run(first.getKey(), to, data);
+        }
+    }
+
+    /**
+     * Append final bins to the store. Only the parts of the window which are
+     * not already stored are written.
+     *
+     * @param key The channel id
+     * @param flavor The data flavor
+     * @param width The bin width
+     * @param phase The bin grid phase
+     * @param from The start of the window, on the bin grid
+     * @param to The end of the window, on the bin grid
+     * @param data Bins covering at least the window
+     */
+    void append(String key, Flavor flavor, long width, long phase, long from, long to, TrendingSeries data) {
+        if (to <= from) {
+            return;
+        }
+        File file = file(key, flavor, width, phase);
+        synchronized (lock(file)) {
+            Segment segment = segment(file);
+            if (segment != null && segment.size + 2 * CHUNK_HEADER_SIZE + (long) data.size() * RECORD_SIZE > MAX_SEGMENT_SIZE) {
+                LOG.log(Level.INFO, "Segment {0} is full, starting it again", file);
+                synchronized (this) {
+                    delete(file);
+                }
+                segment = null;
+            }
+            if (segment == null) {
+                segment = new Segment(file);
+                synchronized (this) {
+                    segments.put(file, segment);
+                    closeUnused();
+                }
+            }
+            try {
+                long start = from;
+                Map.Entry<Long, Chunk> before = segment.chunks.lowerEntry(from);
+                if (before != null) {
+                    start = Math.max(start, before.getValue().to);
+                }
+                // A copy, since filling the gaps adds chunks
+                for (Chunk chunk : new ArrayList<>(segment.chunks.subMap(from, true, to, false).values())) {
+                    if (chunk.from > start) {
+                        binsAppended.addAndGet(segment.append(start, chunk.from, data));
+                    }
+                    start = Math.max(start, chunk.to);
+                }
+                if (start < to) {
+                    binsAppended.addAndGet(segment.append(start, to, data));
+                }
+            } catch (IOException x) {
+                LOG.log(Level.WARNING, "Error appending to segment " + file, x);
+                synchronized (this) {
+                    delete(file);
+                }
+                return;
+            }
+            synchronized (this) {
+                // Unless the file was deleted to make room for another while this one was being written
+                if (segments.get(file) == segment) {
+                    Long old = files.put(file, segment.capacity);
+                    totalBytes += segment.capacity - (old == null ? 0 : old);
+                    deleteUnused(file);
+                }
+            }
+        }
+    }
+
+    private Object lock(File file) {
+        return locks[Math.floorMod(file.hashCode(), LOCKS)];
+    }
+
+    /**
+     * Close the least recently used segments, so that their mappings can be
+     * released, if too many are open. A segment which is closed while it is
+     * being read or written is opened again by the next caller, once that has
+     * finished.
+     */
+    private void closeUnused() {
+        Iterator<Segment> i = segments.values().iterator();
+        while (segments.size() > MAX_OPEN_SEGMENTS && i.hasNext()) {
+            i.next();
+            i.remove();
+        }
+    }
+
+    /**
+     * Delete the least recently used files, other than the one given, while
+     * the store is too big.
+     */
+    private void deleteUnused(File keep) {
+        while (totalBytes > maxBytes) {
+            File unused = null;
+            for (File file : files.keySet()) {
+                if (!file.equals(keep)) {
+                    unused = file;
+                    break;
+                }
+            }
+            if (unused == null) {
+                break;
+            }
+            delete(unused);
+        }
+    }
+
+    private void delete(File file) {
+        segments.remove(file);
+        Long length = files.remove(file);
+        if (length != null) {
+            totalBytes -= length;
+        }
+        if (file.delete()) {
+            filesDeleted.incrementAndGet();
+        } else if (file.exists()) {
+            LOG.log(Level.WARNING, "Unable to delete {0}", file);
+        }
+    }
+
+    /**
+     * Get the channel metadata last stored, or <code>null</code> if there is
+     * none.
+     */
+    TrendingPerSeriesMetaData getMetaData(String key) {
+        try {
+            return metaData.get(key);
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Error reading metadata for " + key, x);
+            return null;
+        }
+    }
+
+    void putMetaData(String key, TrendingPerSeriesMetaData meta) {
+        try {
+            metaData.put(key, meta);
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Error storing metadata for " + key, x);
+        }
+    }
+
+    synchronized SegmentStatistics getStatistics() {
+        return new SegmentStatistics(files.size(), segments.size(), totalBytes, maxBytes, binsLoaded.get(), binsAppended.get(), filesDeleted.get());
+    }
+
+    /**
+     * Find the open segment for a file, opening it if it exists. The caller
+     * must hold the lock for the file, but not the lock of the store, since
+     * opening the file is done without it.
+     */
+    private Segment segment(File file) {
+        synchronized (this) {
+            Segment segment = segments.get(file);
+            // The size is only looked up to mark the file as recently used
+            if (files.get(file) == null || segment != null) {
+                return segment;
+            }
+        }
+        try {
+            Segment segment = Segment.open(file);
+            synchronized (this) {
+                segments.put(file, segment);
+                closeUnused();
+            }
+            return segment;
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Ignoring invalid segment " + file, x);
+            synchronized (this) {
+                delete(file);
+            }
+            return null;
+        }
+    }
+
+    private File file(String key, Flavor flavor, long width, long phase) {
+        File grid = new File(directory, flavor.toString().toLowerCase() + "-" + width + "-" + phase);
+        return new File(grid, key.replaceAll("[^A-Za-z0-9._-]", "_") + ".bins");
+    }
+
+    /**
+     * A contiguous run of stored bins.
+     */
+    static class Run {
+
+        private final long from;
+        private final long to;
+        private final TrendingSeries data;
+
+        Run(long from, long to, TrendingSeries data) {
+            this.from = from;
+            this.to = to;
+            this.data = data;
+        }
+
+        long getFrom() {
+            return from;
+        }
+
+        long getTo() {
+            return to;
+        }
+
+        TrendingSeries getData() {
+            return data;
+        }
+    }
+
+    private static class Chunk {
+
+        private final long from;
+        private final long to;
+        // The position of the first bin in the file
+        private final long offset;
+        private final int count;
+
+        Chunk(long from, long to, long offset, int count) {
+            this.from = from;
+            this.to = to;
+            this.offset = offset;
+            this.count = count;
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final TreeMap<Long, Chunk> chunks = new TreeMap<>();
+        // The chunk at the end of the file, which an append may extend
+        private Chunk last;
+        // The end of the last chunk
+        private long size;
+        // The size of the file, which is grown ahead of the chunks
+        private long capacity;
+        private MappedByteBuffer buffer;
+
+        Segment(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Open an existing segment, reading only the chunk headers.
+         */
+        static Segment open(File file) throws IOException {
+            Segment segment = new Segment(file);
+            segment.capacity = file.length();
+            if (segment.capacity > MAX_SEGMENT_SIZE) {
+                throw new IOException("Segment too large");
+            }
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping remains valid after the channel is closed
+                segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segment.capacity);
+            }
+            ByteBuffer buffer = segment.buffer;
+            if (segment.capacity < FILE_HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a segment file");
+            }
+            long position = FILE_HEADER_SIZE;
+            while (position + CHUNK_HEADER_SIZE <= segment.capacity) {
+                int p = (int) position;
+                int count = buffer.getInt(p + 4);
+                long end = position + CHUNK_HEADER_SIZE + (long) count * RECORD_SIZE;
+                if (buffer.getInt(p) != CHUNK_MAGIC || count < 0 || end > segment.capacity) {
+                    break;
+                }
+                segment.last = new Chunk(buffer.getLong(p + 8), buffer.getLong(p + 16), position + CHUNK_HEADER_SIZE, count);
+                segment.chunks.put(segment.last.from, segment.last);
+                position = end;
+            }
+            segment.size = position;
+            if (position + CHUNK_HEADER_SIZE <= segment.capacity && buffer.getInt((int) position) != 0) {
+                // Blank an incomplete chunk left by an interrupted append, so the space can be reused
+                LOG.log(Level.WARNING, "Dropping incomplete chunk at {1} of segment {0}", new Object[]{file, position});
+                blank(buffer, (int) position);
+            }
+            return segment;
+        }
+
+        /**
+         * Append the bins of the data which fall in the window, extending the
+         * last chunk if the window starts where it ends, and otherwise adding
+         * a chunk.
+         *
+         * @return The number of bins appended
+         */
+        int append(long from, long to, TrendingSeries data) throws IOException {
+            int first = data.indexOf(from);
+            int count = data.indexOf(to) - first;
+            boolean extend = last != null && last.to == from;
+            // Also leave room for a blank header after the new bins, which marks the end of the chunks
+            reserve((size == 0 ? FILE_HEADER_SIZE : 0) + (extend ? 0 : CHUNK_HEADER_SIZE) + (long) count * RECORD_SIZE + CHUNK_HEADER_SIZE);
+            if (size == 0) {
+                buffer.putInt(0, MAGIC).putInt(4, VERSION);
+                size = FILE_HEADER_SIZE;
+            }
+            Chunk chunk = extend ? new Chunk(last.from, to, last.offset, last.count + count) : new Chunk(from, to, size + CHUNK_HEADER_SIZE, count);
+            int p = (int) (extend ? size : chunk.offset);
+            for (int i = first; i < first + count; i++) {
+                buffer.putLong(p, data.getTime(i)).putDouble(p + 8, data.getValue(i)).putDouble(p + 16, data.getRMS(i))
+                        .putDouble(p + 24, data.getMin(i)).putDouble(p + 32, data.getMax(i));
+                p += RECORD_SIZE;
+            }
+            blank(buffer, p);
+            // The header goes last, so that the chunk is not seen until its bins are all there
+            int header = (int) (chunk.offset - CHUNK_HEADER_SIZE);
+            buffer.putLong(header + 8, chunk.from).putInt(header + 4, chunk.count).putLong(header + 16, chunk.to).putInt(header, CHUNK_MAGIC);
+            chunks.put(chunk.from, chunk);
+            last = chunk;
+            size = p;
+            return count;
+        }
+
+        /**
+         * Make sure the file has room for some more bytes after the last
+         * chunk, growing and mapping it again if not.
+         */
+        private void reserve(long bytes) throws IOException {
+            long needed = size + bytes;
+            if (needed <= capacity) {
+                return;
+            }
+            long grown = Math.max(needed, Math.min(MAX_SEGMENT_SIZE, capacity + Math.min(capacity, MAX_GROWTH)));
+            if (size == 0) {
+                file.getParentFile().mkdirs();
+            }
+            // A new segment replaces whatever is left of an old file, an existing one must not be created again if it was deleted
+            try (FileChannel channel = size == 0
+                    ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Writing the last byte extends the file, sparsely where the file system allows
+                channel.write(ByteBuffer.allocate(1), grown - 1);
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, grown);
+            }
+            capacity = grown;
+        }
+
+        private static void blank(ByteBuffer buffer, int position) {
+            if (position + CHUNK_HEADER_SIZE <= buffer.capacity()) {
+                for (int i = 0; i < CHUNK_HEADER_SIZE; i += 8) {
+                    buffer.putLong(position + i, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Segment store counters, exposed through the REST interface.
+     */
+    static class SegmentStatistics {
+
+        private final int segments;
+        private final int openSegments;
+        private final long bytes;
+        private final long maxBytes;
+        private final long binsLoaded;
+        private final long binsAppended;
+        private final long segmentsDeleted;
+
+        SegmentStatistics(int segments, int openSegments, long bytes, long maxBytes, long binsLoaded, long binsAppended, long segmentsDeleted) {
+            this.segments = segments;
+            this.openSegments = openSegments;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+            this.binsLoaded = binsLoaded;
+            this.binsAppended = binsAppended;
+            this.segmentsDeleted = segmentsDeleted;
+        }
+
+        public int getSegments() {
+            return segments;
+        }
+
+        public int getOpenSegments() {
+            return openSegments;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public long getSegmentsDeleted() {
+            return segmentsDeleted;
+        }
+
+        public long getBinsLoaded() {
+            return binsLoaded;
+        }
+
+        public long getBinsAppended() {
+            return binsAppended;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Merges concurrent calls with the same key, so that only the first caller
+ * does the work and all the others wait for, and share, its result. Once the
+ * call completes the key is forgotten, so this is not a cache.
+ *
+ * @param <K> The type of key
+ * @param <V> The type of the result
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    interface Call<V> {
+
+        V call() throws IOException;
+    }
+
+    /**
+     * Execute the call, or wait for an identical call which is already in
+     * progress.
+     *
+     * @param key The key identifying the call
+     * @param call The work to do if no identical call is in progress
+     * @return The (possibly shared) result
+     * @throws IOException If the call failed
+     */
+    V execute(K key, Call<V> call) throws IOException {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            V result = call.call();
+            future.complete(result);
+            return result;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private V await(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException x) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
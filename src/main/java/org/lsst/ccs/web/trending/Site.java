@@ -1,28 +1,37 @@
 package org.lsst.ccs.web.trending;
 
-import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.Session;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.lsst.ccs.web.trending.BinCache.CacheStatistics;
+import org.lsst.ccs.web.trending.BinCache.Slice;
+import org.lsst.ccs.web.trending.TrendingRestInterface.Flavor;
+import org.lsst.ccs.web.trending.UpstreamConnections.UpstreamStatistics;
 
 /**
  *
@@ -31,16 +40,60 @@ import java.util.logging.Logger;
 public class Site implements AutoCloseable {
 
     private final String name;
-    private final AtomicReference<ChannelTree> channelTree = new AtomicReference<>();
-    private final AtomicBoolean channelTreeInitialized = new AtomicBoolean(false);
-    private final CountDownLatch channelTreeInitCompleteLatch = new CountDownLatch(1);
-    private final AtomicReference<ChannelTree> fullChannelTree = new AtomicReference<>();
-    private final AtomicBoolean fullChannelTreeInitialized = new AtomicBoolean(false);
-    private final CountDownLatch fullChannelTreeInitCompleteLatch = new CountDownLatch(1);
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // Channel trees are only ever read on this thread
+    private final ScheduledExecutorService treeLoader = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread thread = new Thread(r, "channel-tree-" + getName());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ChannelTreeLoader channelTree = new ChannelTreeLoader("channel tree", TimeUnit.DAYS.toSeconds(7));
+    private final ChannelTreeLoader fullChannelTree = new ChannelTreeLoader("full channel tree", 0);
+    // The point the channel trees have been synchronized to, only used on the treeLoader thread
+    private long syncedAt;
+    private long syncedTo;
+    // Whether a channel tree has been asked for since the last incremental read
+    private volatile boolean treeUsed;
     private static final Logger LOG = Logger.getLogger(Site.class.getName());
     private static final int SSH_TIMEOUT = 10000;
     private static final int SSH_RETRIES = 2;
+    private static final int CACHE_MAX_BINS = Integer.getInteger("org.lsst.ccs.web.trending.cache.maxBins", 500000);
+    private static final long CACHE_LIVE_TTL = TimeUnit.SECONDS.toMillis(Long.getLong("org.lsst.ccs.web.trending.cache.liveTTL", 60));
+    // Number of keys per upstream request when a multi-key request is split up, 0 means never split
+    private static final int FANOUT_GROUP_SIZE = Integer.getInteger("org.lsst.ccs.web.trending.fanout.groupSize", 0);
+    private static final int FANOUT_THREADS = Integer.getInteger("org.lsst.ccs.web.trending.fanout.threads", 8);
+    // Maximum concurrent connections per source, by default the number of idle connections the JDK keeps alive per host
+    private static final int UPSTREAM_MAX_CONNECTIONS = Integer.getInteger("org.lsst.ccs.web.trending.upstream.maxConnections", Integer.getInteger("http.maxConnections", 5));
+    private static final int UPSTREAM_CONNECT_TIMEOUT = Integer.getInteger("org.lsst.ccs.web.trending.upstream.connectTimeout", 10000);
+    private static final int UPSTREAM_READ_TIMEOUT = Integer.getInteger("org.lsst.ccs.web.trending.upstream.readTimeout", 60000);
+    // Number of ssh tunnels per source, and the interval between health checks of each tunnel
+    private static final int SSH_TUNNELS = Integer.getInteger("org.lsst.ccs.web.trending.ssh.tunnels", 2);
+    // Directory in which final bins are kept across restarts, which is only done if this is set
+    private static final String CACHE_DIRECTORY = System.getProperty("org.lsst.ccs.web.trending.cache.dir");
+    // The most disk space (in MB) those bins may take, per source
+    private static final long CACHE_MAX_DISK = Long.getLong("org.lsst.ccs.web.trending.cache.maxDiskMB", 1024) << 20;
+    // Directory for the persistent rollup store, which is only used if this is set
+    private static final String ROLLUP_DIRECTORY = System.getProperty("org.lsst.ccs.web.trending.rollup.dir");
+    private static final long[] ROLLUP_TIERS = parseTiers(System.getProperty("org.lsst.ccs.web.trending.rollup.tiers", "60,300,900,3600,21600,86400"));
+    // Age (in seconds) after which rollup bins are final and never read again, long enough for late data to have arrived
+    private static final long ROLLUP_FINAL_AFTER = TimeUnit.SECONDS.toMillis(Long.getLong("org.lsst.ccs.web.trending.rollup.finalAfter", 86400));
+    // Consecutive failures after which requests to a source fail fast, and for how long
+    private static final int BREAKER_FAILURES = Integer.getInteger("org.lsst.ccs.web.trending.breaker.failures", 5);
+    private static final long BREAKER_OPEN_TIME = TimeUnit.SECONDS.toMillis(Integer.getInteger("org.lsst.ccs.web.trending.breaker.openSeconds", 30));
+    // Maximum number of stale queries per source waiting to be read again once the source recovers
+    private static final int MAX_REVALIDATIONS = 100;
+    private static final int SSH_HEALTH_CHECK_INTERVAL = (int) TimeUnit.SECONDS.toMillis(Integer.getInteger("org.lsst.ccs.web.trending.ssh.healthCheckInterval", 30));
+    // Returned until a channel tree has been read, always the same tree so that its generation does not change
+    private static final ChannelTree READING_TREE = new ChannelTree("The channel list is being read, please try again shortly");
+    private static final long TREE_RELOAD_INTERVAL = TimeUnit.HOURS.toMillis(12);
+    private static final long TREE_RETRY_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    // Interval at which recently active channels are read and merged into the channel trees, 0 means only full reloads.
+    // Nearly every channel reports more often than this, so each read costs about as much as reading the recent tree.
+    private static final long TREE_SYNC_INTERVAL = TimeUnit.SECONDS.toMillis(Long.getLong("org.lsst.ccs.web.trending.channels.syncInterval", 3600));
+    // Extra time each incremental read reaches back, so that channels first active around the previous read are not missed
+    private static final long TREE_SYNC_OVERLAP = TimeUnit.MINUTES.toMillis(1);
+    // Interval at which the dataserver is read for live update subscribers
+    private static final long LIVE_INTERVAL = TimeUnit.SECONDS.toMillis(Long.getLong("org.lsst.ccs.web.trending.live.interval", 60));
     private int sshTimeout = SSH_TIMEOUT;
     private int sshRetries = SSH_RETRIES;
 
@@ -49,6 +102,7 @@ public class Site implements AutoCloseable {
     private Map<String,SessionWrapper> sessionsMap = new LinkedHashMap<>();
     
     private final String defaultSource;
+    private final LiveUpdates liveUpdates;
     
     
 
@@ -73,67 +127,54 @@ public class Site implements AutoCloseable {
                 sessionsMap.put(sourceName, sw);
             }
         }
+        liveUpdates = new LiveUpdates(this, LIVE_INTERVAL);
+        // Start reading the channel tree now, so that it is ready for the first request
+        channelTree.schedule(0);
+        if (TREE_SYNC_INTERVAL > 0) {
+            treeLoader.scheduleWithFixedDelay(this::syncChannelTrees, TREE_SYNC_INTERVAL, TREE_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        }
     }
     
     
     private static class SessionWrapper {
-        private final String sshUsername;
-        private final String sshHost;
-        private final File sshKey;
-        private final String sshKeyPassword;
         private final boolean useSSH;
-        private volatile Session session;
+        private final TunnelPool tunnels;
         private volatile URL restURL = null;
-        private volatile URL tunnelURL;
         private final String siteName;
+        private final BinCache binCache;
+        private final SingleFlight<String, List<TrendingSeries>> dataRequests = new SingleFlight<>();
+        private final ThreadPoolExecutor fanoutExecutor;
+        private final UpstreamConnections connections = new UpstreamConnections(UPSTREAM_MAX_CONNECTIONS);
+        private final CircuitBreaker breaker = new CircuitBreaker(BREAKER_FAILURES, BREAKER_OPEN_TIME);
+        private final Map<String, Callable<?>> revalidations = new LinkedHashMap<>();
+        private boolean revalidationScheduled;
+        private final RollupStore rollups;
 
         SessionWrapper(String siteName, String sourceName, URL url, boolean useSSH, Properties properties) {
             this.useSSH = useSSH;
             this.restURL = url;
             this.siteName = siteName;
+            fanoutExecutor = new ThreadPoolExecutor(FANOUT_THREADS, FANOUT_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (r) -> {
+                Thread thread = new Thread(r, "fanout-" + siteName + "-" + sourceName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            fanoutExecutor.allowCoreThreadTimeOut(true);
             
+            String sourceDirectory = sourceName.isEmpty() ? "default" : sourceName;
+            binCache = new BinCache(CACHE_MAX_BINS, CACHE_LIVE_TTL, CACHE_DIRECTORY == null ? null
+                    : new SegmentStore(new File(new File(CACHE_DIRECTORY, siteName), sourceDirectory), CACHE_MAX_DISK));
+            rollups = ROLLUP_DIRECTORY == null ? null
+                    : new RollupStore(new File(new File(ROLLUP_DIRECTORY, siteName), sourceDirectory), ROLLUP_TIERS, ROLLUP_FINAL_AFTER);
             if (useSSH) {
-                this.sshUsername = properties.getProperty("ssh.user");
-                this.sshHost = properties.getProperty("ssh.host");
-                this.sshKey = new File(properties.getProperty("ssh.key"));
-                if (!sshKey.canRead()) {
-                    throw new RuntimeException("Invalid ssh key " + properties.getProperty("ssh.key"));
-                }
-                this.sshKeyPassword = properties.getProperty("ssh.key.password");
+                tunnels = new TunnelPool(sourceName.isEmpty() ? siteName : siteName + "-" + sourceName, url, properties, SSH_TUNNELS, SSH_HEALTH_CHECK_INTERVAL);
             } else {
-                sshUsername = sshHost = sshKeyPassword = null;
-                sshKey = null;
+                tunnels = null;
             }            
         }
 
-
-        private synchronized void establishConnection() throws MalformedURLException, IOException {
-            if (useSSH && (session == null || !session.isConnected())) {
-                try {
-                    JSch jsch = new JSch();
-                    jsch.addIdentity(sshKey.getAbsolutePath(), sshKeyPassword);
-                    session = jsch.getSession(sshUsername, sshHost);
-                    Properties config = new Properties();
-                    config.put("StrictHostKeyChecking", "no");
-                    config.put("PreferredAuthentications", "publickey");
-                    session.setConfig(config);
-                    session.setDaemonThread(true);
-                    session.connect(5000);
-                    int port = session.setPortForwardingL(null, 0, restURL.getHost(), restURL.getPort());
-                    tunnelURL = new URL("http", "localhost", port, restURL.getPath());
-                    LOG.log(Level.INFO, "Tunnel to {0} for site {1} opened {2}", new Object[]{sshHost, siteName, tunnelURL});
-                } catch (JSchException ex) {
-                    throw new IOException("Error opening tunnel ", ex);
-                }
-            }
-        }
-
-        public Session getSession() {
-            return session;
-        }
-
-        public URL getTunnelURL() {
-            return tunnelURL;
+        TunnelPool getTunnels() {
+            return tunnels;
         }
         
         public boolean getUseSSH() {
@@ -143,9 +184,42 @@ public class Site implements AutoCloseable {
         public URL getRestURL() {
             return restURL;
         }
+
+        BinCache getBinCache() {
+            return binCache;
+        }
+
+        SingleFlight<String, List<TrendingSeries>> getDataRequests() {
+            return dataRequests;
+        }
+
+        ExecutorService getFanoutExecutor() {
+            return fanoutExecutor;
+        }
+
+        UpstreamConnections getConnections() {
+            return connections;
+        }
+
+        CircuitBreaker getBreaker() {
+            return breaker;
+        }
+
+        RollupStore getRollups() {
+            return rollups;
+        }
         
     }
     
+    private static long[] parseTiers(String tiers) {
+        String[] tokens = tiers.split(",");
+        long[] result = new long[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            result[i] = TimeUnit.SECONDS.toMillis(Long.parseLong(tokens[i].trim()));
+        }
+        return result;
+    }
+
     public Set<String> getAvailableSources() {
         return allSources;
     }
@@ -167,115 +241,618 @@ public class Site implements AutoCloseable {
     }
 
 
+    /**
+     * Open a URL on a dataserver source. The stream must be closed after use,
+     * to release the connection.
+     */
     public InputStream openURL(String relativePath, String source) throws MalformedURLException, IOException {
         String sourceToUse = source == null ? defaultSource : source;
         SessionWrapper sessionWrapper = sessionsMap.get(sourceToUse);
+        CircuitBreaker breaker = sessionWrapper.getBreaker();
+        if (breaker.rejects(System.currentTimeMillis())) {
+            throw unavailable(sourceToUse, breaker);
+        }
         
+        UpstreamConnections.Connector connector;
         if (!sessionWrapper.getUseSSH()) {
             URL url = new URL(sessionWrapper.getRestURL(), relativePath);
-            return url.openStream();
+            connector = () -> UpstreamConnections.connect(url, UPSTREAM_CONNECT_TIMEOUT, UPSTREAM_READ_TIMEOUT);
         } else {
-            IOException cause = null;
-            for (int i=0;i<sshRetries;i++) {
-                sessionWrapper.establishConnection();
-                URL url = new URL(sessionWrapper.getTunnelURL(), relativePath);
-                try {
-                    URLConnection connection = url.openConnection();
-                    connection.setConnectTimeout(sshTimeout);
-                    connection.setReadTimeout(sshTimeout);
-                    return connection.getInputStream();
-                } catch (IOException x) {
-                    cause = x;
-                    LOG.log(Level.WARNING, "Failed to connect via ssh to "+url+" (attempt "+i+")", x);
-                    sessionWrapper.getSession().disconnect();
+            connector = () -> {
+                IOException cause = null;
+                for (int i=0;i<sshRetries;i++) {
+                    // Tunnels are (re)opened in the background, here we only wait for one to be available
+                    URL tunnelURL = sessionWrapper.getTunnels().nextURL(sshTimeout);
+                    URL url = new URL(tunnelURL, relativePath);
+                    try {
+                        return UpstreamConnections.connect(url, sshTimeout, sshTimeout);
+                    } catch (UpstreamConnections.ErrorReplyException x) {
+                        throw x;
+                    } catch (IOException x) {
+                        cause = x;
+                        LOG.log(Level.WARNING, "Failed to connect via ssh to "+url+" (attempt "+i+")", x);
+                        sessionWrapper.getTunnels().failed(tunnelURL);
+                    }
+                }
+                throw new IOException("Unable to establish ssh connection after "+sshRetries+" retries", cause);
+            };
+        }
+        return sessionWrapper.getConnections().open(() -> {
+            // Checked again here, since the breaker may have opened while waiting for a connection
+            if (!breaker.allowRequest(System.currentTimeMillis())) {
+                throw unavailable(sourceToUse, breaker);
+            }
+            boolean reachable = false;
+            try {
+                InputStream in = connector.connect();
+                reachable = true;
+                return in;
+            } catch (UpstreamConnections.ErrorReplyException x) {
+                // The dataserver replied, so it is up even though it did not like the request
+                reachable = true;
+                throw x;
+            } catch (IOException x) {
+                throw new UpstreamConnections.UnavailableException("Source \""+sourceToUse+"\" of site "+name+" could not be reached: "+x.getMessage(), x);
+            } finally {
+                if (reachable) {
+                    breaker.recordSuccess();
+                } else {
+                    breaker.recordFailure(System.currentTimeMillis());
                 }
             }
-            throw new IOException("Unable to establish ssh connection after "+sshRetries+" retries", cause);
+        }, UPSTREAM_READ_TIMEOUT);
+    }
+
+    private IOException unavailable(String source, CircuitBreaker breaker) {
+        long now = System.currentTimeMillis();
+        return new UpstreamConnections.UnavailableException("Source \""+source+"\" of site "+name+" is unavailable after repeated failures, retrying in "+(breaker.getRetryTime(now) - now)/1000+"s", null);
+    }
+
+    /**
+     * Read trending data for a set of channels, using the bin cache for the
+     * source where possible.
+     * <p>
+     * If a rollup store is configured, the part of the window which is old
+     * enough to be final is served from the coarsest suitable tier of the
+     * store, and only the recent part is read through the bin cache.
+     * <p>
+     * If the dataserver cannot be reached, or its circuit breaker is open,
+     * whatever is in the bin cache for the channels is returned instead, with
+     * each series marked as stale, and the query is read again in the
+     * background once the source recovers. Any other failure, including an
+     * error reply from the dataserver, is passed on to the caller.
+     *
+     * @return One series per key, in the same order as the keys
+     */
+    List<TrendingSeries> getTrendingData(List<String> keys, long t1, long t2, int nBins, Flavor flavor, String source) throws IOException {
+        String sourceToUse = source == null ? defaultSource : source;
+        SessionWrapper sessionWrapper = sessionsMap.get(sourceToUse);
+        BinCache cache = sessionWrapper.getBinCache();
+        long width = BinCache.binWidth(t1, t2, nBins, flavor);
+        if (width == 0) {
+            cache.bypass();
+            return readTrendingDataInGroups(keys, t1, t2, nBins, flavor, source);
         }
+        RollupStore rollups = sessionWrapper.getRollups();
+        long tier = rollups == null ? 0 : rollups.tierFor(t1, width);
+        if (tier > 0) {
+            // The end of the last query bin which only contains final tier bins
+            long split = Math.min(t2, t1 + Math.max(0, Math.floorDiv(rollups.stableTo(tier, System.currentTimeMillis()) - t1, width)) * width);
+            if (split > t1) {
+                List<TrendingSeries> result = readRollups(rollups, tier, keys, t1, split, width, source);
+                if (result == null) {
+                    // The store failed, so everything is read through the bin cache instead
+                    return readCachedOrStale(sessionWrapper, keys, t1, t2, width, flavor, source);
+                }
+                if (split < t2) {
+                    List<TrendingSeries> tail = getTrendingData(keys, split, t2, (int) ((t2 - split) / width), flavor, source);
+                    for (int i = 0; i < keys.size(); i++) {
+                        TrendingSeries series = result.get(i);
+                        series.addAll(tail.get(i));
+                        if (tail.get(i).getMeta() != null) {
+                            series.setMeta(tail.get(i).getMeta());
+                        }
+                        series.setStale(tail.get(i).isStale());
+                    }
+                }
+                return result;
+            }
+        }
+        return readCachedOrStale(sessionWrapper, keys, t1, t2, width, flavor, source);
     }
 
-    @Override
-    public void close() {
-        for ( SessionWrapper sw : sessionsMap.values() ) {
-            if (sw.getUseSSH() ) {
-                Session session = sw.getSession();
-                if ( session != null && session.isConnected() ) {
-                    session.disconnect();
+    private List<TrendingSeries> readCachedOrStale(SessionWrapper sessionWrapper, List<String> keys, long t1, long t2, long width, Flavor flavor, String source) throws IOException {
+        String sourceToUse = source == null ? defaultSource : source;
+        BinCache cache = sessionWrapper.getBinCache();
+        try {
+            return readCachedTrendingData(cache, keys, t1, t2, width, flavor, source);
+        } catch (IOException x) {
+            // Stale data is only better than an error if the source could not be used at all, not
+            // if it rejected the request or sent a reply which could not be read
+            if (!UpstreamConnections.isUnavailable(x)) {
+                throw x;
+            }
+            List<TrendingSeries> result = new ArrayList<>(keys.size());
+            boolean anyCached = false;
+            for (String key : keys) {
+                Slice slice = cache.lookupStale(key, flavor, t1, t2, width);
+                slice.getSeries().setStale(true);
+                result.add(slice.getSeries());
+                anyCached |= slice.getValidTo() > t1;
+            }
+            if (!anyCached) {
+                throw x;
+            }
+            LOG.log(Level.WARNING, "Serving stale data for site {0} source \"{1}\": {2}", new Object[]{name, sourceToUse, x.getMessage()});
+            revalidate(sessionWrapper, String.join(",", keys) + ":" + t1 + ":" + t2 + ":" + width + ":" + flavor,
+                    () -> readCachedTrendingData(cache, keys, t1, t2, width, flavor, source));
+            return result;
+        }
+    }
+
+    private List<TrendingSeries> readCachedTrendingData(BinCache cache, List<String> keys, long t1, long t2, long width, Flavor flavor, String source) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Slice> slices = new ArrayList<>(keys.size());
+        List<String> missingKeys = new ArrayList<>();
+        long fetchFrom = t2;
+        for (String key : keys) {
+            Slice slice = cache.lookup(key, flavor, t1, t2, width, now);
+            slices.add(slice);
+            if (slice.getValidTo() < t2) {
+                missingKeys.add(key);
+                fetchFrom = Math.min(fetchFrom, slice.getValidTo());
+            }
+        }
+        List<TrendingSeries> fetched = missingKeys.isEmpty() ? null
+                : readTrendingDataInGroups(missingKeys, fetchFrom, t2, (int) ((t2 - fetchFrom) / width), flavor, source);
+        List<TrendingSeries> result = new ArrayList<>(keys.size());
+        for (int i = 0, j = 0; i < keys.size(); i++) {
+            Slice slice = slices.get(i);
+            TrendingSeries series = slice.getSeries();
+            if (slice.getValidTo() < t2) {
+                TrendingSeries tail = fetched.get(j++);
+                cache.store(keys.get(i), flavor, fetchFrom, t2, width, now, tail);
+                series.truncate(fetchFrom);
+                series.addAll(tail);
+                if (tail.getMeta() != null) {
+                    series.setMeta(tail.getMeta());
                 }
             }
+            result.add(series);
         }
+        return result;
     }
 
-    ChannelTree getChannelTree(boolean refresh) throws IOException {
-        Runnable readChannelTree = new Runnable() {
-            @Override
-            public void run() {
-                try (InputStream in = openURL("listchannels?maxIdleSeconds=604800", null)) {
-                    channelTree.set(new ChannelTree(in));
-                    LOG.log(Level.INFO, "Read channel tree for site {0}", name);                
-                    scheduler.schedule(this, 12, TimeUnit.HOURS);
-                } catch (IOException x) {
-                    LOG.log(Level.WARNING, "Error reading channel tree for site "+name, x);                
-                    scheduler.schedule(this, 5, TimeUnit.MINUTES);
-                } 
+    /**
+     * Read trending data from a tier of the rollup store, first rolling up any
+     * bins of the tier which are not yet in the store from finer tiers, and
+     * reading those which cannot be rolled up from the dataserver.
+     * The window must end no later than the last final bin of the tier.
+     *
+     * @return The series, or <code>null</code> if the store itself failed
+     */
+    private List<TrendingSeries> readRollups(RollupStore rollups, long tier, List<String> keys, long t1, long t2, long width, String source) throws IOException {
+        long from = -Math.floorDiv(-t1, tier) * tier;
+        long to = -Math.floorDiv(-t2, tier) * tier;
+        List<RollupStore.TierData> data = new ArrayList<>(keys.size());
+        // Channels missing the same range are read from the dataserver together, but each
+        // channel only reads its own range, not the union over all of the channels
+        Map<List<Long>, List<Integer>> missing = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                RollupStore.TierData tierData = rollups.read(keys.get(i), tier, from, to);
+                if (tierData.getMissingFrom() != Long.MAX_VALUE) {
+                    long[] left = rollups.rollUp(keys.get(i), tier, tierData.getMissingFrom(), tierData.getMissingTo());
+                    if (left[0] != tierData.getMissingFrom() || left[1] != tierData.getMissingTo()) {
+                        tierData = rollups.read(keys.get(i), tier, from, to);
+                    }
+                }
+                data.add(tierData);
+                if (tierData.getMissingFrom() != Long.MAX_VALUE) {
+                    missing.computeIfAbsent(Arrays.asList(tierData.getMissingFrom(), tierData.getMissingTo()), k -> new ArrayList<>()).add(i);
+                }
             }
-        };
-        
-        if (refresh || !channelTreeInitialized.getAndSet(true)) {
-            try {
-                readChannelTree.run();
-            } finally {
-                channelTreeInitCompleteLatch.countDown();
+        } catch (IOException x) {
+            return rollupsFailed(x);
+        }
+        for (Map.Entry<List<Long>, List<Integer>> entry : missing.entrySet()) {
+            long missingFrom = entry.getKey().get(0);
+            long missingTo = entry.getKey().get(1);
+            List<String> missingKeys = new ArrayList<>(entry.getValue().size());
+            for (int i : entry.getValue()) {
+                missingKeys.add(keys.get(i));
             }
-        } else {
+            // Failures to read from the dataserver are passed on as usual
+            List<TrendingSeries> fetched = readTrendingDataInGroups(missingKeys, missingFrom, missingTo, (int) ((missingTo - missingFrom) / tier), Flavor.STAT, source);
             try {
-                channelTreeInitCompleteLatch.await();
-            } catch (InterruptedException x) {
-                throw new InterruptedIOException();
+                for (int j = 0; j < missingKeys.size(); j++) {
+                    rollups.store(missingKeys.get(j), tier, missingFrom, missingTo, fetched.get(j));
+                    data.set(entry.getValue().get(j), rollups.read(missingKeys.get(j), tier, from, to));
+                }
+            } catch (IOException x) {
+                return rollupsFailed(x);
             }
         }
-        ChannelTree result = channelTree.get();
-        if (result == null) {
-            throw new IOException("Channel tree unavailable");
+        rollups.countQuery();
+        List<TrendingSeries> result = new ArrayList<>(keys.size());
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                TrendingSeries series = RollupStore.combine(data.get(i), t1, t2, width);
+                series.setMeta(rollups.getMetaData(keys.get(i)));
+                result.add(series);
+            }
+        } catch (IOException x) {
+            return rollupsFailed(x);
         }
         return result;
     }
-    
-    ChannelTree getFullChannelTree(boolean refresh) throws IOException {
-        Runnable readFullChannelTree = new Runnable() {
-            @Override
-            public void run() {
-                try (InputStream in = openURL("listchannels?maxIdleSeconds=0", null)) {
-                    fullChannelTree.set(new ChannelTree(in));
-                    LOG.log(Level.INFO, "Read full channel tree for site {0}", name);                
-                    scheduler.schedule(this, 12, TimeUnit.HOURS);
-                } catch (IOException x) {
-                    LOG.log(Level.WARNING, "Error reading full channel tree for site "+name, x);                
-                    scheduler.schedule(this, 5, TimeUnit.MINUTES);
-                } 
-            }
-        };
-
-        if (refresh || !fullChannelTreeInitialized.getAndSet(true)) {
-            try {
-                readFullChannelTree.run();
-            } finally {
-                fullChannelTreeInitCompleteLatch.countDown();
+
+    private List<TrendingSeries> rollupsFailed(IOException x) {
+        LOG.log(Level.WARNING, "Rollup store failed for site " + name + ", reading through the bin cache instead", x);
+        return null;
+    }
+
+    /**
+     * Queue a query to be read again once the source recovers, which brings
+     * its bins in the cache up to date. Queued queries are run on the fanout
+     * executor for the source, one at a time, starting when the circuit
+     * breaker next allows a trial request.
+     */
+    private void revalidate(SessionWrapper sessionWrapper, String key, Callable<?> call) {
+        synchronized (sessionWrapper) {
+            if (sessionWrapper.revalidations.size() < MAX_REVALIDATIONS) {
+                sessionWrapper.revalidations.putIfAbsent(key, call);
+            }
+            if (!sessionWrapper.revalidationScheduled) {
+                sessionWrapper.revalidationScheduled = true;
+                scheduleRevalidation(sessionWrapper);
+            }
+        }
+    }
+
+    private void scheduleRevalidation(SessionWrapper sessionWrapper) {
+        long now = System.currentTimeMillis();
+        long delay = sessionWrapper.getBreaker().getRetryTime(now) - now;
+        scheduler.schedule(() -> sessionWrapper.getFanoutExecutor().execute(() -> runRevalidations(sessionWrapper)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runRevalidations(SessionWrapper sessionWrapper) {
+        for (;;) {
+            Map.Entry<String, Callable<?>> next;
+            synchronized (sessionWrapper) {
+                if (sessionWrapper.revalidations.isEmpty()) {
+                    sessionWrapper.revalidationScheduled = false;
+                    return;
+                }
+                next = sessionWrapper.revalidations.entrySet().iterator().next();
             }
-        } else {
             try {
-                fullChannelTreeInitCompleteLatch.await();
-            } catch (InterruptedException x) {
-                throw new InterruptedIOException();
+                next.getValue().call();
+                LOG.log(Level.INFO, "Revalidated stale data for site {0}: {1}", new Object[]{name, next.getKey()});
+                synchronized (sessionWrapper) {
+                    sessionWrapper.revalidations.remove(next.getKey());
+                }
+            } catch (Exception x) {
+                // Still failing, try again when the breaker next allows it
+                synchronized (sessionWrapper) {
+                    scheduleRevalidation(sessionWrapper);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read trending data from the dataserver, splitting the keys into groups
+     * of at most <code>FANOUT_GROUP_SIZE</code> which are read concurrently on
+     * the executor for the source. The overall latency is then that of the
+     * slowest group, rather than of all of the channels together.
+     */
+    private List<TrendingSeries> readTrendingDataInGroups(List<String> keys, long t1, long t2, int nBins, Flavor flavor, String source) throws IOException {
+        if (FANOUT_GROUP_SIZE <= 0 || keys.size() <= FANOUT_GROUP_SIZE) {
+            return readTrendingData(keys, t1, t2, nBins, flavor, source);
+        }
+        String sourceToUse = source == null ? defaultSource : source;
+        ExecutorService executor = sessionsMap.get(sourceToUse).getFanoutExecutor();
+        List<Future<List<TrendingSeries>>> futures = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i += FANOUT_GROUP_SIZE) {
+            List<String> group = keys.subList(i, Math.min(keys.size(), i + FANOUT_GROUP_SIZE));
+            futures.add(executor.submit(() -> readTrendingData(group, t1, t2, nBins, flavor, source)));
+        }
+        List<TrendingSeries> result = new ArrayList<>(keys.size());
+        try {
+            for (Future<List<TrendingSeries>> future : futures) {
+                result.addAll(future.get());
+            }
+        } catch (InterruptedException x) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Error reading trending data", cause);
+        } finally {
+            // Only drop groups which have not started: a running read may be a coalesced read
+            // which other requests are waiting for, so it must not be interrupted
+            for (Future<List<TrendingSeries>> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return result;
+    }
+
+    private static String dataURL(List<String> keys, long t1, long t2, int nBins, Flavor flavor, String source) {
+        StringBuilder allKeys = new StringBuilder();
+        for (String key : keys) {
+            allKeys.append("id=").append(key).append('&');
+        }
+        return String.format("data/?%st1=%s&t2=%s&n=%s&flavor=%s&source=%s", allKeys, t1, t2, nBins, flavor.toString().toLowerCase(), source);
+    }
+
+    /**
+     * Read trending data from the dataserver. Identical concurrent reads of
+     * the same source are merged into a single request, whose result is
+     * shared between all callers and so must not be modified.
+     */
+    private List<TrendingSeries> readTrendingData(List<String> keys, long t1, long t2, int nBins, Flavor flavor, String source) throws IOException {
+        String dataURL = dataURL(keys, t1, t2, nBins, flavor, source);
+        String sourceToUse = source == null ? defaultSource : source;
+        return sessionsMap.get(sourceToUse).getDataRequests().execute(dataURL, () -> {
+            LOG.log(Level.INFO, "Reading: {0}", dataURL);
+            try (InputStream in = openURL(dataURL, source)) {
+                return TrendingDataParser.parse(in, keys.size(), nBins);
+            } catch (IOException ex) {
+                throw new IOException("Error processing restful data from: " + dataURL, ex);
+            }
+        });
+    }
+
+    /**
+     * Read RAW trending data, reduced to at most <code>nBuckets</code> points
+     * per channel by {@link LttbDownsampler} as the reply is parsed.
+     *
+     * @return One series per key, in the same order as the keys
+     */
+    List<TrendingSeries> getDownsampledTrendingData(List<String> keys, long t1, long t2, int nBuckets, String source) throws IOException {
+        String dataURL = dataURL(keys, t1, t2, nBuckets, Flavor.RAW, source);
+        String sourceToUse = source == null ? defaultSource : source;
+        return sessionsMap.get(sourceToUse).getDataRequests().execute(dataURL + "&downsample=lttb", () -> {
+            LOG.log(Level.INFO, "Reading (downsampled): {0}", dataURL);
+            try (InputStream in = openURL(dataURL, source)) {
+                LttbDownsampler downsampler = new LttbDownsampler(keys.size(), t1, t2, nBuckets);
+                TrendingDataParser.parse(in, keys.size(), downsampler);
+                return downsampler.finish();
+            } catch (IOException ex) {
+                throw new IOException("Error processing restful data from: " + dataURL, ex);
+            }
+        });
+    }
+
+    Map<String, UpstreamStatistics> getUpstreamStatistics() {
+        Map<String, UpstreamStatistics> result = new LinkedHashMap<>();
+        for (Map.Entry<String, SessionWrapper> entry : sessionsMap.entrySet()) {
+            UpstreamStatistics statistics = entry.getValue().getConnections().getStatistics();
+            statistics.setBreaker(entry.getValue().getBreaker().getStatistics());
+            if (entry.getValue().getUseSSH()) {
+                statistics.setTunnels(entry.getValue().getTunnels().getStatistics());
             }
+            result.put(entry.getKey(), statistics);
         }
-        ChannelTree result = fullChannelTree.get();
-        if (result == null) {
-            throw new IOException("Full channel tree unavailable");
+        return result;
+    }
+
+    Map<String, CacheStatistics> getCacheStatistics() {
+        Map<String, CacheStatistics> result = new LinkedHashMap<>();
+        for (Map.Entry<String, SessionWrapper> entry : sessionsMap.entrySet()) {
+            CacheStatistics statistics = entry.getValue().getBinCache().getStatistics();
+            if (entry.getValue().getRollups() != null) {
+                statistics.setRollups(entry.getValue().getRollups().getStatistics());
+            }
+            result.put(entry.getKey(), statistics);
         }
         return result;
     }
 
+    LiveUpdates getLiveUpdates() {
+        return liveUpdates;
+    }
+
+    @Override
+    public void close() {
+        liveUpdates.close();
+        treeLoader.shutdownNow();
+        for ( SessionWrapper sw : sessionsMap.values() ) {
+            sw.getFanoutExecutor().shutdownNow();
+            if (sw.getUseSSH() ) {
+                sw.getTunnels().close();
+            }
+        }
+    }
+
+    /**
+     * Get the current channel tree. This never waits for the tree to be
+     * read: until the first read completes a tree containing only a message
+     * is returned.
+     *
+     * @param refresh If <code>true</code> the tree is read again as soon as
+     * possible, but the current tree is still returned
+     */
+    ChannelTree getChannelTree(boolean refresh) {
+        treeUsed = true;
+        return channelTree.get(refresh);
+    }
+
+    /**
+     * Get the current tree of all channels, including those which have not
+     * been active recently, see {@link #getChannelTree}.
+     */
+    ChannelTree getFullChannelTree(boolean refresh) {
+        treeUsed = true;
+        return fullChannelTree.get(refresh);
+    }
+
+    /**
+     * Whether a tree which has been asked for (because it has never been
+     * read, or a refresh was requested) is still being read, in which case
+     * the tree returned now will be replaced shortly.
+     *
+     * @param full <code>true</code> for the full channel tree
+     */
+    boolean isChannelTreePending(boolean full) {
+        return (full ? fullChannelTree : channelTree).pending;
+    }
+
+    /**
+     * Read the channels which have been active since the last read, and merge
+     * any new ones into the channel trees which have been read, so that new
+     * channels appear between the full reloads, which are still needed to drop
+     * channels.
+     * <p>
+     * The dataserver can only list the channels which have been active
+     * recently, not those which are new, and nearly every channel is active
+     * all the time. So each read downloads and parses about as much as reading
+     * the recent tree; only the rebuild of the trees is saved when nothing is
+     * new. That is why the reads are hourly by default, and are skipped when
+     * no channel tree has been asked for since the last one.
+     * <p>
+     * Each read reaches back to the dataserver time of the previous one, as
+     * worked out from its <code>activeSinceDate</code>. If a read fails the
+     * next one simply reaches further back. If the dataserver reports that a
+     * read does not reach back far enough, for example because its clock
+     * jumped, the trees are read again in full.
+     */
+    private void syncChannelTrees() {
+        if (syncedAt == 0) {
+            // Nothing to synchronize until the channel tree has been read
+            return;
+        }
+        if (!treeUsed) {
+            // The next read reaches back to the last one, so nothing is missed
+            return;
+        }
+        treeUsed = false;
+        long start = System.currentTimeMillis();
+        long maxIdleSeconds = TimeUnit.MILLISECONDS.toSeconds(start - syncedAt + TREE_SYNC_OVERLAP);
+        try (InputStream in = openURL("listchannels?maxIdleSeconds=" + maxIdleSeconds, null)) {
+            ChannelTree delta = new ChannelTree(in);
+            LOG.log(Level.FINE, "Read incremental channel list for site {0}, {1} nodes in {2} ms", new Object[]{name, delta.size(), System.currentTimeMillis() - start});
+            if (delta.getActiveSince() > syncedTo && syncedTo != 0) {
+                LOG.log(Level.WARNING, "Incremental channel list for site {0} starts after the previous one, reading channel trees again", name);
+                channelTree.reload();
+                fullChannelTree.reload();
+            }
+            channelTree.update(delta);
+            fullChannelTree.update(delta);
+            synced(delta, maxIdleSeconds, start);
+        } catch (IOException | RuntimeException x) {
+            LOG.log(Level.WARNING, "Error reading incremental channel list for site " + name, x);
+        }
+    }
+
+    private void synced(ChannelTree tree, long maxIdleSeconds, long start) {
+        syncedAt = start;
+        syncedTo = tree.getActiveSince() == 0 ? 0 : tree.getActiveSince() + TimeUnit.SECONDS.toMillis(maxIdleSeconds);
+    }
+
+    /**
+     * Keeps a channel tree up to date by reading it in the background. A new
+     * tree is swapped in atomically once it has been read, so the current one
+     * can always be returned at once. At most one read is ever scheduled, and
+     * asking for a refresh can only bring it forward.
+     */
+    private class ChannelTreeLoader implements Runnable {
+
+        private final String description;
+        private final long maxIdleSeconds;
+        private final AtomicReference<ChannelTree> tree = new AtomicReference<>();
+        private ScheduledFuture<?> next;
+        private boolean reading;
+        // Set when the tree is asked for before it has been read, or a refresh is asked for
+        private volatile boolean pending;
+
+        /**
+         * @param description The description of the tree, for logging
+         * @param maxIdleSeconds The channels included are those active within
+         * this time, or all channels if 0
+         */
+        ChannelTreeLoader(String description, long maxIdleSeconds) {
+            this.description = description;
+            this.maxIdleSeconds = maxIdleSeconds;
+        }
+
+        ChannelTree get(boolean refresh) {
+            ChannelTree result = tree.get();
+            if (result == null || refresh) {
+                pending = true;
+                schedule(0);
+            }
+            return result != null ? result : READING_TREE;
+        }
+
+        /**
+         * Read the tree again at once, if it has been read before.
+         */
+        void reload() {
+            if (tree.get() != null) {
+                schedule(0);
+            }
+        }
+
+        /**
+         * Merge an incremental channel list into the tree, if it has been
+         * read.
+         */
+        void update(ChannelTree delta) {
+            ChannelTree current = tree.get();
+            if (current != null) {
+                ChannelTree updated = current.update(delta);
+                if (updated != current && tree.compareAndSet(current, updated)) {
+                    LOG.log(Level.INFO, "Updated {0} for site {1}, {2} nodes", new Object[]{description, name, updated.size()});
+                }
+            }
+        }
+
+        /**
+         * Make sure a read is scheduled within the given delay.
+         */
+        synchronized void schedule(long delay) {
+            if (reading || (next != null && next.getDelay(TimeUnit.MILLISECONDS) <= delay)) {
+                return;
+            }
+            if (next != null && !next.cancel(false)) {
+                // Already started
+                return;
+            }
+            next = treeLoader.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                reading = true;
+                next = null;
+            }
+            long delay;
+            long start = System.currentTimeMillis();
+            try (InputStream in = openURL("listchannels?maxIdleSeconds=" + maxIdleSeconds, null)) {
+                ChannelTree newTree = new ChannelTree(in);
+                tree.set(newTree);
+                if (this == channelTree && syncedAt == 0) {
+                    // Includes every recently active channel, so incremental reads can start from here
+                    synced(newTree, maxIdleSeconds, start);
+                }
+                LOG.log(Level.INFO, "Read {0} for site {1}, {2} nodes, {3} KB", new Object[]{description, name, newTree.size(), newTree.getFootprint() / 1024});
+                delay = TREE_RELOAD_INTERVAL;
+            } catch (IOException | RuntimeException x) {
+                LOG.log(Level.WARNING, "Error reading " + description + " for site " + name, x);
+                delay = TREE_RETRY_INTERVAL;
+            }
+            synchronized (this) {
+                reading = false;
+                pending = false;
+                schedule(delay);
+            }
+        }
+    }
+
     String getName() {
         return name;
     }    
@@ -0,0 +1,804 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.lsst.ccs.web.trending.TrendingRestInterface.TrendingPerSeriesMetaData;
+
+/**
+ * Reads the XML returned by the dataserver <code>data/</code> request into
+ * one {@link TrendingSeries} per requested channel.
+ * <p>
+ * A general purpose XML parser creates a <code>String</code> for every
+ * attribute, which for a large reply is most of what it allocates. So replies
+ * in UTF-8 (or ASCII), which is what the dataserver sends, are read by
+ * scanning the raw bytes, decoding the numbers directly from the buffer with
+ * {@link AsciiNumbers}, so reading a bin allocates nothing. The scanner skips
+ * comments, processing instructions, CDATA sections and DOCTYPE declarations,
+ * expands the predefined entities and character references, and rejects any
+ * other entity, as the streaming (StAX) reader does. Replies in any other
+ * encoding are read with a StAX reader created from a single shared factory.
+ * Scanners (and their buffers) are pooled and reused between requests.
+ * <p>
+ * Either way each bin is passed to the {@link Sink} as primitives as soon as
+ * it has been read, so no per-bin objects are kept.
+ */
+class TrendingDataParser {
+
+    private static final int MAX_INITIAL_CAPACITY = 100000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TOKEN_SIZE = 64;
+    private static final BlockingQueue<TrendingDataParser> POOL = new ArrayBlockingQueue<>(16);
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private static final int UNKNOWN = 0;
+    private static final int TRENDINGDATA = 1;
+    private static final int AXISVALUE = 2;
+    private static final int DATAVALUE = 3;
+    private static final int DATA = 4;
+    private static final int CHANNELMETADATA = 5;
+    private static final int CHANNELMETADATAVALUE = 6;
+    private static final byte[][] ELEMENTS = ascii("", "trendingdata", "axisvalue", "datavalue", "data", "channelmetadata", "channelmetadatavalue");
+
+    private static final int VALUE = 1;
+    private static final int RMS = 2;
+    private static final int MIN = 3;
+    private static final int MAX = 4;
+    private static final int UNITS = 5;
+    private static final int FORMAT = 6;
+    private static final int DESCRIPTION = 7;
+    private static final int STATE = 8;
+    private static final byte[][] NAMES = ascii("", "value", "rms", "min", "max", "units", "format", "description", "state");
+
+    private static final byte[] NAME_ATTRIBUTE = "name".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VALUE_ATTRIBUTE = NAMES[VALUE];
+    private static final byte[] XML_DECLARATION = "<?xml".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private InputStream in;
+    private int nSeries;
+    private Sink sink;
+
+    private byte[] token = new byte[TOKEN_SIZE];
+    private int tokenLength;
+    private byte[] value = new byte[TOKEN_SIZE];
+    private int valueLength;
+    // Whether the value needs decoding, rather than being plain ASCII
+    private boolean valueEscaped;
+    private int name;
+    private int depth;
+
+    private int y;
+    private int m;
+    private long time;
+    private boolean hasTime;
+    private double binValue;
+    private double binRMS;
+    private double binMin;
+    private double binMax;
+    private String units;
+    private String format;
+    private String description;
+    private String state;
+
+    private TrendingDataParser() {
+    }
+
+    /**
+     * Receives the data as it is parsed.
+     */
+    interface Sink {
+
+        void addBin(int series, long time, double value, double rms, double min, double max) throws IOException;
+
+        void addMetaData(int series, TrendingPerSeriesMetaData meta) throws IOException;
+    }
+
+    /**
+     * Parse a dataserver reply.
+     *
+     * @param in The stream to read from
+     * @param nSeries The number of channels requested
+     * @param expectedBins The number of bins expected per channel, used only
+     * to size the series so they do not need to grow while being filled
+     * @return A list containing exactly <code>nSeries</code> series, in the
+     * order in which they were requested.
+     * @throws IOException If the reply cannot be read or parsed
+     */
+    static List<TrendingSeries> parse(InputStream in, int nSeries, int expectedBins) throws IOException {
+        final List<TrendingSeries> result = new ArrayList<>(nSeries);
+        int capacity = Math.max(16, Math.min(expectedBins, MAX_INITIAL_CAPACITY));
+        for (int i = 0; i < nSeries; i++) {
+            result.add(new TrendingSeries(capacity));
+        }
+        parse(in, nSeries, new Sink() {
+            @Override
+            public void addBin(int series, long time, double value, double rms, double min, double max) {
+                result.get(series).add(time, value, rms, min, max);
+            }
+
+            @Override
+            public void addMetaData(int series, TrendingPerSeriesMetaData meta) {
+                result.get(series).setMeta(meta);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Parse a dataserver reply, passing each bin to the sink as soon as it
+     * has been read.
+     *
+     * @param in The stream to read from
+     * @param nSeries The number of channels requested, data for any further
+     * channels is ignored
+     * @param sink The receiver of the data
+     * @throws IOException If the reply cannot be read or parsed, or the sink
+     * fails
+     */
+    static void parse(InputStream in, int nSeries, Sink sink) throws IOException {
+        TrendingDataParser parser = POOL.poll();
+        if (parser == null) {
+            parser = new TrendingDataParser();
+        }
+        try {
+            parser.read(in, nSeries, sink);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Error parsing trending data", ex);
+        } finally {
+            parser.release();
+            POOL.offer(parser);
+        }
+    }
+
+    private void read(InputStream in, int nSeries, Sink sink) throws IOException {
+        this.in = in;
+        this.nSeries = nSeries;
+        this.sink = sink;
+        position = limit = 0;
+        y = m = depth = 0;
+        if (!isUTF8()) {
+            // Hand the StAX reader what has been read so far as well as the rest of the stream
+            readWithStAX(new SequenceInputStream(new ByteArrayInputStream(buffer, position, limit - position), in), nSeries, sink);
+            return;
+        }
+        for (int c = read(); c >= 0; c = read()) {
+            if (c == '&') {
+                checkEntity();
+            }
+            // Otherwise text content is of no interest
+            if (c != '<') {
+                continue;
+            }
+            c = next();
+            if (c == '?') {
+                skipPast('?', 1);
+            } else if (c == '!') {
+                skipDeclaration();
+            } else if (c == '/') {
+                int element = readElement(next());
+                if (skipWhitespace() != '>' || --depth < 0) {
+                    throw new IOException("Malformed end tag in trending data");
+                }
+                endElement(element);
+            } else {
+                int element = readElement(c);
+                boolean empty = readAttributes();
+                depth++;
+                startElement(element);
+                if (empty) {
+                    depth--;
+                    endElement(element);
+                }
+            }
+        }
+        if (depth != 0) {
+            throw new IOException("Unexpected end of trending data");
+        }
+    }
+
+    /**
+     * Clear the state of a request, before the parser is returned to the
+     * pool.
+     */
+    private void release() {
+        in = null;
+        sink = null;
+        units = format = description = state = null;
+        // Do not keep buffers grown for an unusually long attribute
+        if (token.length > BUFFER_SIZE) {
+            token = new byte[TOKEN_SIZE];
+        }
+        if (value.length > BUFFER_SIZE) {
+            value = new byte[TOKEN_SIZE];
+        }
+    }
+
+    /**
+     * Look at the start of the reply to decide whether it can be scanned as
+     * UTF-8. This is the case if it starts with <code>&lt;</code> or
+     * whitespace (after an optional byte order mark), and any XML declaration
+     * names UTF-8 or ASCII as the encoding.
+     */
+    private boolean isUTF8() throws IOException {
+        fill(3);
+        if (limit >= 3 && (buffer[0] & 0xFF) == 0xEF && (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF) {
+            position = 3;
+        }
+        fill(position + XML_DECLARATION.length);
+        if (position == limit) {
+            return true;
+        }
+        if (buffer[position] != '<') {
+            return buffer[position] == ' ' || buffer[position] == '\t' || buffer[position] == '\r' || buffer[position] == '\n';
+        }
+        for (int i = 0; i < XML_DECLARATION.length; i++) {
+            if (position + i >= limit || buffer[position + i] != XML_DECLARATION[i]) {
+                return true;
+            }
+        }
+        int end = position;
+        while (end < limit || (limit < buffer.length && fill(limit + 1))) {
+            if (buffer[end] == '>') {
+                break;
+            }
+            end++;
+        }
+        if (end == limit) {
+            // Leave an unterminated declaration for the StAX reader to report
+            return false;
+        }
+        String declaration = new String(buffer, position, end - position, StandardCharsets.ISO_8859_1);
+        int i = declaration.indexOf("encoding");
+        if (i < 0) {
+            return true;
+        }
+        int quote = i;
+        while (quote < declaration.length() && declaration.charAt(quote) != '"' && declaration.charAt(quote) != '\'') {
+            quote++;
+        }
+        int endQuote = quote < declaration.length() ? declaration.indexOf(declaration.charAt(quote), quote + 1) : -1;
+        if (endQuote < 0) {
+            return false;
+        }
+        String encoding = declaration.substring(quote + 1, endQuote);
+        return encoding.equalsIgnoreCase("UTF-8") || encoding.equalsIgnoreCase("UTF8")
+                || encoding.equalsIgnoreCase("US-ASCII") || encoding.equalsIgnoreCase("ASCII");
+    }
+
+    /**
+     * Read until the buffer holds at least <code>count</code> bytes, or the
+     * stream ends. Only used at the start of the reply.
+     *
+     * @return <code>true</code> if the buffer holds <code>count</code> bytes
+     */
+    private boolean fill(int count) throws IOException {
+        while (limit < count) {
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n <= 0) {
+                return false;
+            }
+            limit += n;
+        }
+        return true;
+    }
+
+    private void startElement(int element) throws IOException {
+        switch (element) {
+            case TRENDINGDATA:
+                hasTime = false;
+                binValue = binRMS = binMin = binMax = Double.NaN;
+                break;
+            case AXISVALUE:
+                if (valueLength >= 0) {
+                    time = valueEscaped ? Long.parseLong(decodeValue()) : AsciiNumbers.parseLong(value, 0, valueLength);
+                    hasTime = true;
+                }
+                break;
+            case DATAVALUE:
+                if (valueLength >= 0 && name != UNKNOWN) {
+                    double d = valueEscaped ? Double.parseDouble(decodeValue()) : AsciiNumbers.parseDouble(value, 0, valueLength);
+                    switch (name) {
+                        case VALUE:
+                            binValue = d;
+                            break;
+                        case RMS:
+                            binRMS = d;
+                            break;
+                        case MIN:
+                            binMin = d;
+                            break;
+                        case MAX:
+                            binMax = d;
+                            break;
+                    }
+                }
+                break;
+            case CHANNELMETADATA:
+                units = format = description = state = null;
+                break;
+            case CHANNELMETADATAVALUE:
+                if (valueLength >= 0) {
+                    switch (name) {
+                        case UNITS:
+                            units = decodeValue();
+                            break;
+                        case FORMAT:
+                            format = decodeValue();
+                            break;
+                        case DESCRIPTION:
+                            description = decodeValue();
+                            break;
+                        case STATE:
+                            state = decodeValue();
+                            break;
+                    }
+                }
+                break;
+        }
+    }
+
+    private void endElement(int element) throws IOException {
+        switch (element) {
+            case TRENDINGDATA:
+                if (y < nSeries) {
+                    if (!hasTime) {
+                        throw new IOException("Trending data without a time");
+                    }
+                    sink.addBin(y, time, binValue, binRMS, binMin, binMax);
+                }
+                break;
+            case DATA:
+                y++;
+                break;
+            case CHANNELMETADATA:
+                if (m < nSeries) {
+                    sink.addMetaData(m, new TrendingPerSeriesMetaData(units, format, description, state));
+                }
+                m++;
+                break;
+        }
+    }
+
+    /**
+     * Read an element name, starting with the given character, and identify
+     * it. Any namespace prefix is ignored.
+     */
+    private int readElement(int c) throws IOException {
+        readToken(c);
+        return lookup(ELEMENTS);
+    }
+
+    /**
+     * Read the attributes of a start tag, up to and including the closing
+     * <code>&gt;</code>. Only the <code>name</code> and <code>value</code>
+     * attributes are kept.
+     *
+     * @return <code>true</code> if this was an empty element tag
+     */
+    private boolean readAttributes() throws IOException {
+        name = UNKNOWN;
+        valueLength = -1;
+        for (;;) {
+            int c = skipWhitespace();
+            if (c == '>') {
+                return false;
+            } else if (c == '/') {
+                if (next() != '>') {
+                    throw new IOException("Malformed tag in trending data");
+                }
+                return true;
+            }
+            // Attributes in a namespace are not the ones of interest
+            boolean prefixed = readToken(c);
+            boolean isName = !prefixed && matches(NAME_ATTRIBUTE);
+            boolean isValue = !prefixed && !isName && matches(VALUE_ATTRIBUTE);
+            if (skipWhitespace() != '=') {
+                throw new IOException("Malformed attribute in trending data");
+            }
+            int quote = skipWhitespace();
+            if (quote != '"' && quote != '\'') {
+                throw new IOException("Malformed attribute in trending data");
+            }
+            if (isName) {
+                name = readQuoted(quote) ? lookup(NAMES, decode(token, tokenLength)) : lookup(NAMES);
+            } else if (isValue) {
+                readValue(quote);
+            } else {
+                readQuoted(quote);
+            }
+        }
+    }
+
+    /**
+     * Read a name into the token buffer, without any namespace prefix. The
+     * character which ends the name is left unread.
+     *
+     * @return <code>true</code> if the name had a prefix
+     */
+    private boolean readToken(int c) throws IOException {
+        tokenLength = 0;
+        boolean prefixed = false;
+        while (c != '>' && c != '/' && c != '=' && c > ' ') {
+            if (c == ':') {
+                tokenLength = 0;
+                prefixed = true;
+            } else {
+                if (tokenLength == token.length) {
+                    token = Arrays.copyOf(token, tokenLength * 2);
+                }
+                token[tokenLength++] = (byte) c;
+            }
+            c = next();
+        }
+        position--;
+        return prefixed;
+    }
+
+    /**
+     * Read a quoted attribute value into the token buffer, up to and including
+     * the closing quote.
+     *
+     * @return <code>true</code> if the value must be decoded with
+     * {@link #decode(byte[], int)}, rather than being plain ASCII
+     */
+    private boolean readQuoted(int quote) throws IOException {
+        tokenLength = 0;
+        boolean escaped = false;
+        for (int c = next(); c != quote; c = next()) {
+            escaped |= isEscaped(c);
+            if (tokenLength == token.length) {
+                token = Arrays.copyOf(token, tokenLength * 2);
+            }
+            token[tokenLength++] = (byte) c;
+        }
+        return escaped;
+    }
+
+    /**
+     * Read a quoted attribute value into the value buffer, up to and including
+     * the closing quote.
+     */
+    private void readValue(int quote) throws IOException {
+        valueLength = 0;
+        valueEscaped = false;
+        for (int c = next(); c != quote; c = next()) {
+            valueEscaped |= isEscaped(c);
+            if (valueLength == value.length) {
+                value = Arrays.copyOf(value, valueLength * 2);
+            }
+            value[valueLength++] = (byte) c;
+        }
+    }
+
+    /**
+     * Check a byte of an attribute value.
+     *
+     * @return <code>true</code> if the byte starts an entity, is part of a
+     * multi-byte character, or is whitespace which must be normalized
+     */
+    private static boolean isEscaped(int c) throws IOException {
+        if (c == '<') {
+            throw new IOException("Malformed attribute in trending data");
+        }
+        return c == '&' || c >= 0x80 || c < ' ';
+    }
+
+    private String decodeValue() throws IOException {
+        return decode(value, valueLength);
+    }
+
+    /**
+     * Decode an attribute value, expanding entities and normalizing
+     * whitespace as an XML parser would.
+     */
+    private static String decode(byte[] bytes, int length) throws IOException {
+        String text = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes, 0, length)).toString();
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                int end = text.indexOf(';', i);
+                if (end < 0) {
+                    throw new IOException("Malformed entity in trending data");
+                }
+                readEntity(text.substring(i + 1, end), result);
+                i = end;
+            } else {
+                result.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Check an entity reference in text content, following the
+     * <code>&amp;</code>.
+     */
+    private void checkEntity() throws IOException {
+        tokenLength = 0;
+        for (int c = next(); c != ';'; c = next()) {
+            if (c == '<' || c == '&' || c <= ' ' || tokenLength == token.length) {
+                throw new IOException("Malformed entity in trending data");
+            }
+            token[tokenLength++] = (byte) c;
+        }
+        readEntity(new String(token, 0, tokenLength, StandardCharsets.ISO_8859_1), new StringBuilder());
+    }
+
+    /**
+     * Expand a predefined entity or character reference.
+     *
+     * @throws IOException If the entity is not one of these
+     */
+    private static void readEntity(String entity, StringBuilder result) throws IOException {
+        switch (entity) {
+            case "lt":
+                result.append('<');
+                break;
+            case "gt":
+                result.append('>');
+                break;
+            case "amp":
+                result.append('&');
+                break;
+            case "quot":
+                result.append('"');
+                break;
+            case "apos":
+                result.append('\'');
+                break;
+            default:
+                int codePoint = -1;
+                if (entity.startsWith("#x")) {
+                    codePoint = Integer.parseInt(entity.substring(2), 16);
+                } else if (entity.startsWith("#")) {
+                    codePoint = Integer.parseInt(entity.substring(1));
+                }
+                if (codePoint < 0 || !Character.isValidCodePoint(codePoint)) {
+                    throw new IOException("Undeclared entity &" + entity + "; in trending data");
+                }
+                result.appendCodePoint(codePoint);
+        }
+    }
+
+    private static int lookup(byte[][] names, String text) {
+        for (int i = 1; i < names.length; i++) {
+            if (text.equals(new String(names[i], StandardCharsets.US_ASCII))) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private int lookup(byte[][] names) {
+        for (int i = 1; i < names.length; i++) {
+            if (matches(names[i])) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private boolean matches(byte[] name) {
+        if (name.length != tokenLength) {
+            return false;
+        }
+        for (int i = 0; i < tokenLength; i++) {
+            if (token[i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip a comment, CDATA section or DOCTYPE declaration, following
+     * <code>&lt;!</code>.
+     */
+    private void skipDeclaration() throws IOException {
+        int c = next();
+        if (c == '-') {
+            skipPast('-', 2);
+        } else if (c == '[') {
+            skipPast(']', 2);
+        } else {
+            // A DOCTYPE, which may contain an internal subset in brackets
+            for (int brackets = 0; c != '>' || brackets > 0; c = next()) {
+                if (c == '[') {
+                    brackets++;
+                } else if (c == ']') {
+                    brackets--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Skip up to and including the next <code>&gt;</code> (or other
+     * terminator) which follows at least <code>count</code> consecutive
+     * <code>repeated</code> characters. This handles the terminators
+     * <code>?&gt;</code>, <code>--&gt;</code> and <code>]]&gt;</code>, as well
+     * as (with a count of zero) a single character.
+     */
+    private void skipPast(int repeated, int count) throws IOException {
+        int terminator = count == 0 ? repeated : '>';
+        for (int run = 0;;) {
+            int c = next();
+            if (c == terminator && run >= count) {
+                return;
+            }
+            run = c == repeated ? run + 1 : 0;
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c = next();
+        while (c <= ' ') {
+            c = next();
+        }
+        return c;
+    }
+
+    /**
+     * Read the next byte, which must exist.
+     */
+    private int next() throws IOException {
+        int c = read();
+        if (c < 0) {
+            throw new IOException("Unexpected end of trending data");
+        }
+        return c;
+    }
+
+    /**
+     * Read the next byte, or return -1 at the end of the stream.
+     */
+    private int read() throws IOException {
+        if (position == limit) {
+            int n = in.read(buffer, 0, buffer.length);
+            if (n <= 0) {
+                position = limit = 0;
+                return -1;
+            }
+            position = 0;
+            limit = n;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private static byte[][] ascii(String... names) {
+        byte[][] result = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            result[i] = names[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return result;
+    }
+
+    private static void readWithStAX(InputStream in, int nSeries, Sink sink) throws IOException {
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+            try {
+                read(reader, nSeries, sink);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("Error parsing trending data", ex);
+        }
+    }
+
+    private static void read(XMLStreamReader reader, int nSeries, Sink sink) throws XMLStreamException, IOException {
+        int y = 0;
+        int m = 0;
+        long time = 0;
+        boolean hasTime = false;
+        double value = Double.NaN;
+        double rms = Double.NaN;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        String units = null;
+        String format = null;
+        String description = null;
+        String state = null;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "trendingdata":
+                        hasTime = false;
+                        value = rms = min = max = Double.NaN;
+                        break;
+                    case "axisvalue":
+                        String t = reader.getAttributeValue(null, "value");
+                        if (t != null) {
+                            time = Long.parseLong(t);
+                            hasTime = true;
+                        }
+                        break;
+                    case "datavalue":
+                        String name = reader.getAttributeValue(null, "name");
+                        String v = reader.getAttributeValue(null, "value");
+                        if (name != null && v != null) {
+                            switch (name) {
+                                case "value":
+                                    value = Double.parseDouble(v);
+                                    break;
+                                case "rms":
+                                    rms = Double.parseDouble(v);
+                                    break;
+                                case "min":
+                                    min = Double.parseDouble(v);
+                                    break;
+                                case "max":
+                                    max = Double.parseDouble(v);
+                                    break;
+                            }
+                        }
+                        break;
+                    case "channelmetadata":
+                        units = format = description = state = null;
+                        break;
+                    case "channelmetadatavalue":
+                        String key = reader.getAttributeValue(null, "name");
+                        if (key != null) {
+                            switch (key) {
+                                case "units":
+                                    units = reader.getAttributeValue(null, "value");
+                                    break;
+                                case "format":
+                                    format = reader.getAttributeValue(null, "value");
+                                    break;
+                                case "description":
+                                    description = reader.getAttributeValue(null, "value");
+                                    break;
+                                case "state":
+                                    state = reader.getAttributeValue(null, "value");
+                                    break;
+                            }
+                        }
+                        break;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "trendingdata":
+                        if (y < nSeries) {
+                            if (!hasTime) {
+                                throw new IOException("Trending data without a time");
+                            }
+                            sink.addBin(y, time, value, rms, min, max);
+                        }
+                        break;
+                    case "data":
+                        y++;
+                        break;
+                    case "channelmetadata":
+                        if (m < nSeries) {
+                            sink.addMetaData(m, new TrendingPerSeriesMetaData(units, format, description, state));
+                        }
+                        m++;
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -1,30 +1,40 @@
 package org.lsst.ccs.web.trending;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.jcraft.jsch.JSchException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import org.glassfish.jersey.server.ChunkedOutput;
 
 /**
  * The restful interface for the sequencer server, implemented using Jersey and
@@ -39,7 +49,21 @@ public class TrendingRestInterface {
     private final static Logger LOG = Logger.getLogger(TrendingRestInterface.class.getName());
     private static final Map<String, Site> sites = new HashMap<>();
     private final Site defaultSite;
+    @Context
+    private HttpHeaders headers;
+    @Context
+    private Request request;
+    private final static ObjectMapper MAPPER = JacksonConfigurator.createObjectMapper();
+    // Responses may be stored, but must be revalidated (using their entity tag) before reuse
+    private final static CacheControl NO_CACHE = CacheControl.valueOf("no-cache");
+    private final static MediaType BINARY_TYPE = MediaType.valueOf(BinaryTrendingResult.MEDIA_TYPE);
+    private final static String EVENT_STREAM = "text/event-stream";
     private final static Pattern SYNTAX_FILTER_PATTERN = Pattern.compile("(?:([a-z]+):)?(.*)");
+    // Filtered trees, keyed by tree generation, flatten and filter, so that each node expanded in a filtered tree does not filter it again
+    private static final int FILTER_CACHE_SIZE = Integer.getInteger("org.lsst.ccs.web.trending.channels.filterCacheSize", 32);
+    // Time after which a regular expression filter is abandoned, in milliseconds, 0 means no limit
+    private static final long FILTER_TIMEOUT = Long.getLong("org.lsst.ccs.web.trending.channels.regexTimeout", 2000);
+    private static final Map<String, ChannelTree> filterCache = new FilterCache();
 
     static {
         try {
@@ -76,11 +100,25 @@ public class TrendingRestInterface {
         STAT, RAW
     };
 
+    public enum Downsample {
+        NONE, LTTB
+    };
+
     public TrendingRestInterface() throws IOException {
         String defaultSiteName = System.getProperty("org.lsst.ccs.web.trending.default.site", "maincamera");
         defaultSite = getSiteForName(defaultSiteName);
         LOG.log(Level.INFO, "Created TrendingRestInterface with default site: {0}", defaultSite.getName());
     }
+
+    /**
+     * Find a site outside of a request, the empty name meaning the default
+     * site.
+     *
+     * @return The site, or <code>null</code> if there is no such site
+     */
+    static Site findSite(String siteName) {
+        return sites.get(siteName.isEmpty() ? System.getProperty("org.lsst.ccs.web.trending.default.site", "maincamera") : siteName);
+    }
     
     private Site getSiteForName(String siteName) {
         Site site = defaultSite;
@@ -119,26 +157,40 @@ public class TrendingRestInterface {
         ChannelTree tree =  fullTree ? 
                 site.getFullChannelTree(refreshTree) :                 
                 site.getChannelTree(refreshTree);
+        if (site.isChannelTreePending(fullTree)) {
+            // The tree asked for is still being read, 202 tells the client to ask again. There is no
+            // tag, so that a cached copy of this reply is never taken for the tree which is to come.
+            return Response.accepted(channels(tree, handle, filter, flatten)).cacheControl(NO_CACHE).build();
+        }
+        // The reply depends only on the tree and the (unchanged) query parameters. The tag
+        // is weak since the gzip and identity encodings of the reply share it.
+        EntityTag tag = new EntityTag(Long.toHexString(tree.getGeneration()), true);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.cacheControl(NO_CACHE).build();
+        }
+        return Response.ok(channels(tree, handle, filter, flatten)).tag(tag).cacheControl(NO_CACHE).build();
+    }
+
+    private Object channels(ChannelTree tree, Integer handle, String filter, Boolean flatten) {
         if (filter != null && !filter.isEmpty()) {
-            try {
-                Matcher matcher = SYNTAX_FILTER_PATTERN.matcher(filter);
-                if (!matcher.matches()) {
-                    throw new RuntimeException("Unknown syntax: " + filter);
-                }
-                String syntax = matcher.group(1);
-                String regexp = matcher.group(2);
-                if (syntax == null || syntax.isEmpty() || "glob".equals(syntax)) {
-                    regexp = Globs.toUnixRegexPattern(regexp);
-                } else if (!"regex".equals(syntax)) {
-                    throw new RuntimeException("Unknown syntax: " + syntax);
+            boolean flattenTree = flatten == null || flatten;
+            String key = tree.getGeneration() + ":" + flattenTree + ":" + filter;
+            ChannelTree filtered;
+            synchronized (filterCache) {
+                filtered = filterCache.get(key);
+            }
+            if (filtered == null) {
+                try {
+                    filtered = filter(tree, filter, flattenTree);
+                } catch (RuntimeException x) {
+                    return new ChannelTree("Invalid filter: " + x.getMessage()).getRoot().getChildren();
                 }
-                tree = tree.filter(Pattern.compile(regexp, Pattern.CASE_INSENSITIVE));
-                if (flatten == null || flatten) {
-                    tree = tree.flatten();
+                synchronized (filterCache) {
+                    filterCache.put(key, filtered);
                 }
-            } catch (RuntimeException x) {
-                return new ChannelTree("Invalid filter: " + x.getMessage()).getRoot().getChildren();
             }
+            tree = filtered;
         }
         if (tree.getRoot().getChildren().isEmpty()) {
             return new ChannelTree("Filter returned no results").getRoot().getChildren();
@@ -151,136 +203,171 @@ public class TrendingRestInterface {
         }
     }
 
+    private static ChannelTree filter(ChannelTree tree, String filter, boolean flatten) {
+        Matcher matcher = SYNTAX_FILTER_PATTERN.matcher(filter);
+        if (!matcher.matches()) {
+            throw new RuntimeException("Unknown syntax: " + filter);
+        }
+        String syntax = matcher.group(1);
+        String regexp = matcher.group(2);
+        if (syntax == null || syntax.isEmpty() || "glob".equals(syntax)) {
+            GlobMatcher glob = GlobMatcher.compile(regexp);
+            if (glob != null) {
+                tree = tree.filter(glob);
+                return flatten ? tree.flatten() : tree;
+            }
+            regexp = Globs.toUnixRegexPattern(regexp);
+        } else if (!"regex".equals(syntax)) {
+            throw new RuntimeException("Unknown syntax: " + syntax);
+        }
+        tree = tree.filter(Pattern.compile(regexp, Pattern.CASE_INSENSITIVE), FILTER_TIMEOUT);
+        return flatten ? tree.flatten() : tree;
+    }
+
     @GET
+    @Produces({MediaType.APPLICATION_JSON, BinaryTrendingResult.MEDIA_TYPE + ";qs=0.5"})
     public Object trending(
             @QueryParam(value = "key") List<String> keys, @QueryParam(value = "period") String period,
             @QueryParam(value = "t1") Long t1, @QueryParam(value = "t2") Long t2, @QueryParam(value = "n") Integer nBins,
-            @QueryParam(value = "flavor") Flavor flavor, @QueryParam(value = "errorBars") ErrorBars errorBars, @QueryParam(value = "source") String source) throws IOException {
-        return trending("", keys, period, t1, t2, nBins, flavor, errorBars, source);
+            @QueryParam(value = "flavor") Flavor flavor, @QueryParam(value = "errorBars") ErrorBars errorBars, @QueryParam(value = "source") String source,
+            @QueryParam(value = "since") Long since, @QueryParam(value = "align") Boolean align,
+            @QueryParam(value = "downsample") Downsample downsample) throws IOException {
+        return trending("", keys, period, t1, t2, nBins, flavor, errorBars, source, since, align, downsample);
     }
 
+    /**
+     * Read trending data. The result is JSON, unless the client asks for the
+     * binary form described in {@link BinaryTrendingResult} by preferring its
+     * media type in the <code>Accept</code> header. The dataserver reply is
+     * always read completely into per-channel {@link TrendingSeries} before
+     * the response is started, so a slow client never holds an upstream
+     * connection open, and an upstream failure is reported as an error
+     * rather than as a truncated body.
+     * <p>
+     * The reply is tagged with a hash of its content, so a client revalidating
+     * with <code>If-None-Match</code> gets an empty 304 if nothing changed.
+     * This only saves sending the reply: the data still has to be read (from
+     * the bin cache or the dataserver) to compute the tag.
+     * <p>
+     * RAW data can be reduced to at most <code>n</code> points per channel
+     * with <code>downsample=LTTB</code>, see {@link LttbDownsampler}.
+     */
     @GET
     @Path("{site}")
+    @Produces({MediaType.APPLICATION_JSON, BinaryTrendingResult.MEDIA_TYPE + ";qs=0.5"})
     public Object trending(
             @PathParam(value = "site") String siteName,
             @QueryParam(value = "key") List<String> keys, @QueryParam(value = "period") String period,
             @QueryParam(value = "t1") Long t1, @QueryParam(value = "t2") Long t2, @QueryParam(value = "n") Integer nBins,
-            @QueryParam(value = "flavor") Flavor flavor, @QueryParam(value = "errorBars") ErrorBars errorBars, @QueryParam(value = "source") String source) throws IOException {
+            @QueryParam(value = "flavor") Flavor flavor, @QueryParam(value = "errorBars") ErrorBars errorBars, @QueryParam(value = "source") String source,
+            @QueryParam(value = "since") Long since, @QueryParam(value = "align") Boolean align,
+            @QueryParam(value = "downsample") Downsample downsample) throws IOException {
 
         Site site = getSiteForName(siteName);
-        long now = System.currentTimeMillis();
-        long delta = 60 * 60 * 1000;
-        if (period != null) {
-            delta = 12 * 60 * 60 * 1000;
-        }
-        if (t1 == null) {
-            t1 = now - delta;
-        }
-        if (t2 == null) {
-            t2 = now;
-        }
-        if (nBins == null) {
-            nBins = 100;
-        }
-        if (flavor == null) {
-            flavor = Flavor.STAT;
-        }
-        if (errorBars == null) {
-            errorBars = ErrorBars.NONE;
-        }
-        TrendingMetaData meta = new TrendingMetaData(errorBars, nBins, t1, t2, flavor);
-        MergedMap merged = new MergedMap(keys.size(), errorBars);
-        StringBuilder allKeys = new StringBuilder();
-        for (String key : keys) {
-            allKeys.append("id=").append(key).append('&');
-        }
-        String dataURL = String.format("data/?%st1=%s&t2=%s&n=%s&flavor=%s&source=%s", allKeys, t1, t2, nBins, flavor.toString().toLowerCase(),source);
-        LOG.log(Level.INFO, "Reading: {0}", dataURL);
-        try (InputStream in = site.openURL(dataURL, source)) {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            DefaultHandler handler = new DefaultHandler() {
-
-                private int y = 0;
-                private String time;
-                private String value;
-                private String rms;
-                private String min;
-                private String max;
-                private String units;
-                private String format;
-                private String description;
-                private String state;
-
-                @Override
-                public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-                    switch (qName) {
-                        case "trendingdata":
-                            time = value = rms = min = max = "NaN";
-                            break;
-                        case "axisvalue":
-                            time = attributes.getValue("value");
-                            break;
-                        case "datavalue":
-                            switch (attributes.getValue("name")) {
-                                case "value":
-                                    value = attributes.getValue("value");
-                                    break;
-                                case "rms":
-                                    rms = attributes.getValue("value");
-                                    break;
-                                case "min":
-                                    min = attributes.getValue("value");
-                                    break;
-                                case "max":
-                                    max = attributes.getValue("value");
-                                    break;
-                            }
-                            break;
-                        case "channelmetadata":
-                            units = format = description = state = null;
-                            break;
-                        case "channelmetadatavalue":
-                            switch (attributes.getValue("name")) {
-                                case "units":
-                                    units = attributes.getValue("value");
-                                    break;
-                                case "format":
-                                    format = attributes.getValue("value");
-                                    break;
-                                case "description":
-                                    description = attributes.getValue("value");
-                                    break;
-                                case "state":
-                                    state = attributes.getValue("value");
-                                    break;
-                            }
-                            break;
-                    }
-                }
+        TrendingQuery query = new TrendingQuery(keys, period, t1, t2, nBins, flavor, errorBars, source, since, align, downsample);
+        query.resolve(System.currentTimeMillis());
+        MediaType binaryType = preferredBinaryType();
+        TrendingResult result = query.toResult(readData(site, query, query.getKey()));
+        // Weak, since the gzip and identity encodings of the reply share the tag
+        EntityTag tag = new EntityTag(Long.toHexString(TrendingSeries.mix(result.hash(), binaryType == null ? 0 : binaryType.toString().hashCode())), true);
+        Response.ResponseBuilder builder = request.evaluatePreconditions(tag);
+        if (builder == null) {
+            if (binaryType != null) {
+                BinaryTrendingResult binary = new BinaryTrendingResult(result.getMeta(), result.getData(), BinaryTrendingResult.isSinglePrecision(binaryType));
+                builder = Response.ok(binary, BinaryTrendingResult.MEDIA_TYPE);
+            } else {
+                builder = Response.ok(result, MediaType.APPLICATION_JSON_TYPE);
+            }
+            builder.tag(tag);
+        }
+        return builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT).cacheControl(NO_CACHE).build();
+    }
 
-                @Override
-                public void endElement(String uri, String localName, String qName) throws SAXException {
-                    switch (qName) {
-                        case "trendingdata":
-                            merged.put(time, value, rms, min, max, y);
-                            break;
-                        case "data":
-                            y++;
-                            break;
-                        case "channelmetadata":
-                            meta.addMetaData(units, format, description, state);
-                            break;
-                    }
+    /**
+     * Find the binary media type requested by the client, if the client
+     * prefers it to JSON.
+     *
+     * @return The requested type (including any parameters), or
+     * <code>null</code> if JSON should be used
+     */
+    private MediaType preferredBinaryType() {
+        if (headers != null) {
+            for (MediaType type : headers.getAcceptableMediaTypes()) {
+                if (!type.isWildcardType() && !type.isWildcardSubtype() && BINARY_TYPE.isCompatible(type)) {
+                    return type;
+                } else if (type.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+                    return null;
                 }
+            }
+        }
+        return null;
+    }
+
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Object batch(List<TrendingQuery> queries) {
+        return batch("", queries);
+    }
 
-            };
-            saxParser.parse(in, handler, "data");
+    /**
+     * Process a list of trending queries in a single request. Queries which
+     * end up reading the same time window from the same source are combined
+     * into a single read of the union of their keys.
+     *
+     * @param siteName The site
+     * @param queries The queries, each taking the same parameters as a trending
+     * GET request
+     * @return A list containing either the result or an error for each query
+     */
+    @POST
+    @Path("/{site}/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Object batch(@PathParam(value = "site") String siteName, List<TrendingQuery> queries) {
+        Site site = getSiteForName(siteName);
+        if (queries == null) {
+            throw new BadRequestException("Batch request must contain a list of queries");
+        }
+        for (TrendingQuery query : queries) {
+            if (query == null || query.getKey() == null || query.getKey().isEmpty() || query.getKey().contains(null)) {
+                throw new BadRequestException("Each query in a batch request must have at least one key");
+            }
+        }
+        long now = System.currentTimeMillis();
+        Map<String, TrendingQuery> readers = new LinkedHashMap<>();
+        Map<String, Set<String>> keysByRead = new LinkedHashMap<>();
+        for (TrendingQuery query : queries) {
+            query.resolve(now);
+            readers.putIfAbsent(query.getReadKey(), query);
+            keysByRead.computeIfAbsent(query.getReadKey(), (k) -> new LinkedHashSet<>()).addAll(query.getKey());
+        }
+        Map<String, Map<String, TrendingSeries>> data = new HashMap<>();
+        Map<String, IOException> errors = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : keysByRead.entrySet()) {
+            try {
+                data.put(entry.getKey(), readData(site, readers.get(entry.getKey()), new ArrayList<>(entry.getValue())));
+            } catch (IOException x) {
+                LOG.log(Level.WARNING, "Batch read failed", x);
+                errors.put(entry.getKey(), x);
+            }
+        }
+        List<Object> result = new ArrayList<>(queries.size());
+        for (TrendingQuery query : queries) {
+            IOException error = errors.get(query.getReadKey());
+            result.add(error == null ? query.toResult(data.get(query.getReadKey())) : new BatchError(error.getMessage()));
+        }
+        return result;
+    }
 
-        } catch (IOException | ParserConfigurationException | SAXException ex) {
-            throw new IOException("Error processing restful data from: " + dataURL, ex);
+    private Map<String, TrendingSeries> readData(Site site, TrendingQuery query, List<String> keys) throws IOException {
+        List<TrendingSeries> series = query.downsample == Downsample.LTTB
+                ? site.getDownsampledTrendingData(keys, query.from, query.t2, query.nRead, query.source)
+                : site.getTrendingData(keys, query.from, query.t2, query.nRead, query.flavor, query.source);
+        Map<String, TrendingSeries> result = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            result.put(keys.get(i), series.get(i));
         }
-        return new TrendingResult(meta, merged);
+        return result;
     }
 
     @GET
@@ -295,6 +382,368 @@ public class TrendingRestInterface {
         return defaultSite.getAvailableSources();
     }
 
+    @GET
+    @Path("/{site}/cache")
+    public Object cache(@PathParam(value = "site") String siteName) {
+        return getSiteForName(siteName).getCacheStatistics();
+    }
+
+    @GET
+    @Path("/cache")
+    public Object cache() {
+        return defaultSite.getCacheStatistics();
+    }
+
+    @GET
+    @Path("/subscribe")
+    @Produces(EVENT_STREAM)
+    public Response subscribe(
+            @QueryParam(value = "key") List<String> keys, @QueryParam(value = "t1") Long t1, @QueryParam(value = "t2") Long t2,
+            @QueryParam(value = "n") Integer nBins, @QueryParam(value = "errorBars") ErrorBars errorBars,
+            @QueryParam(value = "source") String source, @QueryParam(value = "plot") List<String> plots) throws IOException {
+        return subscribe("", keys, t1, t2, nBins, errorBars, source, plots);
+    }
+
+    /**
+     * Subscribe to live updates of STAT data, as a stream of server-sent
+     * events. The window has the length <code>t2 - t1</code>, ends now, and
+     * moves with time. It is snapped to a canonical grid (as with
+     * <code>align=true</code>) so that subscribers share the reads made for
+     * them, see {@link LiveUpdates}.
+     * <p>
+     * The data of each event is a trending result in JSON. The first event
+     * holds the whole window, and each later one the bins from
+     * <code>meta.since</code> on, which replace those the client already has.
+     * <p>
+     * Browsers only allow a few connections to each server, so a page with many
+     * plots should make a single subscription for all of them, with a
+     * <code>plot</code> parameter (a comma separated list of keys) for each plot
+     * instead of <code>key</code>. The data of each event is then a list with
+     * a trending result for each plot, in the same order.
+     */
+    @GET
+    @Path("/{site}/subscribe")
+    @Produces(EVENT_STREAM)
+    public Response subscribe(
+            @PathParam(value = "site") String siteName,
+            @QueryParam(value = "key") List<String> keys, @QueryParam(value = "t1") Long t1, @QueryParam(value = "t2") Long t2,
+            @QueryParam(value = "n") Integer nBins, @QueryParam(value = "errorBars") ErrorBars errorBars,
+            @QueryParam(value = "source") String source, @QueryParam(value = "plot") List<String> plots) throws IOException {
+
+        Site site = getSiteForName(siteName);
+        long now = System.currentTimeMillis();
+        // The client may be reconnecting with its original parameters, so only the length of the window is used
+        long length = t1 != null && t2 != null && t2 > t1 ? t2 - t1 : 60 * 60 * 1000;
+        List<List<String>> plotKeys = null;
+        if (plots != null && !plots.isEmpty()) {
+            plotKeys = new ArrayList<>(plots.size());
+            Set<String> allKeys = new LinkedHashSet<>();
+            for (String plot : plots) {
+                List<String> k = Arrays.asList(plot.split(","));
+                plotKeys.add(k);
+                allKeys.addAll(k);
+            }
+            keys = new ArrayList<>(allKeys);
+        }
+        TrendingQuery query = new TrendingQuery(keys, null, now - length, now, nBins, Flavor.STAT, errorBars, source, null, true, null);
+        query.resolve(now);
+        LiveSubscription subscription = new LiveSubscription(query, plotKeys);
+        // The first event holds the whole window, read once for all of the plots
+        subscription.write(null, now, readData(site, query, query.getKey()));
+        site.getLiveUpdates().subscribe(query.source, query.meta.getBinWidth(), subscription);
+        // Compressing the stream would hold back events until the compressor's buffer fills
+        return Response.ok(subscription.output, EVENT_STREAM).header(HttpHeaders.CONTENT_ENCODING, "identity").cacheControl(NO_CACHE).build();
+    }
+
+    @GET
+    @Path("/{site}/live")
+    public Object live(@PathParam(value = "site") String siteName) {
+        return getSiteForName(siteName).getLiveUpdates().getStatistics();
+    }
+
+    @GET
+    @Path("/live")
+    public Object live() {
+        return defaultSite.getLiveUpdates().getStatistics();
+    }
+
+    @GET
+    @Path("/{site}/upstream")
+    public Object upstream(@PathParam(value = "site") String siteName) {
+        return getSiteForName(siteName).getUpstreamStatistics();
+    }
+
+    @GET
+    @Path("/upstream")
+    public Object upstream() {
+        return defaultSite.getUpstreamStatistics();
+    }
+
+    /**
+     * The parameters of a single trending request. Populated either from the
+     * query parameters of a GET request, or by Jackson from the body of a batch
+     * request.
+     */
+    private static class TrendingQuery {
+
+        private List<String> key;
+        private String period;
+        private Long t1;
+        private Long t2;
+        private Integer n;
+        private Flavor flavor;
+        private ErrorBars errorBars;
+        private String source;
+        private Long since;
+        private Boolean align;
+        private Downsample downsample;
+        // Set by resolve
+        private TrendingMetaData meta;
+        private long from;
+        private int nRead;
+
+        public TrendingQuery() {
+        }
+
+        TrendingQuery(List<String> key, String period, Long t1, Long t2, Integer n, Flavor flavor, ErrorBars errorBars, String source, Long since, Boolean align, Downsample downsample) {
+            this.key = key;
+            this.period = period;
+            this.t1 = t1;
+            this.t2 = t2;
+            this.n = n;
+            this.flavor = flavor;
+            this.errorBars = errorBars;
+            this.source = source;
+            this.since = since;
+            this.align = align;
+            this.downsample = downsample;
+        }
+
+        public void setKey(List<String> key) {
+            this.key = key;
+        }
+
+        public void setPeriod(String period) {
+            this.period = period;
+        }
+
+        public void setT1(Long t1) {
+            this.t1 = t1;
+        }
+
+        public void setT2(Long t2) {
+            this.t2 = t2;
+        }
+
+        public void setN(Integer n) {
+            this.n = n;
+        }
+
+        public void setFlavor(Flavor flavor) {
+            this.flavor = flavor;
+        }
+
+        public void setErrorBars(ErrorBars errorBars) {
+            this.errorBars = errorBars;
+        }
+
+        public void setSource(String source) {
+            this.source = source;
+        }
+
+        public void setSince(Long since) {
+            this.since = since;
+        }
+
+        public void setAlign(Boolean align) {
+            this.align = align;
+        }
+
+        public void setDownsample(Downsample downsample) {
+            this.downsample = downsample;
+        }
+
+        List<String> getKey() {
+            return key;
+        }
+
+        /**
+         * Fill in defaults and work out which window has to be read.
+         */
+        void resolve(long now) {
+            if (key == null) {
+                key = Collections.emptyList();
+            }
+            long delta = 60 * 60 * 1000;
+            if (period != null) {
+                delta = 12 * 60 * 60 * 1000;
+            }
+            if (t1 == null) {
+                t1 = now - delta;
+            }
+            if (t2 == null) {
+                t2 = now;
+            }
+            if (n == null) {
+                n = 100;
+            }
+            if (flavor == null) {
+                flavor = Flavor.STAT;
+            }
+            if (errorBars == null) {
+                errorBars = ErrorBars.NONE;
+            }
+            // STAT data is already binned by the dataserver
+            if (downsample == null || flavor != Flavor.RAW || n <= 0) {
+                downsample = Downsample.NONE;
+            }
+            // Snap the window to a canonical grid, so that identical dashboards produce identical
+            // queries (and share bins in the cache) regardless of exactly when they were made.
+            Long binWidth = null;
+            if (align != null && align && flavor == Flavor.STAT && t2 > t1 && n > 0) {
+                binWidth = BinCache.canonicalBinWidth((t2 - t1) / n);
+                t1 = Math.floorDiv(t1, binWidth) * binWidth;
+                t2 = -Math.floorDiv(-t2, binWidth) * binWidth;
+                n = (int) ((t2 - t1) / binWidth);
+            }
+            meta = new TrendingMetaData(errorBars, n, t1, t2, flavor);
+            meta.setBinWidth(binWidth);
+            if (downsample != Downsample.NONE) {
+                meta.setDownsample(downsample);
+            }
+            // When the caller already has data up to "since", only the bins from the one containing
+            // "since" onwards are returned, and the caller should replace its data from meta.since on.
+            from = t1;
+            nRead = n;
+            if (since != null && since > t1 && t2 > t1) {
+                if (flavor == Flavor.RAW && downsample == Downsample.NONE) {
+                    from = Math.min(since, t2);
+                } else {
+                    long k = Math.min(n - 1, (since - t1) * n / (t2 - t1));
+                    from = t1 + k * (t2 - t1) / n;
+                    nRead = (int) (n - k);
+                }
+                meta.setSince(from);
+            }
+        }
+
+        /**
+         * A key which is identical for queries which read the same window
+         * from the same source.
+         */
+        String getReadKey() {
+            return from + ":" + t2 + ":" + nRead + ":" + flavor + ":" + downsample + ":" + source;
+        }
+
+        TrendingResult toResult(Map<String, TrendingSeries> data) {
+            List<TrendingSeries> sets = new ArrayList<>(key.size());
+            for (String k : key) {
+                TrendingSeries series = data.get(k);
+                sets.add(series);
+                if (series.isStale()) {
+                    meta.setStale(true);
+                }
+                if (series.getMeta() != null) {
+                    meta.addMetaData(series.getMeta());
+                }
+            }
+            return new TrendingResult(meta, new MergedMap(sets, errorBars));
+        }
+    }
+
+    /**
+     * A live update subscription, which writes each update to the client as
+     * a server-sent event.
+     */
+    private static class LiveSubscription implements LiveUpdates.Subscriber {
+
+        private final ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+        private final List<String> keys;
+        // The keys of each plot, or null for a subscription for a single plot
+        private final List<List<String>> plots;
+        private final long length;
+        private final int n;
+        private final ErrorBars errorBars;
+        private final String source;
+
+        LiveSubscription(TrendingQuery query, List<List<String>> plots) {
+            this.keys = query.key;
+            this.plots = plots;
+            this.length = query.t2 - query.t1;
+            this.n = query.n;
+            this.errorBars = query.errorBars;
+            this.source = query.source;
+        }
+
+        @Override
+        public List<String> getKeys() {
+            return keys;
+        }
+
+        @Override
+        public void update(long from, long to, Map<String, TrendingSeries> data) throws IOException {
+            if (output.isClosed()) {
+                throw new IOException("Subscription closed");
+            }
+            write(from, to, data);
+        }
+
+        /**
+         * Write an event with the bins from <code>since</code> on, or the
+         * whole window if <code>since</code> is <code>null</code>.
+         */
+        void write(Long since, long to, Map<String, TrendingSeries> data) throws IOException {
+            Object result;
+            if (plots == null) {
+                result = result(keys, since, to, data);
+            } else {
+                List<TrendingResult> results = new ArrayList<>(plots.size());
+                for (List<String> plot : plots) {
+                    results.add(result(plot, since, to, data));
+                }
+                result = results;
+            }
+            output.write("data: " + MAPPER.writeValueAsString(result) + "\n\n");
+        }
+
+        private TrendingResult result(List<String> plotKeys, Long since, long to, Map<String, TrendingSeries> data) {
+            TrendingQuery query = new TrendingQuery(plotKeys, null, to - length, to, n, Flavor.STAT, errorBars, source, since, true, null);
+            query.resolve(to);
+            return query.toResult(data);
+        }
+    }
+
+    /**
+     * The cache of filtered trees, which drops the least recently used tree
+     * once it is full.
+     */
+    private static class FilterCache extends LinkedHashMap<String, ChannelTree> {
+
+        private static final long serialVersionUID = 1L;
+
+        FilterCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ChannelTree> eldest) {
+            return size() > FILTER_CACHE_SIZE;
+        }
+    }
+
+    private static class BatchError {
+
+        private final String error;
+
+        BatchError(String error) {
+            this.error = error;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
     private static class TrendingResult {
 
         private final TrendingMetaData meta;
@@ -313,9 +762,16 @@ public class TrendingRestInterface {
             return data;
         }
 
+        /**
+         * A hash of the result, used to build entity tags.
+         */
+        long hash() throws IOException {
+            return TrendingSeries.mix(data.hash(), Arrays.hashCode(MAPPER.writeValueAsBytes(meta)));
+        }
+
     }
 
-    private static class TrendingPerSeriesMetaData {
+    static class TrendingPerSeriesMetaData {
 
         private final String units;
         private final String format;
@@ -353,6 +809,10 @@ public class TrendingRestInterface {
         private final long min;
         private final long max;
         private final Flavor flavor;
+        private Long since;
+        private Long binWidth;
+        private Boolean stale;
+        private Downsample downsample;
         private final List<TrendingPerSeriesMetaData> perData = new ArrayList<>();
 
         public TrendingMetaData(ErrorBars errorBars, int nBins, long min, long max, Flavor flavor) {
@@ -383,12 +843,52 @@ public class TrendingRestInterface {
             return flavor;
         }
 
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Long getSince() {
+            return since;
+        }
+
+        private void setSince(long since) {
+            this.since = since;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Long getBinWidth() {
+            return binWidth;
+        }
+
+        private void setBinWidth(Long binWidth) {
+            this.binWidth = binWidth;
+        }
+
+        /**
+         * Set if the dataserver could not be reached and the data was served
+         * from the cache, in which case recent bins may be missing.
+         */
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Boolean getStale() {
+            return stale;
+        }
+
+        private void setStale(boolean stale) {
+            this.stale = stale;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Downsample getDownsample() {
+            return downsample;
+        }
+
+        private void setDownsample(Downsample downsample) {
+            this.downsample = downsample;
+        }
+
         public List<TrendingPerSeriesMetaData> getPerData() {
             return perData;
         }
 
-        private void addMetaData(String units, String format, String description, String state) {
-            perData.add(new TrendingPerSeriesMetaData(units, format, description, state));
+        private void addMetaData(TrendingPerSeriesMetaData metaData) {
+            perData.add(metaData);
         }
 
     }
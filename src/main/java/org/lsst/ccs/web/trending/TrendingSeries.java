@@ -0,0 +1,183 @@
+package org.lsst.ccs.web.trending;
+
+import java.util.Arrays;
+import org.lsst.ccs.web.trending.TrendingRestInterface.TrendingPerSeriesMetaData;
+
+/**
+ * The trending data read from the dataserver for a single channel. The bins
+ * are stored in time order in parallel primitive arrays, to avoid allocating
+ * objects per bin.
+ */
+class TrendingSeries {
+
+    private long[] times;
+    private double[] values;
+    private double[] rms;
+    private double[] mins;
+    private double[] maxs;
+    private int size;
+    private TrendingPerSeriesMetaData meta;
+    private boolean stale;
+
+    TrendingSeries() {
+        this(16);
+    }
+
+    TrendingSeries(int capacity) {
+        times = new long[capacity];
+        values = new double[capacity];
+        rms = new double[capacity];
+        mins = new double[capacity];
+        maxs = new double[capacity];
+    }
+
+    /**
+     * Add a bin. Bins are normally added in time order, in which case this is
+     * a simple append. A bin with the same time as an existing bin replaces
+     * it.
+     */
+    void add(long time, double value, double rms, double min, double max) {
+        int index = size;
+        if (size > 0 && time <= times[size - 1]) {
+            index = indexOf(time);
+            if (index < size && times[index] == time) {
+                set(index, time, value, rms, min, max);
+                return;
+            }
+        }
+        if (size == times.length) {
+            grow(Math.max(16, size * 2));
+        }
+        if (index < size) {
+            System.arraycopy(times, index, times, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            System.arraycopy(this.rms, index, this.rms, index + 1, size - index);
+            System.arraycopy(mins, index, mins, index + 1, size - index);
+            System.arraycopy(maxs, index, maxs, index + 1, size - index);
+        }
+        set(index, time, value, rms, min, max);
+        size++;
+    }
+
+    /**
+     * Add all of the bins from another series.
+     */
+    void addAll(TrendingSeries other) {
+        if (size + other.size > times.length) {
+            grow(size + other.size);
+        }
+        for (int i = 0; i < other.size; i++) {
+            add(other.times[i], other.values[i], other.rms[i], other.mins[i], other.maxs[i]);
+        }
+    }
+
+    /**
+     * Create a copy of the bins with <code>from &lt;= time &lt; to</code>.
+     */
+    TrendingSeries slice(long from, long to) {
+        int start = indexOf(from);
+        int end = indexOf(to);
+        TrendingSeries result = new TrendingSeries(Math.max(end - start, 1));
+        System.arraycopy(times, start, result.times, 0, end - start);
+        System.arraycopy(values, start, result.values, 0, end - start);
+        System.arraycopy(rms, start, result.rms, 0, end - start);
+        System.arraycopy(mins, start, result.mins, 0, end - start);
+        System.arraycopy(maxs, start, result.maxs, 0, end - start);
+        result.size = end - start;
+        result.meta = meta;
+        return result;
+    }
+
+    /**
+     * Remove all bins with <code>time &gt;= from</code>.
+     */
+    void truncate(long from) {
+        size = indexOf(from);
+    }
+
+    /**
+     * Find the index of the first bin with <code>time &gt;= time</code>.
+     */
+    int indexOf(long time) {
+        int index = Arrays.binarySearch(times, 0, size, time);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    private void set(int index, long time, double value, double rms, double min, double max) {
+        times[index] = time;
+        values[index] = value;
+        this.rms[index] = rms;
+        mins[index] = min;
+        maxs[index] = max;
+    }
+
+    private void grow(int capacity) {
+        times = Arrays.copyOf(times, capacity);
+        values = Arrays.copyOf(values, capacity);
+        rms = Arrays.copyOf(rms, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+    }
+
+    /**
+     * Combine the bins of this series into a running hash.
+     */
+    long hash(long hash) {
+        for (int i = 0; i < size; i++) {
+            hash = mix(hash, times[i]);
+            hash = mix(hash, Double.doubleToLongBits(values[i]));
+            hash = mix(hash, Double.doubleToLongBits(rms[i]));
+            hash = mix(hash, Double.doubleToLongBits(mins[i]));
+            hash = mix(hash, Double.doubleToLongBits(maxs[i]));
+        }
+        return mix(hash, size);
+    }
+
+    static long mix(long hash, long value) {
+        return Long.rotateLeft(hash ^ value * 0x9E3779B97F4A7C15L, 31) * 0xBF58476D1CE4E5B9L;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getTime(int index) {
+        return times[index];
+    }
+
+    double getValue(int index) {
+        return values[index];
+    }
+
+    double getRMS(int index) {
+        return rms[index];
+    }
+
+    double getMin(int index) {
+        return mins[index];
+    }
+
+    double getMax(int index) {
+        return maxs[index];
+    }
+
+    TrendingPerSeriesMetaData getMeta() {
+        return meta;
+    }
+
+    void setMeta(TrendingPerSeriesMetaData meta) {
+        this.meta = meta;
+    }
+
+    /**
+     * A series is stale if it was served from the cache because the
+     * dataserver could not be reached, and so may be missing recent bins.
+     */
+    boolean isStale() {
+        return stale;
+    }
+
+    void setStale(boolean stale) {
+        this.stale = stale;
+    }
+}
@@ -0,0 +1,295 @@
+package org.lsst.ccs.web.trending;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of ssh tunnels to a dataserver, each with its own ssh session and
+ * port forward. Requests are spread over the healthy tunnels round robin.
+ * <p>
+ * Tunnels are opened, checked and re-opened on background threads, so request
+ * threads never perform ssh handshakes themselves. If no tunnel is available
+ * they wait, for a bounded time, for one to be (re)opened. Tunnels are checked
+ * periodically, and immediately when a request through them fails, and are
+ * re-opened with exponential backoff if they are found to be dead.
+ */
+class TunnelPool implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(TunnelPool.class.getName());
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    private final String name;
+    private final URL target;
+    private final String sshUsername;
+    private final String sshHost;
+    private final File sshKey;
+    private final String sshKeyPassword;
+    private final int healthCheckInterval;
+    private final SshTunnel[] tunnels;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService executor;
+    private long connects;
+    private long failures;
+    private String lastError;
+
+    /**
+     * Create a pool and start opening its tunnels.
+     *
+     * @param name A name for the pool, used in logging and thread names
+     * @param target The URL of the dataserver, as seen from the ssh host
+     * @param properties The site properties, containing the ssh settings
+     * @param size The number of tunnels
+     * @param healthCheckInterval The interval between checks of each tunnel,
+     * in milliseconds
+     */
+    TunnelPool(String name, URL target, Properties properties, int size, int healthCheckInterval) {
+        this.name = name;
+        this.target = target;
+        this.sshUsername = properties.getProperty("ssh.user");
+        this.sshHost = properties.getProperty("ssh.host");
+        this.sshKey = new File(properties.getProperty("ssh.key"));
+        if (!sshKey.canRead()) {
+            throw new RuntimeException("Invalid ssh key " + properties.getProperty("ssh.key"));
+        }
+        this.sshKeyPassword = properties.getProperty("ssh.key.password");
+        this.healthCheckInterval = healthCheckInterval;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newScheduledThreadPool(Math.max(1, size), (r) -> {
+            Thread thread = new Thread(r, "ssh-" + name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        tunnels = new SshTunnel[Math.max(1, size)];
+        for (int i = 0; i < tunnels.length; i++) {
+            SshTunnel tunnel = new SshTunnel(i);
+            tunnels[i] = tunnel;
+            tunnel.reconnect(0);
+            executor.scheduleWithFixedDelay(tunnel::check, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the local URL of the next healthy tunnel, waiting for one to become
+     * available if necessary.
+     *
+     * @param timeout The maximum time to wait, in milliseconds
+     * @return The URL of the dataserver through the tunnel
+     * @throws IOException If no tunnel became available in time
+     */
+    URL nextURL(long timeout) throws IOException {
+        URL url = pick();
+        if (url != null) {
+            return url;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            for (;;) {
+                url = pick();
+                if (url != null) {
+                    return url;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("No ssh tunnel to " + sshHost + " available" + (lastError == null ? "" : ", last error: " + lastError));
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException x) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private URL pick() {
+        for (int i = 0; i < tunnels.length; i++) {
+            URL url = tunnels[Math.floorMod(next.getAndIncrement(), tunnels.length)].url;
+            if (url != null) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Report that a request through a tunnel failed. The tunnel is checked
+     * immediately, in the background.
+     *
+     * @param url The URL returned by {@link #nextURL}
+     */
+    void failed(URL url) {
+        for (SshTunnel tunnel : tunnels) {
+            if (url.equals(tunnel.url)) {
+                executor.execute(tunnel::check);
+            }
+        }
+    }
+
+    synchronized TunnelStatistics getStatistics() {
+        int healthy = 0;
+        for (SshTunnel tunnel : tunnels) {
+            if (tunnel.url != null) {
+                healthy++;
+            }
+        }
+        return new TunnelStatistics(tunnels.length, healthy, connects, failures, lastError);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for (SshTunnel tunnel : tunnels) {
+            tunnel.disconnect();
+        }
+    }
+
+    private class SshTunnel {
+
+        private final int index;
+        private final AtomicBoolean reconnecting = new AtomicBoolean();
+        private volatile Session session;
+        // Only set while the tunnel is believed to be healthy
+        private volatile URL url;
+        private long retryDelay = MIN_RETRY_DELAY;
+
+        SshTunnel(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Schedule the tunnel to be re-opened, unless that is already
+         * scheduled.
+         */
+        void reconnect(long delay) {
+            if (reconnecting.compareAndSet(false, true)) {
+                executor.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void connect() {
+            disconnect();
+            Session newSession = null;
+            try {
+                JSch jsch = new JSch();
+                jsch.addIdentity(sshKey.getAbsolutePath(), sshKeyPassword);
+                newSession = jsch.getSession(sshUsername, sshHost);
+                Properties config = new Properties();
+                config.put("StrictHostKeyChecking", "no");
+                config.put("PreferredAuthentications", "publickey");
+                newSession.setConfig(config);
+                newSession.setDaemonThread(true);
+                // Let JSch detect an unresponsive server, and drop the session
+                newSession.setServerAliveInterval(healthCheckInterval);
+                newSession.setServerAliveCountMax(3);
+                newSession.connect(CONNECT_TIMEOUT);
+                int port = newSession.setPortForwardingL(null, 0, target.getHost(), target.getPort());
+                session = newSession;
+                url = new URL("http", "localhost", port, target.getPath());
+                retryDelay = MIN_RETRY_DELAY;
+                LOG.log(Level.INFO, "Tunnel {0} to {1} for {2} opened {3}", new Object[]{index, sshHost, name, url});
+                synchronized (TunnelPool.this) {
+                    connects++;
+                    TunnelPool.this.notifyAll();
+                }
+                reconnecting.set(false);
+            } catch (Exception ex) {
+                // Anything at all must lead to a retry, or the tunnel would stay down for good,
+                // since reconnecting is still set
+                if (newSession != null && newSession != session) {
+                    newSession.disconnect();
+                }
+                LOG.log(retryDelay == MIN_RETRY_DELAY ? Level.WARNING : Level.FINE, "Failed to open tunnel " + index + " to " + sshHost + " for " + name, ex);
+                synchronized (TunnelPool.this) {
+                    failures++;
+                    lastError = ex.getMessage();
+                }
+                long delay = retryDelay;
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                executor.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Check that the tunnel is still alive, and if not, re-open it.
+         */
+        void check() {
+            Session current = session;
+            if (url == null || current == null) {
+                return;
+            }
+            try {
+                if (!current.isConnected()) {
+                    throw new JSchException("session disconnected");
+                }
+                current.sendKeepAliveMsg();
+            } catch (Exception x) {
+                LOG.log(Level.WARNING, "Tunnel {0} to {1} for {2} failed health check: {3}", new Object[]{index, sshHost, name, x.getMessage()});
+                url = null;
+                reconnect(0);
+            }
+        }
+
+        void disconnect() {
+            url = null;
+            Session current = session;
+            if (current != null && current.isConnected()) {
+                current.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Tunnel pool size and health, exposed through the REST interface.
+     */
+    static class TunnelStatistics {
+
+        private final int size;
+        private final int healthy;
+        private final long connects;
+        private final long failures;
+        private final String lastError;
+
+        TunnelStatistics(int size, int healthy, long connects, long failures, String lastError) {
+            this.size = size;
+            this.healthy = healthy;
+            this.connects = connects;
+            this.failures = failures;
+            this.lastError = lastError;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getHealthy() {
+            return healthy;
+        }
+
+        public long getConnects() {
+            return connects;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package org.lsst.ccs.web.trending;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.lsst.ccs.web.trending.CircuitBreaker.BreakerStatistics;
+import org.lsst.ccs.web.trending.TunnelPool.TunnelStatistics;
+
+/**
+ * Manages the connections to a single dataserver source. The number of
+ * concurrent connections is limited, so that a burst of requests queues here
+ * rather than overloading the dataserver (or the ssh tunnel), and latency
+ * statistics are kept for each source.
+ * <p>
+ * Connections are made with <code>HttpURLConnection</code>, which keeps idle
+ * connections alive and reuses them for later requests to the same host,
+ * provided the reply is read to the end and closed. The JDK keeps up to
+ * <code>http.maxConnections</code> (default 5) idle connections per host,
+ * which is why that is also the default limit on concurrent connections.
+ */
+class UpstreamConnections {
+
+    private final Semaphore permits;
+    private final int maxConnections;
+    private long requests;
+    private long failures;
+    private long timeouts;
+    private int active;
+    private long totalResponseNanos;
+    private long maxResponseNanos;
+    private long totalTransferNanos;
+
+    UpstreamConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    interface Connector {
+
+        InputStream connect() throws IOException;
+    }
+
+    /**
+     * Open a connection, waiting for one of the connections to the source to
+     * become free if necessary. The connection is released when the returned
+     * stream is closed, so callers must always close it.
+     *
+     * @param connector Makes the connection, including any retries
+     * @param waitTimeout The maximum time to wait for a free connection, in
+     * milliseconds
+     * @return The stream from which to read the reply
+     * @throws IOException If no connection became free in time, or the
+     * connection failed
+     */
+    InputStream open(Connector connector, long waitTimeout) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS)) {
+                synchronized (this) {
+                    timeouts++;
+                }
+                throw new IOException("Timed out waiting for one of " + maxConnections + " connections to the dataserver");
+            }
+        } catch (InterruptedException x) {
+            throw new InterruptedIOException();
+        }
+        synchronized (this) {
+            active++;
+        }
+        boolean connected = false;
+        try {
+            InputStream in = connector.connect();
+            connected = true;
+            return new ConnectionStream(in, start, System.nanoTime());
+        } finally {
+            if (!connected) {
+                release(start, System.nanoTime(), -1);
+            }
+        }
+    }
+
+    /**
+     * Connect to a URL and return its reply.
+     *
+     * @param url The URL
+     * @param connectTimeout The connect timeout in milliseconds
+     * @param readTimeout The read timeout in milliseconds
+     * @return The stream from which to read the reply
+     * @throws IOException If the connection fails
+     * @throws ErrorReplyException If the server replies with an error
+     */
+    static InputStream connect(URL url, int connectTimeout, int readTimeout) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        try {
+            return connection.getInputStream();
+        } catch (IOException x) {
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                int status = -1;
+                try {
+                    // Fails again if the server never replied
+                    status = http.getResponseCode();
+                    // Reading the error reply (if any) lets the connection be reused
+                    try (InputStream error = http.getErrorStream()) {
+                        if (error != null) {
+                            byte[] buffer = new byte[4096];
+                            while (error.read(buffer) >= 0) {
+                            }
+                        }
+                    }
+                } catch (IOException ignored) {
+                }
+                if (status > 0) {
+                    throw new ErrorReplyException(url, status, x);
+                }
+            }
+            throw x;
+        }
+    }
+
+    /**
+     * Thrown when the dataserver replies, but with an error status. Unlike
+     * other failures this shows that the dataserver is reachable.
+     */
+    static class ErrorReplyException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        ErrorReplyException(URL url, int status, IOException cause) {
+            super("Dataserver replied with status " + status + " for " + url, cause);
+            this.status = status;
+        }
+
+        int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Thrown when a dataserver source cannot be used at all, because it could
+     * not be reached or because its circuit breaker is open.
+     */
+    static class UnavailableException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Check whether a failure, or any of its causes, shows that the source
+     * was unavailable, rather than that it replied with an error or that its
+     * reply could not be read.
+     */
+    static boolean isUnavailable(Throwable x) {
+        for (Throwable t = x; t != null; t = t.getCause()) {
+            if (t instanceof ErrorReplyException) {
+                return false;
+            } else if (t instanceof UnavailableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void release(long start, long responded, long finished) {
+        permits.release();
+        active--;
+        requests++;
+        if (finished < 0) {
+            failures++;
+        } else {
+            long responseNanos = responded - start;
+            totalResponseNanos += responseNanos;
+            maxResponseNanos = Math.max(maxResponseNanos, responseNanos);
+            totalTransferNanos += finished - responded;
+        }
+    }
+
+    synchronized UpstreamStatistics getStatistics() {
+        long succeeded = requests - failures;
+        return new UpstreamStatistics(maxConnections, active, permits.getQueueLength(), requests, failures, timeouts,
+                succeeded == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalResponseNanos / succeeded),
+                TimeUnit.NANOSECONDS.toMillis(maxResponseNanos),
+                succeeded == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalTransferNanos / succeeded));
+    }
+
+    /**
+     * Releases the connection when closed.
+     */
+    private class ConnectionStream extends FilterInputStream {
+
+        private final long start;
+        private final long responded;
+        private boolean closed;
+
+        ConnectionStream(InputStream in, long start, long responded) {
+            super(in);
+            this.start = start;
+            this.responded = responded;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                release(start, responded, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * Connection counters and latencies, exposed through the REST interface.
+     * The response time is the time until the dataserver starts to reply
+     * (including any wait for a free connection), and the transfer time is
+     * the time taken to read the reply. The state of the circuit breaker for
+     * the source, and for sources reached through ssh of the tunnel pool, are
+     * included.
+     */
+    static class UpstreamStatistics {
+
+        private final int maxConnections;
+        private final int active;
+        private final int waiting;
+        private final long requests;
+        private final long failures;
+        private final long timeouts;
+        private final long meanResponseMillis;
+        private final long maxResponseMillis;
+        private final long meanTransferMillis;
+        private TunnelStatistics tunnels;
+        private BreakerStatistics breaker;
+
+        UpstreamStatistics(int maxConnections, int active, int waiting, long requests, long failures, long timeouts, long meanResponseMillis, long maxResponseMillis, long meanTransferMillis) {
+            this.maxConnections = maxConnections;
+            this.active = active;
+            this.waiting = waiting;
+            this.requests = requests;
+            this.failures = failures;
+            this.timeouts = timeouts;
+            this.meanResponseMillis = meanResponseMillis;
+            this.maxResponseMillis = maxResponseMillis;
+            this.meanTransferMillis = meanTransferMillis;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getMeanResponseMillis() {
+            return meanResponseMillis;
+        }
+
+        public long getMaxResponseMillis() {
+            return maxResponseMillis;
+        }
+
+        public long getMeanTransferMillis() {
+            return meanTransferMillis;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public BreakerStatistics getBreaker() {
+            return breaker;
+        }
+
+        void setBreaker(BreakerStatistics breaker) {
+            this.breaker = breaker;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public TunnelStatistics getTunnels() {
+            return tunnels;
+        }
+
+        void setTunnels(TunnelStatistics tunnels) {
+            this.tunnels = tunnels;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.lsst.ccs.web.trending;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Measures the bytes allocated by the current thread, so that tests can put
+ * a bound on the allocation of code which is meant to be allocation light.
+ * Tests using it are skipped on JVMs which cannot measure allocation.
+ */
+class Allocations {
+
+    interface Task {
+
+        void run() throws Exception;
+    }
+
+    private Allocations() {
+    }
+
+    /**
+     * Run a task twice, once to warm it up, and return the bytes allocated
+     * by the second run.
+     */
+    static long measure(Task task) throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        task.run();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        task.run();
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+}
@@ -0,0 +1,112 @@
+package org.lsst.ccs.web.trending;
+
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import org.lsst.ccs.web.trending.BinCache.Slice;
+import org.lsst.ccs.web.trending.TrendingRestInterface.Flavor;
+
+public class BinCacheTest {
+
+    private static final long WIDTH = 1000;
+    private static final long TTL = 5000;
+
+    private static TrendingSeries series(long from, long to) {
+        TrendingSeries series = new TrendingSeries();
+        for (long t = from; t < to; t += WIDTH) {
+            series.add(t, 1, 0, 1, 1);
+        }
+        return series;
+    }
+
+    @Test
+    public void testBinWidth() {
+        assertEquals(1000, BinCache.binWidth(0, 100000, 100, Flavor.STAT));
+        assertEquals(0, BinCache.binWidth(0, 100001, 100, Flavor.STAT));
+        assertEquals(0, BinCache.binWidth(0, 100000, 100, Flavor.RAW));
+    }
+
+    @Test
+    public void testCanonicalBinWidth() {
+        // An hour in 100 bins is 36 s per bin, which rounds down to 30 s, giving 120 bins
+        assertEquals(30000, BinCache.canonicalBinWidth(36000));
+        assertEquals(60000, BinCache.canonicalBinWidth(60000));
+        assertEquals(500, BinCache.canonicalBinWidth(500));
+        assertEquals(2 * 86400000L, BinCache.canonicalBinWidth(3 * 86400000L - 1));
+        // Snapping a window to the grid, as align=true does, never gives fewer bins than asked for
+        long now = 1600000123456L;
+        long[] ranges = {60000, 600000, 3600000, 3 * 3600000, 86400000, 7 * 86400000L, 30 * 86400000L, 365 * 86400000L};
+        for (long range : ranges) {
+            for (int n : new int[]{10, 50, 100, 500, 1000}) {
+                long t1 = now - range;
+                long width = BinCache.canonicalBinWidth(range / n);
+                long bins = -Math.floorDiv(-now, width) - Math.floorDiv(t1, width);
+                assertTrue(bins >= n && bins <= 3 * n + 2, range + " ms in " + n + " bins gave " + bins);
+            }
+        }
+    }
+
+    @Test
+    public void testHitAndPartialHit() {
+        BinCache cache = new BinCache(1000, TTL);
+        long now = 100000;
+        Slice slice = cache.lookup("1", Flavor.STAT, 0, 100000, WIDTH, now);
+        assertEquals(0, slice.getValidTo());
+        cache.store("1", Flavor.STAT, 0, 100000, WIDTH, now, series(0, 100000));
+
+        slice = cache.lookup("1", Flavor.STAT, 10000, 90000, WIDTH, now + 1000);
+        assertEquals(90000, slice.getValidTo());
+        assertEquals(80, slice.getSeries().size());
+
+        // After the TTL only bins which were complete when fetched are trusted
+        slice = cache.lookup("1", Flavor.STAT, 10000, 100000, WIDTH, now + TTL);
+        assertEquals(95000, slice.getValidTo());
+
+        // A different grid phase does not share bins
+        slice = cache.lookup("1", Flavor.STAT, 10500, 90500, WIDTH, now + 1000);
+        assertEquals(10500, slice.getValidTo());
+
+        BinCache.CacheStatistics stats = cache.getStatistics();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getPartialHits());
+        assertEquals(2, stats.getMisses());
+    }
+
+    @Test
+    public void testTailMergeAndEviction() {
+        BinCache cache = new BinCache(150, TTL);
+        cache.store("1", Flavor.STAT, 0, 100000, WIDTH, 100000, series(0, 100000));
+        cache.store("1", Flavor.STAT, 95000, 120000, WIDTH, 120000, series(95000, 120000));
+        Slice slice = cache.lookup("1", Flavor.STAT, 0, 120000, WIDTH, 120000);
+        assertEquals(120000, slice.getValidTo());
+        assertEquals(120, slice.getSeries().size());
+        assertEquals(120, cache.getStatistics().getBins());
+
+        cache.store("2", Flavor.STAT, 0, 100000, WIDTH, 100000, series(0, 100000));
+        assertEquals(1, cache.getStatistics().getEvictions());
+        assertEquals(0, cache.lookup("1", Flavor.STAT, 0, 100000, WIDTH, 120000).getValidTo());
+    }
+
+    @Test
+    public void testOnlyCanonicalGridsPersisted(@TempDir Path directory) {
+        long minute = 60000;
+        long now = 1000 * minute;
+        BinCache cache = new BinCache(1000, TTL, new SegmentStore(directory.toFile()));
+        TrendingSeries minutes = new TrendingSeries();
+        for (long t = 0; t < 100 * minute; t += minute) {
+            minutes.add(t, 1, 0, 1, 1);
+        }
+        cache.store("1", Flavor.STAT, 0, 100 * minute, minute, now, minutes);
+        // Neither a width which is not canonical, nor a canonical width off its grid, is kept
+        cache.store("1", Flavor.STAT, 0, 100000, WIDTH * 7, now, series(0, 100000));
+        cache.store("1", Flavor.STAT, minute / 2, 10 * minute + minute / 2, minute, now, minutes.slice(minute / 2, 10 * minute + minute / 2));
+        assertArrayEquals(new String[]{"stat-60000-0"}, directory.toFile().list((dir, name) -> name.startsWith("stat-")));
+
+        BinCache restarted = new BinCache(1000, TTL, new SegmentStore(directory.toFile()));
+        Slice slice = restarted.lookup("1", Flavor.STAT, 10 * minute, 20 * minute, minute, now);
+        assertEquals(20 * minute, slice.getValidTo());
+        assertEquals(10, slice.getSeries().size());
+        assertEquals(minute / 2, restarted.lookup("1", Flavor.STAT, minute / 2, 5 * minute + minute / 2, minute, now).getValidTo());
+    }
+}
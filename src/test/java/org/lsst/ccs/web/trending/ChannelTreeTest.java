@@ -1,14 +1,25 @@
 package org.lsst.ccs.web.trending;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 /**
  *
@@ -49,6 +60,157 @@ public class ChannelTreeTest {
         //tree.dump();
     }
 
+    @Test
+    public void testChannelIds() throws IOException {
+        ChannelTree filtered = tree.filter(Pattern.compile("localdb/runtimeInfo/nThreads"));
+        ChannelTree.TreeNode node = filtered.getRoot();
+        while (!node.getChildren().isEmpty()) {
+            node = node.getChildren().iterator().next();
+        }
+        assertEquals("nThreads", node.getName());
+        assertEquals("1", node.getId());
+    }
+
+    @Test
+    public void testChildrenAndHandles() throws IOException {
+        String previous = null;
+        for (ChannelTree.TreeNode child : tree.getRoot().getChildren()) {
+            assertTrue(previous == null || previous.compareTo(child.getName()) < 0);
+            previous = child.getName();
+            assertEquals(child, tree.findNode(child.getHandle()));
+            assertEquals(child.getName(), tree.findNode(child.getHandle()).getName());
+        }
+        assertNull(tree.findNode(tree.size()));
+        assertTrue(tree.getFootprint() > 0);
+    }
+
+    private static ChannelTree delta(String... channels) throws IOException {
+        StringBuilder xml = new StringBuilder("<datachannels activeSinceDate=\"2020-03-20T07:29:29.479-07:00\">");
+        for (int i = 0; i < channels.length; i += 2) {
+            xml.append("<datachannel><path>");
+            for (String element : channels[i].split("/")) {
+                xml.append("<pathelement>").append(element).append("</pathelement>");
+            }
+            xml.append("</path><id>").append(channels[i + 1]).append("</id></datachannel>");
+        }
+        xml.append("</datachannels>");
+        return new ChannelTree(new ByteArrayInputStream(xml.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testUpdate() throws IOException {
+        assertEquals(1584714569479L, tree.getActiveSince());
+        // Nothing new
+        assertSame(tree, tree.update(delta("localdb/runtimeInfo/nThreads", "1")));
+
+        ChannelTree added = tree.update(delta("localdb/runtimeInfo/nThreads", "1", "localdb/runtimeInfo/newChannel", "999999"));
+        assertNotEquals(tree.getGeneration(), added.getGeneration());
+        assertEquals(tree.size() + 1, added.size());
+        for (ChannelTree.TreeNode child : tree.getRoot().getChildren()) {
+            assertEquals(child.getName(), added.findNode(child.getHandle()).getName());
+        }
+        assertEquals(4, added.filter(Pattern.compile("localdb/runtimeInfo/newChannel")).size());
+        assertSame(added, added.update(delta("localdb/runtimeInfo/newChannel", "999999")));
+
+        ChannelTree moved = added.update(delta("localdb/moved/nThreads", "1"));
+        assertEquals(4, moved.filter(Pattern.compile("localdb/moved/nThreads")).size());
+        assertEquals(1, moved.filter(Pattern.compile("localdb/runtimeInfo/nThreads")).size());
+        assertEquals(added.size() + 1, moved.size());
+    }
+
+    @Test
+    public void testFilterLimits() throws IOException {
+        ChannelTree glob = tree.filter(GlobMatcher.compile("*/*/temp*"));
+        ChannelTree regex = tree.filter(Pattern.compile(Globs.toUnixRegexPattern("*/*/temp*"), Pattern.CASE_INSENSITIVE));
+        assertEquals(regex.size(), glob.size());
+        // Takes exponential time in the length of the name. The backreference stops Java 9 and later
+        // from remembering failed attempts at the loop, which makes (x+x+)+y itself fast.
+        ChannelTree slow = delta("xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx", "1");
+        assertThrows(RuntimeException.class, () -> slow.filter(Pattern.compile("(x+x+)+\\1y"), 100));
+    }
+
+    @Test
+    public void testTimeLimitedSequence() {
+        String text = "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx";
+        ChannelTree.TimeLimitedSequence unlimited = new ChannelTree.TimeLimitedSequence(60000).reset(text);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals('x', unlimited.charAt(i % text.length()));
+        }
+        // The deadline has already passed, so reading stops within a few thousand characters
+        ChannelTree.TimeLimitedSequence expired = new ChannelTree.TimeLimitedSequence(-1).reset(text);
+        assertThrows(RuntimeException.class, () -> {
+            for (int i = 0; i < 10000; i++) {
+                expired.charAt(i % text.length());
+            }
+        });
+        assertEquals(text, expired.toString());
+    }
+
+    private static byte[] readFixture() throws IOException {
+        try (InputStream in = ChannelTreeTest.class.getResourceAsStream("listchannels.xml")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0;) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testAllocation() throws Exception {
+        byte[] xml = readFixture();
+        long dom = Allocations.measure(() -> readWithDOM(new ByteArrayInputStream(xml)));
+        long stax = Allocations.measure(() -> new ChannelTree(new ByteArrayInputStream(xml)));
+        assertTrue(stax * 100 < dom, "Building the tree allocated " + stax + " bytes, reading the DOM " + dom + " bytes");
+    }
+
+    @Test
+    public void testFootprint() throws Exception {
+        byte[] xml = readFixture();
+        // Keep several copies, so that the heap they retain stands out from any noise
+        ChannelTree[] trees = new ChannelTree[10];
+        long before = usedHeap();
+        for (int i = 0; i < trees.length; i++) {
+            trees[i] = new ChannelTree(new ByteArrayInputStream(xml));
+        }
+        long retained = (usedHeap() - before) / trees.length;
+        long estimate = trees[0].getFootprint();
+        // A tree of TreeNode objects, each with a TreeSet of children, retained about 1.3 MB
+        assertTrue(retained < 600 * 1024, "Each tree retained " + retained + " bytes");
+        assertTrue(estimate > retained / 2 && estimate < retained * 2, "Estimated " + estimate + " bytes, retained " + retained);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Read the paths and ids of the channels as the tree used to, with a DOM
+     * and XPath, but without building the tree.
+     */
+    private static int readWithDOM(InputStream in) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        XPathExpression pathExpression = xpath.compile("path/pathelement");
+        NodeList nl = (NodeList) xpath.compile("datachannels/datachannel").evaluate(doc, XPathConstants.NODESET);
+        int elements = 0;
+        for (int n = 0; n < nl.getLength(); n++) {
+            Node node = nl.item(n);
+            node.getParentNode().removeChild(node);
+            NodeList pathList = (NodeList) pathExpression.evaluate(node, XPathConstants.NODESET);
+            for (int nn = 0; nn < pathList.getLength(); nn++) {
+                elements += pathList.item(nn).getTextContent().length();
+            }
+            elements += ((String) xpath.evaluate("id", node, XPathConstants.STRING)).length();
+        }
+        return elements;
+    }
+
     @Test
     public void filterChannels() throws IOException {
         ChannelTree filtered = tree.filter(Pattern.compile("focal-plane/.*"));
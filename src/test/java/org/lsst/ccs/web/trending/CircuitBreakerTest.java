@@ -0,0 +1,86 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.IOException;
+import java.net.URL;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.lsst.ccs.web.trending.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    private static final long OPEN = 1000;
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, OPEN);
+        assertTrue(breaker.allowRequest(0));
+        breaker.recordFailure(0);
+        assertTrue(breaker.allowRequest(0));
+        breaker.recordFailure(0);
+        // A success resets the count
+        assertTrue(breaker.allowRequest(0));
+        breaker.recordSuccess();
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allowRequest(10));
+            breaker.recordFailure(10);
+        }
+        assertEquals(State.CLOSED, breaker.getStatistics().getState());
+        assertFalse(breaker.rejects(10));
+        assertTrue(breaker.allowRequest(10));
+        breaker.recordFailure(10);
+        assertEquals(State.OPEN, breaker.getStatistics().getState());
+        assertEquals(1, breaker.getStatistics().getOpened());
+        assertTrue(breaker.rejects(20));
+        assertFalse(breaker.allowRequest(20));
+        assertEquals(10 + OPEN, breaker.getRetryTime(20));
+        assertEquals(2, breaker.getStatistics().getRejected());
+    }
+
+    @Test
+    public void testSingleTrial() {
+        CircuitBreaker breaker = open();
+        // Once the open period is over exactly one trial is let through
+        assertFalse(breaker.rejects(OPEN));
+        assertTrue(breaker.allowRequest(OPEN));
+        assertEquals(State.HALF_OPEN, breaker.getStatistics().getState());
+        assertTrue(breaker.rejects(OPEN));
+        assertFalse(breaker.allowRequest(OPEN));
+        assertFalse(breaker.allowRequest(10 * OPEN));
+        breaker.recordSuccess();
+        assertEquals(State.CLOSED, breaker.getStatistics().getState());
+        assertEquals(0, breaker.getStatistics().getConsecutiveFailures());
+        assertTrue(breaker.allowRequest(OPEN));
+        assertEquals(OPEN, breaker.getRetryTime(OPEN));
+    }
+
+    @Test
+    public void testFailedTrial() {
+        CircuitBreaker breaker = open();
+        assertTrue(breaker.allowRequest(OPEN));
+        // A single failed trial opens the breaker again, for another full period
+        breaker.recordFailure(OPEN + 5);
+        assertEquals(State.OPEN, breaker.getStatistics().getState());
+        assertEquals(2, breaker.getStatistics().getOpened());
+        assertFalse(breaker.allowRequest(2 * OPEN));
+        assertEquals(2 * OPEN + 5, breaker.getRetryTime(2 * OPEN));
+        assertTrue(breaker.allowRequest(2 * OPEN + 5));
+        assertEquals(State.HALF_OPEN, breaker.getStatistics().getState());
+    }
+
+    @Test
+    public void testUnavailable() throws IOException {
+        IOException unreachable = new UpstreamConnections.UnavailableException("down", new IOException("refused"));
+        assertTrue(UpstreamConnections.isUnavailable(new IOException("wrapped", unreachable)));
+        IOException error = new UpstreamConnections.ErrorReplyException(new URL("http://localhost/data"), 500, new IOException("500"));
+        assertFalse(UpstreamConnections.isUnavailable(new IOException("wrapped", error)));
+        assertFalse(UpstreamConnections.isUnavailable(new IOException("Error parsing trending data")));
+    }
+
+    private static CircuitBreaker open() {
+        CircuitBreaker breaker = new CircuitBreaker(1, OPEN);
+        assertTrue(breaker.allowRequest(0));
+        breaker.recordFailure(0);
+        assertEquals(State.OPEN, breaker.getStatistics().getState());
+        return breaker;
+    }
+}
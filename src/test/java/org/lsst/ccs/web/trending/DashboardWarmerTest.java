@@ -0,0 +1,58 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.lsst.ccs.web.trending.DashboardWarmer.WarmQuery;
+
+public class DashboardWarmerTest {
+
+    @Test
+    public void testParsePage() {
+        String html = "<trending-controller restURL=\"../rest/maincamera\" useUTC range=\"6h\" errorbars=\"MINMAX\" source=\"CCS\"></trending-controller>\n"
+                + "<trending-grid columns=\"2\">\n"
+                + "  <trending-plot restURL=\"../rest/maincamera\" useUTC title=\"Temperatures\">\n"
+                + "    <trending-data key=\"123\" axis=\"y1\">A</trending-data>\n"
+                + "    <trending-data key=\"456\">B</trending-data>\n"
+                + "  </trending-plot>\n"
+                + "  <trending-plot title=\"Pressure\" range=\"3600000\" nBins=\"1000\" restURL=\"rest\">\n"
+                + "    <trending-data key=\"789\">C</trending-data>\n"
+                + "  </trending-plot>\n"
+                + "</trending-grid>";
+        List<WarmQuery> queries = DashboardWarmer.parsePage(html);
+        assertEquals(2, queries.size());
+        assertEquals("maincamera", queries.get(0).getSite());
+        assertEquals("CCS", queries.get(0).getSource());
+        assertEquals(6 * 3600000, queries.get(0).getRange());
+        assertEquals(100, queries.get(0).getnBins());
+        assertEquals(Arrays.asList("123", "456"), Arrays.asList(queries.get(0).getKeys().toArray()));
+        assertEquals("", queries.get(1).getSite());
+        assertEquals(3600000, queries.get(1).getRange());
+        assertEquals(1000, queries.get(1).getnBins());
+    }
+
+    @Test
+    public void testParseDuration() {
+        assertEquals(24 * 3600000, DashboardWarmer.parseDuration("1d"));
+        assertEquals(7 * 24 * 3600000L, DashboardWarmer.parseDuration("1w"));
+        assertEquals(3600000, DashboardWarmer.parseDuration("3600000"));
+        assertEquals(0, DashboardWarmer.parseDuration("{\"start\":1}"));
+    }
+
+    @Test
+    public void testParseAccessLog() throws IOException {
+        String log = "127.0.0.1 - - [18/Oct/2026:10:00:00 +0000] \"GET /CCSWebTrending/rest/comcam?key=1&key=2&t1=1000&t2=3601000&n=100 HTTP/1.1\" 200 1234\n"
+                + "127.0.0.1 - - [18/Oct/2026:10:01:00 +0000] \"GET /CCSWebTrending/rest/comcam?key=1&key=2&t1=61000&t2=3661500&n=100 HTTP/1.1\" 200 1234\n"
+                + "127.0.0.1 - - [18/Oct/2026:10:02:00 +0000] \"GET /CCSWebTrending/rest?key=3&t1=0&t2=86400000 HTTP/1.1\" 200 1234\n"
+                + "127.0.0.1 - - [18/Oct/2026:10:03:00 +0000] \"GET /CCSWebTrending/rest/comcam/channels HTTP/1.1\" 200 1234\n";
+        List<WarmQuery> queries = DashboardWarmer.parseAccessLog(new ByteArrayInputStream(log.getBytes(StandardCharsets.UTF_8)), 1);
+        assertEquals(1, queries.size());
+        assertEquals("comcam", queries.get(0).getSite());
+        assertEquals(3600000, queries.get(0).getRange());
+        assertEquals(2, queries.get(0).getKeys().size());
+    }
+}
@@ -0,0 +1,52 @@
+package org.lsst.ccs.web.trending;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GlobMatcherTest {
+
+    private static final List<String> PATHS = Arrays.asList(
+            "focal-plane/R22/Reb0/Temp1", "focal-plane/R22/Reb1/temp2", "focal-plane/R34/Reb0/Power",
+            "localdb/runtimeInfo/nThreads", "localdb/runtimeInfo/freeMemory", "vacuum/Cryo/Temp-C", "a,b/x}y/[z]");
+
+    private static boolean matches(GlobMatcher glob, String path) {
+        long state = glob.start();
+        for (String name : path.split("/")) {
+            state = glob.step(state, name);
+        }
+        return glob.matches(state);
+    }
+
+    @Test
+    public void testSameAsRegex() {
+        for (String glob : Arrays.asList("*/*/*/temp*", "focal-plane/R?2/*/*", "**/temp?", "**", "focal-plane/**/Power",
+                "*/{Reb0,runtimeInfo}/*", "*/*/{temp*,*Memory}", "*/*/[!rp]*", "*/*/Temp-[a-c]", "*/*/*[^a]*", "a,b/x}y/\\[z]",
+                "localdb/runtimeinfo", "", "*/{,Cryo}/*")) {
+            GlobMatcher matcher = GlobMatcher.compile(glob);
+            assertNotNull(matcher, glob);
+            Pattern pattern = Pattern.compile(Globs.toUnixRegexPattern(glob), Pattern.CASE_INSENSITIVE);
+            for (String path : PATHS) {
+                assertEquals(pattern.matcher(path).matches(), matches(matcher, path), glob + " " + path);
+            }
+        }
+    }
+
+    @Test
+    public void testFallbackAndErrors() {
+        assertNull(GlobMatcher.compile("focal-plane/R2**"));
+        assertNull(GlobMatcher.compile("{focal-plane/R22,vacuum}/*"));
+        assertThrows(PatternSyntaxException.class, () -> GlobMatcher.compile("focal-plane/[R"));
+        assertThrows(PatternSyntaxException.class, () -> GlobMatcher.compile("{a,{b}}"));
+    }
+
+    @Test
+    public void testPruning() {
+        GlobMatcher matcher = GlobMatcher.compile("focal-plane/R2*/*");
+        assertEquals(0, matcher.step(matcher.start(), "vacuum"));
+        assertEquals(0, matcher.step(matcher.step(matcher.start(), "focal-plane"), "R34"));
+    }
+}
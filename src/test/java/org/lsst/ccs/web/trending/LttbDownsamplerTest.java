@@ -0,0 +1,49 @@
+package org.lsst.ccs.web.trending;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LttbDownsamplerTest {
+
+    @Test
+    public void testDownsample() {
+        // A week of 1 Hz samples, with a single sample spike
+        long t1 = 1600000000000L;
+        long t2 = t1 + 7 * 24 * 3600 * 1000L;
+        int nBuckets = 1500;
+        long spikeTime = t1 + 123456000L;
+        LttbDownsampler downsampler = new LttbDownsampler(2, t1, t2, nBuckets);
+        for (long t = t1; t < t2; t += 1000) {
+            double value = Math.sin((t - t1) / 3.6e6);
+            downsampler.addBin(0, t, t == spikeTime ? 100 : value, Double.NaN, Double.NaN, Double.NaN);
+        }
+        downsampler.addBin(1, t1 + 5, 1, Double.NaN, Double.NaN, Double.NaN);
+        downsampler.addBin(1, t1 + 7, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+        List<TrendingSeries> result = downsampler.finish();
+
+        TrendingSeries series = result.get(0);
+        assertEquals(nBuckets, series.size());
+        double maxValue = Double.NEGATIVE_INFINITY;
+        double maxEnvelope = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < series.size(); i++) {
+            if (i > 0) {
+                assertTrue(series.getTime(i) > series.getTime(i - 1));
+            }
+            assertTrue(series.getMin(i) <= series.getValue(i) && series.getValue(i) <= series.getMax(i));
+            maxValue = Math.max(maxValue, series.getValue(i));
+            maxEnvelope = Math.max(maxEnvelope, series.getMax(i));
+        }
+        // LTTB picks the spike, and it is in the envelope anyway
+        assertEquals(100, maxValue, 0);
+        assertEquals(100, maxEnvelope, 0);
+        assertTrue(series.getTime(0) < t1 + (t2 - t1) / nBuckets);
+
+        // NaN samples are dropped, a single sample is kept as is
+        TrendingSeries single = result.get(1);
+        assertEquals(1, single.size());
+        assertEquals(t1 + 5, single.getTime(0));
+        assertEquals(1, single.getValue(0), 0);
+        assertEquals(0, single.getRMS(0), 0);
+    }
+}
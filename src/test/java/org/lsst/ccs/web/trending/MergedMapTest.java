@@ -0,0 +1,58 @@
+package org.lsst.ccs.web.trending;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.lsst.ccs.web.trending.TrendingRestInterface.ErrorBars;
+
+public class MergedMapTest {
+
+    private static final int CHANNELS = 10;
+    private static final int BINS = 5000;
+
+    /**
+     * Ten channels of 5000 bins, with odd and even channels on interleaved
+     * times so that the merged table has twice as many rows as bins.
+     */
+    private static List<TrendingSeries> build() {
+        List<TrendingSeries> sets = new ArrayList<>(CHANNELS);
+        for (int c = 0; c < CHANNELS; c++) {
+            TrendingSeries series = new TrendingSeries(BINS);
+            for (int i = 0; i < BINS; i++) {
+                series.add(2000L * i + 1000 * (c % 2), i, 0.5, i - 1, i + 1);
+            }
+            sets.add(series);
+        }
+        return sets;
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        MergedMap map = new MergedMap(build(), ErrorBars.NONE);
+        long[] last = {-1};
+        int[] rows = {0};
+        map.forEachRow((time, indices) -> {
+            assertTrue(time > last[0]);
+            last[0] = time;
+            rows[0]++;
+            for (int c = 0; c < CHANNELS; c++) {
+                assertEquals((time / 1000) % 2 == c % 2, indices[c] >= 0);
+            }
+        });
+        assertEquals(2 * BINS, rows[0]);
+    }
+
+    @Test
+    public void testAllocation() throws Exception {
+        // The five columns of each series, 8 bytes per bin each, and very little else
+        long columns = 5L * 8 * CHANNELS * BINS;
+        long build = Allocations.measure(MergedMapTest::build);
+        assertTrue(build < columns * 5 / 4, "Building allocated " + build + " bytes");
+        // Merging allocates no per row objects
+        MergedMap map = new MergedMap(build(), ErrorBars.NONE);
+        long merge = Allocations.measure(() -> map.forEachRow((time, indices) -> {
+        }));
+        assertTrue(merge < 16 * 1024, "Merging allocated " + merge + " bytes");
+    }
+}
@@ -0,0 +1,107 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import org.lsst.ccs.web.trending.RollupStore.TierData;
+import org.lsst.ccs.web.trending.TrendingRestInterface.TrendingPerSeriesMetaData;
+
+public class RollupStoreTest {
+
+    private static final long TIER = 60000;
+
+    private static TrendingSeries series(long from, long to, double value) {
+        TrendingSeries series = new TrendingSeries();
+        for (long t = from; t < to; t += TIER) {
+            series.add(t + TIER / 2, value, 1, value - 1, value + 1);
+        }
+        return series;
+    }
+
+    @Test
+    public void testTierFor() {
+        RollupStore store = new RollupStore(new File("unused"), new long[]{900000, 60000, 21600000}, 60000);
+        // Aligned queries use the coarsest tier which divides the bin width
+        assertEquals(900000, store.tierFor(0, 3600000));
+        assertEquals(21600000, store.tierFor(0, 86400000));
+        // Unaligned queries need at least ten tier bins per query bin
+        assertEquals(60000, store.tierFor(12345, 3000000));
+        assertEquals(0, store.tierFor(0, 30000));
+        // but no more than sixty, even if the tier would fit exactly
+        assertEquals(0, store.tierFor(12345, 5000000));
+        assertEquals(0, store.tierFor(0, 100 * 21600000L));
+        assertEquals(21600000, store.tierFor(0, 60 * 21600000L));
+    }
+
+    @Test
+    public void testStoreAndRead(@TempDir Path directory) throws IOException {
+        RollupStore store = new RollupStore(directory.toFile(), new long[]{TIER}, 60000);
+        long t0 = 1600000000000L / TIER * TIER;
+        TierData data = store.read("1", TIER, t0, t0 + 10 * TIER);
+        assertEquals(t0, data.getMissingFrom());
+        assertEquals(t0 + 10 * TIER, data.getMissingTo());
+
+        TrendingSeries stored = series(t0 + 2 * TIER, t0 + 6 * TIER, 5);
+        stored.setMeta(new TrendingPerSeriesMetaData("C", null, "A temperature", null));
+        store.store("1", TIER, t0 + 2 * TIER, t0 + 8 * TIER, stored);
+        data = store.read("1", TIER, t0, t0 + 10 * TIER);
+        assertEquals(t0, data.getMissingFrom());
+        assertEquals(t0 + 10 * TIER, data.getMissingTo());
+        data = store.read("1", TIER, t0 + 2 * TIER, t0 + 8 * TIER);
+        assertEquals(Long.MAX_VALUE, data.getMissingFrom());
+
+        // Storing before the start of the file, with a gap
+        store.store("1", TIER, t0 - 4 * TIER, t0 - 2 * TIER, series(t0 - 4 * TIER, t0 - 2 * TIER, 3));
+        data = store.read("1", TIER, t0 - 4 * TIER, t0 + 8 * TIER);
+        assertEquals(t0 - 2 * TIER, data.getMissingFrom());
+        assertEquals(t0 + 2 * TIER, data.getMissingTo());
+
+        // Combining into 2 minute bins, the empty bins from 6 to 8 are left out
+        TrendingSeries combined = RollupStore.combine(store.read("1", TIER, t0 - 4 * TIER, t0 + 8 * TIER), t0 - 4 * TIER, t0 + 8 * TIER, 2 * TIER);
+        assertEquals(3, combined.size());
+        assertEquals(3, combined.getValue(0), 0);
+        assertEquals(t0 - 3 * TIER, combined.getTime(0));
+        assertEquals(5, combined.getValue(2), 0);
+        assertEquals(1, combined.getRMS(2), 1e-12);
+        assertEquals(4, combined.getMin(2), 0);
+        assertEquals(6, combined.getMax(2), 0);
+
+        // The metadata survives a restart
+        RollupStore reopened = new RollupStore(directory.toFile(), new long[]{TIER}, 60000);
+        assertEquals("A temperature", reopened.getMetaData("1").getDescription());
+        assertEquals(Long.MAX_VALUE, reopened.read("1", TIER, t0 + 2 * TIER, t0 + 8 * TIER).getMissingFrom());
+    }
+
+    @Test
+    public void testRollUp(@TempDir Path directory) throws IOException {
+        long coarse = 5 * TIER;
+        RollupStore store = new RollupStore(directory.toFile(), new long[]{TIER, coarse}, 60000);
+        long t0 = 1600000000000L / coarse * coarse;
+        store.store("1", TIER, t0, t0 + 7 * TIER, series(t0, t0 + 7 * TIER, 2));
+        store.store("1", TIER, t0 + 15 * TIER, t0 + 20 * TIER, series(t0 + 15 * TIER, t0 + 20 * TIER, 4));
+
+        // Only whole coarse bins are rolled up, the rest is left for the dataserver
+        long[] left = store.rollUp("1", coarse, t0, t0 + 20 * TIER);
+        assertArrayEquals(new long[]{t0 + 5 * TIER, t0 + 15 * TIER}, left);
+        assertEquals(2, store.getStatistics().getBinsRolledUp());
+        TierData data = store.read("1", coarse, t0, t0 + 4 * coarse);
+        assertEquals(t0 + coarse, data.getMissingFrom());
+        assertEquals(t0 + 3 * coarse, data.getMissingTo());
+        TrendingSeries combined = RollupStore.combine(data, t0, t0 + 4 * coarse, coarse);
+        assertEquals(2, combined.size());
+        assertEquals(t0 + coarse / 2, combined.getTime(0));
+        assertEquals(2, combined.getValue(0), 0);
+        assertEquals(1, combined.getRMS(0), 1e-12);
+        assertEquals(1, combined.getMin(0), 0);
+        assertEquals(5, combined.getMax(1), 0);
+
+        // Once the finer tier holds the rest, nothing is left missing
+        store.store("1", TIER, t0 + 7 * TIER, t0 + 15 * TIER, series(t0 + 7 * TIER, t0 + 15 * TIER, 3));
+        left = store.rollUp("1", coarse, t0 + coarse, t0 + 3 * coarse);
+        assertTrue(left[0] >= left[1]);
+        assertEquals(Long.MAX_VALUE, store.read("1", coarse, t0, t0 + 4 * coarse).getMissingFrom());
+    }
+}
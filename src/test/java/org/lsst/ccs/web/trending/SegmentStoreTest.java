@@ -0,0 +1,119 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+import org.lsst.ccs.web.trending.TrendingRestInterface.Flavor;
+
+public class SegmentStoreTest {
+
+    private static final long WIDTH = 60000;
+
+    private static TrendingSeries series(long from, long to) {
+        TrendingSeries series = new TrendingSeries();
+        for (long t = from; t < to; t += WIDTH) {
+            series.add(t + WIDTH / 2, t, 1, t - 1, t + 1);
+        }
+        return series;
+    }
+
+    @Test
+    public void testAppendAndRead(@TempDir Path directory) throws IOException {
+        long t0 = 1600000000000L / WIDTH * WIDTH;
+        SegmentStore store = new SegmentStore(directory.toFile());
+        assertNull(store.read("1", Flavor.STAT, WIDTH, 0, t0));
+
+        store.append("1", Flavor.STAT, WIDTH, 0, t0, t0 + 4 * WIDTH, series(t0, t0 + 4 * WIDTH));
+        // Overlaps the first window, only the new part is written
+        store.append("1", Flavor.STAT, WIDTH, 0, t0 + 2 * WIDTH, t0 + 6 * WIDTH, series(t0, t0 + 6 * WIDTH));
+        store.append("1", Flavor.STAT, WIDTH, 0, t0 + 8 * WIDTH, t0 + 9 * WIDTH, series(t0 + 8 * WIDTH, t0 + 9 * WIDTH));
+        assertEquals(7, store.getStatistics().getBinsAppended());
+
+        SegmentStore.Run run = store.read("1", Flavor.STAT, WIDTH, 0, t0 + 3 * WIDTH);
+        assertEquals(t0, run.getFrom());
+        assertEquals(t0 + 6 * WIDTH, run.getTo());
+        assertEquals(6, run.getData().size());
+        assertNull(store.read("1", Flavor.STAT, WIDTH, 0, t0 + 7 * WIDTH));
+
+        // The second append continued the first chunk, so the third chunk is the second in the file
+        File file = directory.resolve("stat-60000-0").resolve("1.bins").toFile();
+        long second = 8 + 24 + 6 * 40;
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(second + 8);
+            assertEquals(t0 + 8 * WIDTH, raf.readLong());
+            // As if the webapp stopped before the header of the chunk was written
+            raf.seek(second);
+            raf.writeInt(0x1234);
+        }
+
+        // Survives a restart, with the partly written chunk dropped
+        SegmentStore reopened = new SegmentStore(directory.toFile());
+        run = reopened.read("1", Flavor.STAT, WIDTH, 0, t0);
+        assertEquals(t0 + 6 * WIDTH, run.getTo());
+        assertEquals(t0 + 5 * WIDTH + WIDTH / 2, run.getData().getTime(5));
+        assertEquals(t0 + 5 * WIDTH, run.getData().getValue(5), 0);
+        assertNull(reopened.read("1", Flavor.STAT, WIDTH, 0, t0 + 8 * WIDTH));
+        // and its space is reused
+        reopened.append("1", Flavor.STAT, WIDTH, 0, t0 + 6 * WIDTH, t0 + 8 * WIDTH, series(t0, t0 + 8 * WIDTH));
+        run = reopened.read("1", Flavor.STAT, WIDTH, 0, t0 + 7 * WIDTH);
+        assertEquals(t0, run.getFrom());
+        assertEquals(t0 + 8 * WIDTH, run.getTo());
+        assertEquals(8, run.getData().size());
+        assertEquals(length, file.length());
+        assertEquals(8, new SegmentStore(directory.toFile()).read("1", Flavor.STAT, WIDTH, 0, t0).getData().size());
+    }
+
+    @Test
+    public void testLiveAppends(@TempDir Path directory) throws IOException {
+        long t0 = 1600000000000L / WIDTH * WIDTH;
+        SegmentStore store = new SegmentStore(directory.toFile());
+        // One bin at a time, as live data becomes final
+        for (int i = 0; i < 1000; i++) {
+            store.append("1", Flavor.STAT, WIDTH, 0, t0 + i * WIDTH, t0 + (i + 1) * WIDTH, series(t0 + i * WIDTH, t0 + (i + 1) * WIDTH));
+        }
+        SegmentStore.Run run = store.read("1", Flavor.STAT, WIDTH, 0, t0);
+        assertEquals(1000, run.getData().size());
+        assertEquals(t0 + 999 * WIDTH, run.getData().getValue(999), 0);
+        File file = directory.resolve("stat-60000-0").resolve("1.bins").toFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // All in a single chunk
+            raf.seek(8 + 4);
+            assertEquals(1000, raf.readInt());
+            // The file grows ahead of the data, to at most twice its size
+            assertTrue(raf.length() < 2 * (8 + 24 + 1000 * 40 + 24), "File length " + raf.length());
+        }
+        assertEquals(1000, new SegmentStore(directory.toFile()).read("1", Flavor.STAT, WIDTH, 0, t0 + 500 * WIDTH).getData().size());
+    }
+
+    @Test
+    public void testDiskLimit(@TempDir Path directory) throws IOException {
+        long t0 = 1600000000000L / WIDTH * WIDTH;
+        // Room for about two files of ten bins each
+        SegmentStore store = new SegmentStore(directory.toFile(), 1000);
+        for (String key : new String[]{"1", "2"}) {
+            store.append(key, Flavor.STAT, WIDTH, 0, t0, t0 + 10 * WIDTH, series(t0, t0 + 10 * WIDTH));
+        }
+        assertEquals(2, store.getStatistics().getSegments());
+        // Reading 1 makes 2 the least recently used, so that is the one deleted
+        assertNotNull(store.read("1", Flavor.STAT, WIDTH, 0, t0));
+        store.append("3", Flavor.STAT, WIDTH, 0, t0, t0 + 10 * WIDTH, series(t0, t0 + 10 * WIDTH));
+        assertEquals(2, store.getStatistics().getSegments());
+        assertEquals(1, store.getStatistics().getSegmentsDeleted());
+        assertTrue(store.getStatistics().getBytes() <= 1000);
+        assertNull(store.read("2", Flavor.STAT, WIDTH, 0, t0));
+        assertFalse(directory.resolve("stat-60000-0").resolve("2.bins").toFile().exists());
+
+        // The limit also applies to the files found after a restart
+        SegmentStore reopened = new SegmentStore(directory.toFile(), 500);
+        assertEquals(2, reopened.getStatistics().getSegments());
+        reopened.append("4", Flavor.STAT, WIDTH, 0, t0, t0 + 2 * WIDTH, series(t0, t0 + 2 * WIDTH));
+        assertEquals(2, reopened.getStatistics().getSegmentsDeleted());
+        assertEquals(1, reopened.getStatistics().getSegments());
+        assertNotNull(reopened.read("4", Flavor.STAT, WIDTH, 0, t0));
+    }
+}
@@ -0,0 +1,173 @@
+package org.lsst.ccs.web.trending;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TrendingDataParserTest {
+
+    private static final String REPLY = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+            + "<!-- A comment with <tags> -->\n"
+            + "<datas>\n"
+            + " <data id=\"1\">\n"
+            + "  <trendingresult>\n"
+            + "   <trendingdata>\n"
+            + "    <axisvalue name=\"time\" value=\"1600000000000\" loweredge=\"1599999999500\"/>\n"
+            + "    <datavalue name=\"value\" value=\"1.25\"/>\n"
+            + "    <datavalue value='0.5' name='rms'/>\n"
+            + "    <datavalue name=\"min\" value=\"-3.0E-5\"/>\n"
+            + "    <datavalue name=\"max\" value=\"NaN\"/>\n"
+            + "   </trendingdata>\n"
+            + "   <trendingdata>\n"
+            + "    <axisvalue name=\"time\" value=\"1600000001000\"/>\n"
+            + "    <datavalue name=\"value\" value=\"0.12345678901234568\"/>\n"
+            + "   </trendingdata>\n"
+            + "   <channelmetadata>\n"
+            + "    <channelmetadatavalue name=\"units\" value=\"°C\"/>\n"
+            + "    <channelmetadatavalue name=\"description\" value=\"Temp &lt;&amp;&gt; &#x41;\"/>\n"
+            + "   </channelmetadata>\n"
+            + "  </trendingresult>\n"
+            + " </data>\n"
+            + " <data id=\"2\"><trendingresult><trendingdata><axisvalue name=\"time\" value=\"5\"/>"
+            + "<datavalue name=\"value\" value=\"7\"/></trendingdata></trendingresult></data>\n"
+            + "</datas>\n";
+
+    @Test
+    public void testParse() throws IOException {
+        List<TrendingSeries> result = TrendingDataParser.parse(new ByteArrayInputStream(REPLY.getBytes(StandardCharsets.UTF_8)), 2, 10);
+        assertEquals(2, result.size());
+        TrendingSeries first = result.get(0);
+        assertEquals(2, first.size());
+        assertEquals(1600000000000L, first.getTime(0));
+        assertEquals(1.25, first.getValue(0));
+        assertEquals(0.5, first.getRMS(0));
+        assertEquals(-3.0E-5, first.getMin(0));
+        assertTrue(Double.isNaN(first.getMax(0)));
+        assertEquals(0.12345678901234568, first.getValue(1));
+        assertTrue(Double.isNaN(first.getRMS(1)));
+        assertEquals("°C", first.getMeta().getUnits());
+        assertEquals("Temp <&> A", first.getMeta().getDescription());
+        TrendingSeries second = result.get(1);
+        assertEquals(1, second.size());
+        assertEquals(5, second.getTime(0));
+        assertEquals(7, second.getValue(0));
+        assertNull(second.getMeta());
+    }
+
+    @Test
+    public void testMalformed() {
+        String truncated = REPLY.substring(0, REPLY.indexOf("value=\"1.25\"") + 8);
+        assertThrows(IOException.class, () -> TrendingDataParser.parse(new ByteArrayInputStream(truncated.getBytes(StandardCharsets.UTF_8)), 1, 10));
+        String badNumber = REPLY.replace("1.25", "1.2.5");
+        assertThrows(IOException.class, () -> TrendingDataParser.parse(new ByteArrayInputStream(badNumber.getBytes(StandardCharsets.UTF_8)), 1, 10));
+    }
+
+    @Test
+    public void testEncodings() throws IOException {
+        for (String encoding : new String[]{"UTF-8", "UTF-16", "ISO-8859-1"}) {
+            String reply = REPLY.replace("encoding=\"UTF-8\"", "encoding=\"" + encoding + "\"");
+            List<TrendingSeries> result = TrendingDataParser.parse(new ByteArrayInputStream(reply.getBytes(encoding)), 2, 10);
+            assertEquals(2, result.get(0).size(), encoding);
+            assertEquals("°C", result.get(0).getMeta().getUnits(), encoding);
+            assertEquals("Temp <&> A", result.get(0).getMeta().getDescription(), encoding);
+        }
+        // A byte order mark, or no XML declaration at all, means UTF-8
+        byte[] undeclared = REPLY.substring(REPLY.indexOf('\n') + 1).getBytes(StandardCharsets.UTF_8);
+        byte[] bom = new byte[undeclared.length + 3];
+        bom[0] = (byte) 0xEF;
+        bom[1] = (byte) 0xBB;
+        bom[2] = (byte) 0xBF;
+        System.arraycopy(undeclared, 0, bom, 3, undeclared.length);
+        for (byte[] reply : new byte[][]{undeclared, bom}) {
+            List<TrendingSeries> result = TrendingDataParser.parse(new ByteArrayInputStream(reply), 2, 10);
+            assertEquals(2, result.get(0).size());
+            assertEquals("°C", result.get(0).getMeta().getUnits());
+        }
+    }
+
+    @Test
+    public void testMarkup() throws IOException {
+        // Nothing within CDATA, comments or processing instructions is data
+        String reply = REPLY
+                .replace("<datas>", "<datas><![CDATA[<data><trendingdata><axisvalue name=\"time\" value=\"1\"/></trendingdata></data>]]>")
+                .replace("<data id=\"2\">", "<data id=\"2\"><?pi <trendingdata>?><!-- </data> -->")
+                .replace("</channelmetadata>", "<channelmetadatavalue name=\"format\" value=\"&quot;%.2f&apos;&#10;&#x263A;\"/></channelmetadata>");
+        List<TrendingSeries> result = TrendingDataParser.parse(new ByteArrayInputStream(reply.getBytes(StandardCharsets.UTF_8)), 2, 10);
+        assertEquals(2, result.get(0).size());
+        assertEquals(1600000000000L, result.get(0).getTime(0));
+        assertEquals("\"%.2f'\n\u263A", result.get(0).getMeta().getFormat());
+        assertEquals(1, result.get(1).size());
+        assertEquals(5, result.get(1).getTime(0));
+        // Undeclared entities are an error, not silently passed through
+        String undeclared = REPLY.replace("&lt;", "&nbsp;");
+        assertThrows(IOException.class, () -> TrendingDataParser.parse(new ByteArrayInputStream(undeclared.getBytes(StandardCharsets.UTF_8)), 1, 10));
+        // Attribute values are normalized, and may use references anywhere
+        String references = REPLY
+                .replace("value=\"5\"", "value=\"&#53;\"")
+                .replace("name=\"units\"", "name=\"&#117;nits\" ns:value=\"ignored\"")
+                .replace("Temp &lt;", "Temp\t&lt;");
+        List<TrendingSeries> expanded = TrendingDataParser.parse(new ByteArrayInputStream(references.getBytes(StandardCharsets.UTF_8)), 2, 10);
+        assertEquals(5, expanded.get(1).getTime(0));
+        assertEquals("°C", expanded.get(0).getMeta().getUnits());
+        assertEquals("Temp <&> A", expanded.get(0).getMeta().getDescription());
+        // Mismatched tags are an error
+        String unbalanced = REPLY.replace("</datas>", "");
+        assertThrows(IOException.class, () -> TrendingDataParser.parse(new ByteArrayInputStream(unbalanced.getBytes(StandardCharsets.UTF_8)), 1, 10));
+    }
+
+    @Test
+    public void testNumbers() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            double d = i % 2 == 0 ? Double.longBitsToDouble(random.nextLong()) : random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10);
+            String s = Double.toString(d);
+            byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+            assertEquals(Double.doubleToRawLongBits(Double.parseDouble(s)), Double.doubleToRawLongBits(AsciiNumbers.parseDouble(bytes, 0, bytes.length)), s);
+        }
+        for (String s : new String[]{"0", "-0.0", "1e400", "4.9e-324", "1.7976931348623157E308", "9007199254740993", "Infinity", "1.5f"}) {
+            byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+            assertEquals(Double.doubleToRawLongBits(Double.parseDouble(s)), Double.doubleToRawLongBits(AsciiNumbers.parseDouble(bytes, 0, bytes.length)), s);
+        }
+        byte[] min = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+        assertEquals(Long.MIN_VALUE, AsciiNumbers.parseLong(min, 0, min.length));
+        byte[] overflow = "9223372036854775808".getBytes(StandardCharsets.US_ASCII);
+        assertThrows(NumberFormatException.class, () -> AsciiNumbers.parseLong(overflow, 0, overflow.length));
+    }
+
+    @Test
+    public void testAllocation() throws Exception {
+        final int bins = 100000;
+        StringBuilder reply = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n<datas><data id=\"1\"><trendingresult>\n");
+        Random random = new Random(1);
+        for (int i = 0; i < bins; i++) {
+            double v = random.nextGaussian() * 20;
+            reply.append("<trendingdata><axisvalue name=\"time\" value=\"").append(1600000000000L + 1000L * i).append("\"/>")
+                    .append("<datavalue name=\"value\" value=\"").append(v).append("\"/>")
+                    .append("<datavalue name=\"rms\" value=\"").append(Math.abs(v) / 10).append("\"/>")
+                    .append("<datavalue name=\"min\" value=\"").append(v - 1).append("\"/>")
+                    .append("<datavalue name=\"max\" value=\"").append(v + 1).append("\"/>")
+                    .append("</trendingdata>\n");
+        }
+        reply.append("<channelmetadata><channelmetadatavalue name=\"units\" value=\"C\"/></channelmetadata></trendingresult></data></datas>\n");
+        byte[] bytes = reply.toString().getBytes(StandardCharsets.UTF_8);
+        int[] count = {0};
+        TrendingDataParser.Sink sink = new TrendingDataParser.Sink() {
+            @Override
+            public void addBin(int series, long time, double value, double rms, double min, double max) {
+                count[0]++;
+            }
+
+            @Override
+            public void addMetaData(int series, TrendingRestInterface.TrendingPerSeriesMetaData meta) {
+            }
+        };
+        // Reading a bin allocates nothing, only the metadata and the stream do
+        long parse = Allocations.measure(() -> TrendingDataParser.parse(new ByteArrayInputStream(bytes), 1, sink));
+        assertEquals(2 * bins, count[0]);
+        assertTrue(parse < 16 * 1024, "Parsing allocated " + parse + " bytes");
+    }
+}